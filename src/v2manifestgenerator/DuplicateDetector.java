@@ -0,0 +1,237 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package v2manifestgenerator;
+
+/**
+ * *************************************************************
+ *
+ * D U P L I C A T E D E T E C T O R
+ *
+ * This class detects VEOs in a consignment that will be rejected by the
+ * digital archive because they have the same vers:FileIdentifier and
+ * vers:VERSRecordIdentifier as another VEO. It also detects VEOs that are
+ * byte-for-byte identical (e.g. the same VEO copied onto two pieces of media).
+ *
+ * To allow very large consignments to be checked in a small heap, only a 64 bit
+ * hash of each identifier pair, and the first 64 bits of the SHA-256 digest of
+ * the content of each VEO, is kept in memory (in LongHashSets). The digest is
+ * taken by the VEOParser as the VEO is read, so the VEOs are not read again.
+ * The identifiers, digest, and path of each VEO are appended to a temporary
+ * file. A repeated hash only marks the VEOs as suspect. At the end, the
+ * temporary file is read once and the suspects are confirmed by comparing the
+ * actual identifiers and the whole digests (so that hash collisions are not
+ * reported). Only the paths of the suspects are held in memory.
+ * ************************************************************
+ */
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class DuplicateDetector {
+
+    LongHashSet idHashes;	// hashes of the identifier pairs seen
+    LongHashSet digests;	// first 64 bits of the digests of the VEOs seen
+    LongHashSet suspectIds;	// identifier hashes seen more than once
+    LongHashSet suspectDigests; // digests seen more than once
+    File recordFile;	// temporary file holding details of each VEO
+    DataOutputStream records; // stream writing the temporary file
+    int duplicateIds;	// number of duplicated identifier pairs found
+    int duplicateVEOs;	// number of sets of identical VEOs found
+
+    /**
+     * Constructor
+     *
+     * @param tempDirectory directory for the temporary file (null to use the
+     * system default)
+     * @throws IOException if the temporary file could not be created
+     */
+    public DuplicateDetector(File tempDirectory) throws IOException {
+        idHashes = new LongHashSet(1024);
+        digests = new LongHashSet(1024);
+        suspectIds = new LongHashSet(16);
+        suspectDigests = new LongHashSet(16);
+        recordFile = File.createTempFile("manifest", ".ids", tempDirectory);
+        recordFile.deleteOnExit();
+        records = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(recordFile), 65536));
+        duplicateIds = 0;
+        duplicateVEOs = 0;
+    }
+
+    /**
+     * Add
+     *
+     * Remember a VEO. The identifiers are those written in the manifest (i.e.
+     * after truncation), as these are what the digital archive will see. The
+     * VEO is only checked for identical VEOs if its digest was taken.
+     *
+     * @param e the entry for the VEO
+     * @throws IOException if the temporary file could not be written
+     */
+    public void add(ManifestEntry e) throws IOException {
+        long h, d;
+        int i;
+
+        h = hash(e.getFileIdentifier(), e.getRecordIdentifier());
+        if (!idHashes.add(h)) {
+            suspectIds.add(h);
+        }
+        d = 0;
+        if (e.digest != null) {
+            for (i = 0; i < 8; i++) {
+                d = (d << 8) | (e.digest[i] & 0xff);
+            }
+            if (!digests.add(d)) {
+                suspectDigests.add(d);
+            }
+        }
+        records.writeLong(h);
+        records.writeLong(d);
+        ManifestEntry.writeString(records, e.digest != null ? hex(e.digest) : null);
+        ManifestEntry.writeString(records, new File(e.directory, e.filename).getPath());
+        ManifestEntry.writeString(records, e.getFileIdentifier());
+        ManifestEntry.writeString(records, e.getRecordIdentifier());
+    }
+
+    /**
+     * Report
+     *
+     * Confirm the suspected duplicates and report them. The temporary file is
+     * deleted.
+     *
+     * @param ps where to write the report
+     * @return the number of duplicates found (duplicate identifier pairs plus
+     * sets of identical VEOs)
+     * @throws IOException if the temporary file could not be read
+     */
+    public int report(PrintStream ps) throws IOException {
+        Map<String, List<String>> byId;
+        Map<String, List<String>> byDigest;
+        List<String> l;
+        long h, d;
+        String digest, path, fileId, recId;
+
+        records.close();
+        byId = new LinkedHashMap<>();
+        byDigest = new LinkedHashMap<>();
+        try {
+            // nothing to do if no hash or digest was seen twice
+            if (suspectIds.size() == 0 && suspectDigests.size() == 0) {
+                return 0;
+            }
+
+            // read the records of the suspect VEOs
+            try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(recordFile), 65536))) {
+                while (true) {
+                    try {
+                        h = dis.readLong();
+                    } catch (EOFException eofe) {
+                        break;
+                    }
+                    d = dis.readLong();
+                    digest = ManifestEntry.readString(dis);
+                    path = ManifestEntry.readString(dis);
+                    fileId = ManifestEntry.readString(dis);
+                    recId = ManifestEntry.readString(dis);
+                    if (suspectIds.contains(h)) {
+                        byId.computeIfAbsent(fileId + "\u0000" + recId, k -> new ArrayList<>()).add(path);
+                    }
+                    if (digest != null && suspectDigests.contains(d)) {
+                        byDigest.computeIfAbsent(digest, k -> new ArrayList<>()).add(path);
+                    }
+                }
+            }
+
+            // report identifier pairs that really are the same
+            for (Map.Entry<String, List<String>> me : byId.entrySet()) {
+                l = me.getValue();
+                if (l.size() > 1) {
+                    fileId = me.getKey().substring(0, me.getKey().indexOf('\u0000'));
+                    recId = me.getKey().substring(me.getKey().indexOf('\u0000') + 1);
+                    ps.println("Duplicate identifier (File Identifier '" + fileId + "', VERS Record Identifier '" + recId + "') in: " + String.join(", ", l));
+                    duplicateIds++;
+                }
+            }
+
+            // report VEOs that really have the same content
+            for (List<String> same : byDigest.values()) {
+                if (same.size() > 1) {
+                    ps.println("Identical VEOs: " + String.join(", ", same));
+                    duplicateVEOs++;
+                }
+            }
+        } finally {
+            recordFile.delete();
+        }
+        return duplicateIds + duplicateVEOs;
+    }
+
+    /**
+     * Close
+     *
+     * Discard the temporary file without reporting
+     */
+    public void close() {
+        try {
+            records.close();
+        } catch (IOException ioe) {
+            /* ignore */ }
+        recordFile.delete();
+    }
+
+    /**
+     * Hash
+     *
+     * Calculate a 64 bit FNV-1a hash of an identifier pair. A null record
+     * identifier (i.e. a file VEO) is distinct from an empty one.
+     */
+    static long hash(String fileId, String recId) {
+        long h;
+
+        h = 0xcbf29ce484222325L;
+        h = hash(h, fileId);
+        h = (h ^ 0xffff) * 0x100000001b3L;
+        h = hash(h, recId);
+        return h;
+    }
+
+    private static long hash(long h, String s) {
+        int i;
+
+        if (s == null) {
+            return (h ^ 0xfffe) * 0x100000001b3L;
+        }
+        for (i = 0; i < s.length(); i++) {
+            h = (h ^ s.charAt(i)) * 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * Return a digest as a hexadecimal string
+     */
+    private static String hex(byte[] d) {
+        StringBuilder sb;
+        int i;
+
+        sb = new StringBuilder(d.length * 2);
+        for (i = 0; i < d.length; i++) {
+            sb.append(Character.forDigit((d[i] >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(d[i] & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
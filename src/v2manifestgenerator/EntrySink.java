@@ -0,0 +1,30 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package v2manifestgenerator;
+
+/**
+ * *************************************************************
+ *
+ * E N T R Y S I N K
+ *
+ * Something that consumes the entries generated from the VEOs, in the order in
+ * which they are to appear in the manifest.
+ * ************************************************************
+ */
+import java.io.IOException;
+
+public interface EntrySink {
+
+    /**
+     * Entry
+     *
+     * Consume the next entry
+     *
+     * @param e the entry
+     * @throws IOException if the entry could not be consumed
+     */
+    void entry(ManifestEntry e) throws IOException;
+}
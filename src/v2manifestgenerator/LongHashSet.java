@@ -0,0 +1,145 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package v2manifestgenerator;
+
+/**
+ * *************************************************************
+ *
+ * L O N G H A S H S E T
+ *
+ * A set of long values held in an open addressing (linear probing) table of
+ * primitive longs. This uses 8 bytes per slot, compared to around 50 bytes per
+ * value for a HashSet of Longs, and so allows tens of millions of values to be
+ * remembered in a modest heap. The table is kept at most two thirds full.
+ *
+ * Zero is used to mark an empty slot, so the value zero is stored as a
+ * separate flag.
+ * ************************************************************
+ */
+public class LongHashSet {
+
+    long[] table;		// the slots (0 = empty)
+    int size;		// number of values in the table (excluding zero)
+    boolean hasZero;	// true if the value zero has been added
+
+    /**
+     * Constructor
+     *
+     * @param expected the number of values expected (the table grows if this
+     * is exceeded)
+     */
+    public LongHashSet(int expected) {
+        int capacity;
+
+        capacity = 16;
+        while (capacity < expected + expected / 2) {
+            capacity <<= 1;
+        }
+        table = new long[capacity];
+        size = 0;
+        hasZero = false;
+    }
+
+    /**
+     * Add
+     *
+     * Add a value to the set
+     *
+     * @param v the value
+     * @return true if the value was not already in the set
+     */
+    public boolean add(long v) {
+        int i, mask;
+
+        if (v == 0) {
+            if (hasZero) {
+                return false;
+            }
+            hasZero = true;
+            return true;
+        }
+        mask = table.length - 1;
+        i = (int) mix(v) & mask;
+        while (table[i] != 0) {
+            if (table[i] == v) {
+                return false;
+            }
+            i = (i + 1) & mask;
+        }
+        table[i] = v;
+        size++;
+        if (size * 3 > table.length * 2) {
+            grow();
+        }
+        return true;
+    }
+
+    /**
+     * Contains
+     *
+     * @param v the value
+     * @return true if the value is in the set
+     */
+    public boolean contains(long v) {
+        int i, mask;
+
+        if (v == 0) {
+            return hasZero;
+        }
+        mask = table.length - 1;
+        i = (int) mix(v) & mask;
+        while (table[i] != 0) {
+            if (table[i] == v) {
+                return true;
+            }
+            i = (i + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * Size
+     *
+     * @return the number of values in the set
+     */
+    public int size() {
+        return size + (hasZero ? 1 : 0);
+    }
+
+    /**
+     * Double the size of the table and reinsert the values
+     */
+    private void grow() {
+        long[] old;
+        int i, j, mask;
+
+        old = table;
+        table = new long[old.length * 2];
+        mask = table.length - 1;
+        for (i = 0; i < old.length; i++) {
+            if (old[i] != 0) {
+                j = (int) mix(old[i]) & mask;
+                while (table[j] != 0) {
+                    j = (j + 1) & mask;
+                }
+                table[j] = old[i];
+            }
+        }
+    }
+
+    /**
+     * Mix the bits of a value so that values that differ only in their high
+     * bits (e.g. file lengths) are spread across the table
+     */
+    static long mix(long v) {
+        v ^= v >>> 33;
+        v *= 0xff51afd7ed558ccdL;
+        v ^= v >>> 33;
+        v *= 0xc4ceb9fe1a85ec53L;
+        v ^= v >>> 33;
+        return v;
+    }
+}
@@ -0,0 +1,592 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package v2manifestgenerator;
+
+/**
+ * *************************************************************
+ *
+ * M A N I F E S T B A T C H
+ *
+ * This class generates the manifests for a list of consignments in one run
+ * (one JVM). For example:
+ *
+ * java v2manifestgenerator.ManifestBatch -threads 8 -jobs 2 tonight.csv
+ *
+ * The job list is either CSV (the first row naming the columns) or JSON (an
+ * array of objects). Each job (row or object) gives the job arguments of the
+ * generator (see V2ManifestGenerator.jobArguments(), e.g. va, vprs, p, tr, d,
+ * m), and 'output', the file to which the manifest is written. Optionally,
+ * 'log' gives the file to which the progress and errors of the job are
+ * written (by default the output file with '.log' appended). An empty CSV
+ * cell is the same as an absent column. For example:
+ *
+ * va,vprs,p,tr,d,m,output
+ * 1234,5678,1,2019/0012,D:\export\c1,,c1.xml
+ * 1234,5679,2,2019/0013,D:\export\c2,cd,c2.xml
+ *
+ * The VEOs of all the jobs are parsed by one shared pool of worker threads
+ * (-threads, default the number of processors), and each worker thread keeps
+ * its parsers between jobs. Up to -jobs jobs (default 2) run at once. The
+ * jobs are started smallest first (by the total size of the VEOs), so small
+ * consignments do not wait behind a large one.
+ *
+ * Each job is isolated: its manifest is written to a temporary file that is
+ * renamed to the output file only if the job succeeds, and a failure (e.g. a
+ * bad argument or a missing directory) only ends that job. A summary is
+ * written to standard error at the end, and the program exits with -1 if any
+ * job failed.
+ * ************************************************************
+ */
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class ManifestBatch {
+
+    ExecutorService pool;	// worker threads parsing VEOs (shared by all jobs)
+    int threads;		// number of worker threads
+    int concurrentJobs;	// number of jobs run at once
+    ArrayList<BatchJob> jobs; // the jobs, in the order of the job list
+
+    /**
+     * A job in the batch
+     */
+    static class BatchJob {
+
+        int number;		// position in the job list (from 1)
+        LinkedHashMap<String, String> params; // job arguments (name to value)
+        File output;		// file to which the manifest is written
+        File log;		// file to which progress and errors are written
+        long size;		// estimated size of the job (bytes of VEOs)
+        volatile String state;	// waiting, running, finished, or failed
+        String error;		// why the job failed (null if it has not)
+        int veos;		// number of VEOs parsed
+        long elapsed;		// ms taken by the job
+    }
+
+    /**
+     * Constructor
+     *
+     * @param threads the number of worker threads parsing VEOs
+     * @param concurrentJobs the number of jobs run at once
+     */
+    public ManifestBatch(int threads, int concurrentJobs) {
+        this.threads = threads;
+        this.concurrentJobs = concurrentJobs;
+        jobs = new ArrayList<>();
+    }
+
+    /**
+     * Read Jobs
+     *
+     * Read the job list. A file ending in '.json', or starting with '[', is
+     * read as JSON, otherwise as CSV.
+     *
+     * @param file the job list
+     * @throws IOException if the job list could not be read or is malformed
+     */
+    public void readJobs(File file) throws IOException {
+        String s;
+        List<LinkedHashMap<String, String>> rows;
+        BatchJob job;
+        int i;
+
+        s = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        if (s.startsWith("\uFEFF")) {
+            s = s.substring(1);
+        }
+        if (file.getName().toLowerCase().endsWith(".json") || s.trim().startsWith("[")) {
+            rows = new JsonJobs(s).parse();
+        } else {
+            rows = readCsv(s);
+        }
+        for (i = 0; i < rows.size(); i++) {
+            job = new BatchJob();
+            job.number = jobs.size() + 1;
+            job.params = rows.get(i);
+            s = job.params.remove("output");
+            if (s == null) {
+                throw new IOException("Job " + job.number + " in '" + file.getPath() + "' has no output file");
+            }
+            job.output = new File(s);
+            s = job.params.remove("log");
+            job.log = new File(s != null ? s : job.output.getPath() + ".log");
+            job.state = "waiting";
+            jobs.add(job);
+        }
+    }
+
+    /**
+     * Read a CSV job list. The first row names the columns; blank rows and rows
+     * starting with '#' are ignored.
+     */
+    static List<LinkedHashMap<String, String>> readCsv(String s) throws IOException {
+        ArrayList<LinkedHashMap<String, String>> rows;
+        LinkedHashMap<String, String> row;
+        List<String> header, cells;
+        String[] lines;
+        int i, j;
+
+        rows = new ArrayList<>();
+        header = null;
+        lines = s.split("\r?\n");
+        for (i = 0; i < lines.length; i++) {
+            if (lines[i].trim().equals("") || lines[i].startsWith("#")) {
+                continue;
+            }
+            cells = csvCells(lines[i], i + 1);
+            if (header == null) {
+                header = new ArrayList<>();
+                for (String c : cells) {
+                    header.add(c.trim().toLowerCase());
+                }
+                continue;
+            }
+            if (cells.size() > header.size()) {
+                throw new IOException("Line " + (i + 1) + " of job list has more cells than the header");
+            }
+            row = new LinkedHashMap<>();
+            for (j = 0; j < cells.size(); j++) {
+                if (!cells.get(j).trim().equals("")) {
+                    row.put(header.get(j), cells.get(j).trim());
+                }
+            }
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    /**
+     * Split a CSV line into cells. Cells may be quoted ("..."), with "" for a
+     * quote within a quoted cell.
+     */
+    private static List<String> csvCells(String line, int lineNo) throws IOException {
+        ArrayList<String> cells;
+        StringBuilder sb;
+        boolean quoted;
+        char c;
+        int i;
+
+        cells = new ArrayList<>();
+        sb = new StringBuilder();
+        quoted = false;
+        for (i = 0; i < line.length(); i++) {
+            c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    sb.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    sb.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                cells.add(sb.toString());
+                sb.setLength(0);
+            } else {
+                sb.append(c);
+            }
+        }
+        if (quoted) {
+            throw new IOException("Line " + lineNo + " of job list has an unterminated quote");
+        }
+        cells.add(sb.toString());
+        return cells;
+    }
+
+    /**
+     * A minimal reader for a JSON job list: an array of objects whose values
+     * are strings, numbers, true, false, or null (which omits the value).
+     */
+    static class JsonJobs {
+
+        String s;	// the JSON text
+        int pos;	// position of the next character
+
+        JsonJobs(String s) {
+            this.s = s;
+            pos = 0;
+        }
+
+        List<LinkedHashMap<String, String>> parse() throws IOException {
+            ArrayList<LinkedHashMap<String, String>> rows;
+
+            rows = new ArrayList<>();
+            expect('[');
+            if (peek() == ']') {
+                pos++;
+            } else {
+                do {
+                    rows.add(object());
+                } while (separator(']'));
+            }
+            if (peek() != 0) {
+                throw error("unexpected text after the job list");
+            }
+            return rows;
+        }
+
+        private LinkedHashMap<String, String> object() throws IOException {
+            LinkedHashMap<String, String> row;
+            String name, value;
+
+            row = new LinkedHashMap<>();
+            expect('{');
+            if (peek() == '}') {
+                pos++;
+                return row;
+            }
+            do {
+                if (peek() != '"') {
+                    throw error("expected a name");
+                }
+                name = string().toLowerCase();
+                expect(':');
+                value = value();
+                if (value != null) {
+                    row.put(name, value);
+                }
+            } while (separator('}'));
+            return row;
+        }
+
+        private String value() throws IOException {
+            int start;
+            char c;
+
+            c = peek();
+            if (c == '"') {
+                return string();
+            }
+            if (s.startsWith("true", pos)) {
+                pos += 4;
+                return "true";
+            }
+            if (s.startsWith("false", pos)) {
+                pos += 5;
+                return "false";
+            }
+            if (s.startsWith("null", pos)) {
+                pos += 4;
+                return null;
+            }
+            start = pos;
+            while (pos < s.length() && "+-0123456789.eE".indexOf(s.charAt(pos)) != -1) {
+                pos++;
+            }
+            if (pos == start) {
+                throw error("expected a string, number, true, false, or null");
+            }
+            return s.substring(start, pos);
+        }
+
+        private String string() throws IOException {
+            StringBuilder sb;
+            boolean closed;
+            char c;
+
+            expect('"');
+            sb = new StringBuilder();
+            closed = false;
+            while (pos < s.length()) {
+                c = s.charAt(pos++);
+                if (c == '"') {
+                    closed = true;
+                    break;
+                }
+                if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                if (pos >= s.length()) {
+                    break;
+                }
+                c = s.charAt(pos++);
+                switch (c) {
+                    case 'b':
+                        sb.append('\b');
+                        break;
+                    case 'f':
+                        sb.append('\f');
+                        break;
+                    case 'n':
+                        sb.append('\n');
+                        break;
+                    case 'r':
+                        sb.append('\r');
+                        break;
+                    case 't':
+                        sb.append('\t');
+                        break;
+                    case 'u':
+                        if (pos + 4 > s.length()) {
+                            throw error("bad unicode escape");
+                        }
+                        try {
+                            sb.append((char) Integer.parseInt(s.substring(pos, pos + 4), 16));
+                        } catch (NumberFormatException nfe) {
+                            throw error("bad unicode escape");
+                        }
+                        pos += 4;
+                        break;
+                    default:
+                        sb.append(c);
+                }
+            }
+            if (!closed) {
+                throw error("unterminated string");
+            }
+            return sb.toString();
+        }
+
+        /**
+         * After a member: true if a ',' follows, false if the closing character
+         */
+        private boolean separator(char close) throws IOException {
+            char c;
+
+            c = peek();
+            pos++;
+            if (c == ',') {
+                return true;
+            }
+            if (c == close) {
+                return false;
+            }
+            throw error("expected ',' or '" + close + "'");
+        }
+
+        private void expect(char c) throws IOException {
+            if (peek() != c) {
+                throw error("expected '" + c + "'");
+            }
+            pos++;
+        }
+
+        /**
+         * Skip white space, and return the next character (0 at the end)
+         */
+        private char peek() {
+            while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) {
+                pos++;
+            }
+            return pos < s.length() ? s.charAt(pos) : 0;
+        }
+
+        private IOException error(String msg) {
+            return new IOException("Job list is not valid JSON at character " + pos + ": " + msg);
+        }
+    }
+
+    /**
+     * Estimate the size of a job as the total length of its VEOs (in the
+     * directory, and the media directories within it)
+     */
+    static long estimate(LinkedHashMap<String, String> params) {
+        File dir;
+        File[] files, media;
+        String ext;
+        long size;
+        int i, j;
+
+        dir = new File(params.getOrDefault("d", "."));
+        ext = params.getOrDefault("v", ".veo").toLowerCase();
+        files = dir.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        size = 0;
+        for (i = 0; i < files.length; i++) {
+            if (files[i].isDirectory() && params.containsKey("m")) {
+                media = files[i].listFiles();
+                for (j = 0; media != null && j < media.length; j++) {
+                    if (media[j].getName().toLowerCase().endsWith(ext)) {
+                        size += media[j].length();
+                    }
+                }
+            } else if (files[i].getName().toLowerCase().endsWith(ext)) {
+                size += files[i].length();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Run
+     *
+     * Run the jobs, smallest first, and report a summary
+     *
+     * @return the number of jobs that failed
+     */
+    public int run() {
+        ArrayList<BatchJob> order;
+        ExecutorService runners;
+        int failed;
+
+        for (BatchJob job : jobs) {
+            job.size = estimate(job.params);
+        }
+        order = new ArrayList<>(jobs);
+        order.sort(Comparator.comparingLong((BatchJob j) -> j.size).thenComparingInt(j -> j.number));
+
+        pool = V2ManifestGenerator.newWorkerPool(threads);
+        runners = Executors.newFixedThreadPool(concurrentJobs);
+        try {
+            for (BatchJob job : order) {
+                runners.submit(() -> runJob(job));
+            }
+            runners.shutdown();
+            while (!runners.awaitTermination(1, TimeUnit.MINUTES)) {
+                /* keep waiting */
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            runners.shutdownNow();
+        } finally {
+            pool.shutdown();
+        }
+
+        // summarise
+        failed = 0;
+        for (BatchJob job : jobs) {
+            if (!job.state.equals("finished")) {
+                failed++;
+            }
+            System.err.println("Job " + job.number + " ('" + job.output.getPath() + "'): " + job.state
+                    + (job.error != null ? " (" + job.error + ")" : "")
+                    + ", " + job.veos + " VEOs, " + job.elapsed / 1000.0 + "s");
+        }
+        System.err.println((jobs.size() - failed) + " of " + jobs.size() + " jobs succeeded");
+        return failed;
+    }
+
+    /**
+     * Run a job. The manifest is written to a temporary file, which replaces
+     * the output file only if the job succeeds.
+     */
+    private void runJob(BatchJob job) {
+        V2ManifestGenerator mg;
+        PrintStream out, log;
+        File tmp;
+        String[] args;
+        long start;
+
+        start = System.currentTimeMillis();
+        job.state = "running";
+        System.err.println("Starting job " + job.number + " ('" + job.output.getPath() + "')");
+        mg = null;
+        out = null;
+        log = null;
+        tmp = new File(job.output.getPath() + ".tmp");
+        try {
+            args = V2ManifestGenerator.jobArguments(job.params, threads);
+            log = new PrintStream(new FileOutputStream(job.log), true, "UTF-8");
+            out = new PrintStream(new BufferedOutputStream(new FileOutputStream(tmp), 65536), false, "UTF-8");
+            mg = new V2ManifestGenerator(args, out, log, pool);
+            if (!mg.sourceDirectory.isDirectory()) {
+                mg.fail("Source directory '" + mg.sourceDirectory.getPath() + "' is not a directory");
+            }
+            mg.generate();
+            out.close();
+            if (out.checkError()) {
+                throw new IOException("Failed writing '" + tmp.getPath() + "'");
+            }
+            Files.move(tmp.toPath(), job.output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            job.state = "finished";
+        } catch (IOException | RuntimeException e) {
+            job.state = "failed";
+            job.error = e.getMessage() != null ? e.getMessage() : e.toString();
+            if (log != null && !(e instanceof V2ManifestGenerator.Failure)) {
+                log.println("Job failed: " + e.toString());
+            }
+        } finally {
+            if (mg != null) {
+                job.veos = mg.getVeosParsed();
+                mg.shutdown();
+            }
+            if (out != null) {
+                out.close();
+            }
+            if (log != null) {
+                log.close();
+            }
+            tmp.delete();
+            job.elapsed = System.currentTimeMillis() - start;
+            System.err.println("Job " + job.number + " ('" + job.output.getPath() + "') " + job.state);
+        }
+    }
+
+    /**
+     * Main program
+     *
+     * @param args command line args
+     */
+    public static void main(String args[]) {
+        ManifestBatch mb;
+        File jobList;
+        int i, threads, concurrentJobs;
+        String usage = "ManifestBatch [-threads n] [-jobs n] <job list (.csv or .json)>";
+
+        threads = Runtime.getRuntime().availableProcessors();
+        concurrentJobs = 2;
+        jobList = null;
+        try {
+            for (i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    case "-jobs":
+                        concurrentJobs = Integer.parseInt(args[++i]);
+                        break;
+                    default:
+                        if (args[i].startsWith("-") || jobList != null) {
+                            System.err.println("Unrecognised argument '" + args[i] + "'");
+                            System.err.println(usage);
+                            System.exit(-1);
+                        }
+                        jobList = new File(args[i]);
+                }
+            }
+            if (threads < 1 || concurrentJobs < 1) {
+                throw new NumberFormatException("must be positive");
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            System.err.println("Bad argument: " + e.getMessage());
+            System.err.println(usage);
+            System.exit(-1);
+        }
+        if (jobList == null) {
+            System.err.println(usage);
+            System.exit(-1);
+        }
+        mb = new ManifestBatch(threads, concurrentJobs);
+        try {
+            mb.readJobs(jobList);
+        } catch (IOException ioe) {
+            System.err.println("Failed reading job list '" + jobList.getPath() + "': " + ioe.getMessage());
+            System.exit(-1);
+        }
+        if (mb.run() > 0) {
+            System.exit(-1);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package v2manifestgenerator;
+
+/**
+ * *************************************************************
+ *
+ * M A N I F E S T C O L U M N
+ *
+ * The values written for each VEO in a dam:manifest_object_item, in the order
+ * they are written. Each column belongs to a ManifestField (the date field
+ * gives two columns, the start and end dates). The columns are used by the
+ * exports (ManifestExport), which write the same values as the manifest, but
+ * as rows rather than XML elements.
+ * ************************************************************
+ */
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+public enum ManifestColumn {
+    COMPUTER_FILENAME(ManifestField.FILENAME, 256),
+    FILE_IDENTIFIER(ManifestField.FILE_ID, 32),
+    VERS_RECORD_IDENTIFIER(ManifestField.RECORD_ID, 32),
+    VEO_TITLE(ManifestField.TITLE, 1024),
+    VEO_CLASSIFICATION(ManifestField.CLASSIFICATION, 1024),
+    VEO_ACCESS_CATEGORY(ManifestField.ACCESS, 1024),
+    VEO_DISPOSAL_AUTHORITY(ManifestField.DISPOSAL, 1024),
+    VEO_START_DATE(ManifestField.DATES, 0),
+    VEO_END_DATE(ManifestField.DATES, 0),
+    SIZE_KB(ManifestField.SIZE, 0);
+
+    private final ManifestField field;  // field this column belongs to
+    private final int maxLength;        // longest value written (0 if not truncated)
+
+    ManifestColumn(ManifestField field, int maxLength) {
+        this.field = field;
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * getField
+     *
+     * @return the field this column belongs to
+     */
+    public ManifestField getField() {
+        return field;
+    }
+
+    /**
+     * getMaxLength
+     *
+     * @return the number of characters a value is truncated to (0 if the
+     * value is not truncated)
+     */
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    /**
+     * getElementName
+     *
+     * @return the name of the element in the manifest (without the dam:
+     * prefix), e.g. 'veo_title'
+     */
+    public String getElementName() {
+        return name().toLowerCase();
+    }
+
+    /**
+     * isNumeric
+     *
+     * @return true if the value of this column is a number
+     */
+    public boolean isNumeric() {
+        return this == SIZE_KB;
+    }
+
+    /**
+     * forFields
+     *
+     * Return the columns written for a set of fields, in manifest order
+     *
+     * @param fields the set of fields
+     * @return the columns
+     */
+    public static List<ManifestColumn> forFields(EnumSet<ManifestField> fields) {
+        List<ManifestColumn> l;
+
+        l = new ArrayList<>();
+        for (ManifestColumn c : values()) {
+            if (fields.contains(c.field)) {
+                l.add(c);
+            }
+        }
+        return l;
+    }
+}
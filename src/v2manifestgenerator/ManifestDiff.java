@@ -0,0 +1,438 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package v2manifestgenerator;
+
+/**
+ * *************************************************************
+ *
+ * M A N I F E S T D I F F
+ *
+ * This class compares a directory of VEOs against a manifest previously
+ * generated for the consignment, and reports the VEOs that have been added,
+ * removed, or changed.
+ *
+ * The old manifest is parsed with SAX into a compact index keyed by a 64 bit
+ * hash of the dam:computer_filename. In a media export the same filename may
+ * be on more than one piece of media (e.g. disk1/letter.veo and
+ * disk2/letter.veo), but the manifest does not record the media directory of
+ * each VEO. So the key also includes the occurrence of the filename: the nth
+ * item with a filename in the old manifest is matched with the VEO of that
+ * name in the nth media directory (in name order) that holds one. This is the
+ * order in which a sorted manifest lists them. For each entry the index holds only the
+ * dam:size_kb and a 64 bit hash of the content of the
+ * dam:manifest_object_item (about 32 bytes per entry). A manifest does not
+ * record the modification time of each VEO, so the dam:created_timestamp of
+ * the old manifest is used instead: a VEO is only parsed if it is new, if its
+ * size is different, or if it has been modified since the old manifest was
+ * created. A parsed VEO is reported as changed if the content of its entry is
+ * different to the old entry. The removed VEOs are found by a second streaming
+ * pass over the old manifest, so the filenames are never held in memory (only
+ * the paths of the VEOs to be parsed are held until they are compared).
+ *
+ * The chance of two filenames having the same 64 bit hash is negligible
+ * (about one in a million for a consignment of ten million VEOs).
+ * ************************************************************
+ */
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.BitSet;
+import java.util.EnumSet;
+import java.util.HashMap;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+public class ManifestDiff extends DefaultHandler {
+
+    // the index of the old manifest (open addressing, key 0 = empty slot)
+    long[] keys;		// hash of the computer filename and its occurrence
+    int[] sizeKb;		// size_kb of the entry
+    long[] itemHash;	// hash of the content of the entry
+    BitSet seen;		// slots whose VEO has been found in the directory
+    BitSet listed;		// slots passed in the search for removed VEOs
+    HashMap<String, Integer> toCompare; // slots of the VEOs to be parsed (-1 if new)
+    int count;		// number of entries in the index
+    long created;		// time the old manifest was created (ms)
+
+    File oldManifest;	// the manifest being compared against
+    EnumSet<ManifestField> fields; // fields written in the manifest
+    PrintStream out;	// where to write the report
+    PrintStream err;	// where to write progress
+    int added, removed, changed, unchanged; // counts of the VEOs found
+
+    // state of the parse of the old manifest
+    boolean loading;	// true if building the index, false if finding removed
+    StringBuilder value;	// value of the current element
+    String filename;	// dam:computer_filename of the current item
+    String sizeValue;	// dam:size_kb of the current item
+    long hash;		// hash of the current item so far
+    boolean inItem;		// true if within a dam:manifest_object_item
+    boolean nil;		// true if the current element is xsi:nil
+
+    /**
+     * Constructor
+     *
+     * @param oldManifest the manifest previously generated
+     * @param fields the fields written in the manifest
+     * @param out where to write the report
+     * @param err where to write progress
+     */
+    public ManifestDiff(File oldManifest, EnumSet<ManifestField> fields, PrintStream out, PrintStream err) {
+        this.oldManifest = oldManifest;
+        this.fields = fields;
+        this.out = out;
+        this.err = err;
+        keys = new long[1024];
+        sizeKb = new int[1024];
+        itemHash = new long[1024];
+        seen = new BitSet();
+        listed = new BitSet();
+        toCompare = new HashMap<>();
+        count = 0;
+        created = 0;
+        value = new StringBuilder();
+        added = 0;
+        removed = 0;
+        changed = 0;
+        unchanged = 0;
+    }
+
+    /**
+     * Load
+     *
+     * Parse the old manifest and build the index
+     *
+     * @throws IOException if the old manifest could not be read or parsed
+     */
+    public void load() throws IOException {
+        loading = true;
+        parseManifest();
+        err.println("Loaded " + count + " entries from '" + oldManifest.getPath() + "'");
+    }
+
+    /**
+     * Needs Parse
+     *
+     * Checks a VEO found in the directory against the index. The VEO is marked
+     * as seen. Returns true if the VEO must be parsed (i.e. it is new, or its
+     * size or modification time indicates that it may have changed). The media
+     * directories must be checked in name order.
+     *
+     * @param veo the VEO found in the directory
+     * @return true if the VEO must be parsed
+     */
+    public boolean needsParse(File veo) {
+        String name;
+        int slot, n;
+
+        // find the first item with this filename not already matched
+        name = ManifestEntry.trunc(veo.getName(), 256);
+        n = 0;
+        while (keys[slot = find(nameHash(name, n))] != 0 && seen.get(slot)) {
+            n++;
+        }
+        if (keys[slot] == 0) {
+            toCompare.put(veo.getAbsolutePath(), -1);
+            return true;
+        }
+        seen.set(slot);
+        if (sizeKb[slot] != Math.round(veo.length() / 1000) || veo.lastModified() >= created) {
+            toCompare.put(veo.getAbsolutePath(), slot);
+            return true;
+        }
+        unchanged++;
+        return false;
+    }
+
+    /**
+     * Compare
+     *
+     * Compare the entry of a parsed VEO against the index, and report it if it
+     * has been added or changed.
+     *
+     * @param e the entry for the VEO
+     */
+    public void compare(ManifestEntry e) {
+        Integer slot;
+
+        slot = toCompare.remove(new File(e.getDirectory(), e.getFilename()).getAbsolutePath());
+        if (slot == null || slot == -1) {
+            out.println("ADDED   " + e.getComputerFilename());
+            added++;
+        } else if (itemHash[slot] != entryHash(e)) {
+            out.println("CHANGED " + e.getComputerFilename());
+            changed++;
+        } else {
+            unchanged++;
+        }
+    }
+
+    /**
+     * Finish
+     *
+     * Report the VEOs in the old manifest that were not found in the
+     * directory, and a summary of the differences.
+     *
+     * @throws IOException if the old manifest could not be read or parsed
+     */
+    public void finish() throws IOException {
+        loading = false;
+        toCompare.clear();
+        parseManifest();
+        err.println("Added: " + added + ", Changed: " + changed + ", Removed: " + removed + ", Unchanged: " + unchanged);
+    }
+
+    /**
+     * Parse the old manifest, either building the index or reporting the
+     * entries not seen
+     */
+    private void parseManifest() throws IOException {
+        SAXParser sax;
+
+        try {
+            sax = VEOParser.newSAXParser();
+            sax.parse(oldManifest, this);
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new IOException("Failed parsing '" + oldManifest.getPath() + "': " + e.getMessage());
+        }
+    }
+
+    /**
+     * SAX Events captured
+     */
+    @Override
+    public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+        String name;
+
+        name = stripPrefix(qName);
+        if (name.equals("manifest_object_item")) {
+            inItem = true;
+            filename = null;
+            sizeValue = null;
+            hash = 0xcbf29ce484222325L;
+        }
+        nil = "true".equals(attributes.getValue("xsi:nil"));
+        value.setLength(0);
+    }
+
+    @Override
+    public void characters(char[] ch, int start, int length) {
+        value.append(ch, start, length);
+    }
+
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+        String name, v;
+        long key;
+        int slot, n;
+
+        name = stripPrefix(qName);
+        if (name.equals("created_timestamp")) {
+            created = parseTimestamp(value.toString().trim());
+            return;
+        }
+        if (!inItem) {
+            return;
+        }
+        switch (name) {
+            case "manifest_object_item":
+                inItem = false;
+                if (filename == null) {
+                    throw new SAXException("dam:manifest_object_item without a dam:computer_filename");
+                }
+                // each occurrence of a filename has its own slot
+                n = 0;
+                if (loading) {
+                    while (keys[slot = find(key = nameHash(filename, n))] != 0) {
+                        n++;
+                    }
+                    keys[slot] = key;
+                    count++;
+                    sizeKb[slot] = parseSize(sizeValue);
+                    itemHash[slot] = hash;
+                    if (count * 3 > keys.length * 2) {
+                        grow();
+                    }
+                } else {
+                    while (listed.get(slot = find(nameHash(filename, n)))) {
+                        n++;
+                    }
+                    listed.set(slot);
+                    if (!seen.get(slot)) {
+                        out.println("REMOVED " + filename);
+                        removed++;
+                    }
+                }
+                return;
+            case "veo_date_range":
+                return;
+            default:
+                break;
+        }
+        if (nil) {
+            hash = addHash(addHash(hash, name), null);
+            nil = false;
+            return;
+        }
+        v = ManifestEntry.escape(value.toString());
+        if (name.equals("computer_filename")) {
+            filename = v;
+        } else if (name.equals("size_kb")) {
+            sizeValue = v;
+        }
+        hash = addHash(addHash(hash, name), v);
+    }
+
+    /**
+     * Entry Hash
+     *
+     * Calculate the hash of the content of an entry, in the same way as the
+     * hash of an item in the old manifest is calculated.
+     */
+    private long entryHash(ManifestEntry e) {
+        long h;
+
+        h = 0xcbf29ce484222325L;
+        if (fields.contains(ManifestField.FILENAME)) {
+            h = addHash(addHash(h, "computer_filename"), e.getComputerFilename());
+        }
+        if (fields.contains(ManifestField.FILE_ID)) {
+            h = addHash(addHash(h, "file_identifier"), e.getFileIdentifier());
+        }
+        if (fields.contains(ManifestField.RECORD_ID)) {
+            h = addHash(addHash(h, "vers_record_identifier"), e.getRecordIdentifier());
+        }
+        if (fields.contains(ManifestField.TITLE)) {
+            h = addHash(addHash(h, "veo_title"), e.getTitle());
+        }
+        if (fields.contains(ManifestField.CLASSIFICATION)) {
+            h = addHash(addHash(h, "veo_classification"), e.getClassification());
+        }
+        if (fields.contains(ManifestField.ACCESS)) {
+            h = addHash(addHash(h, "veo_access_category"), e.getAccessCategory());
+        }
+        if (fields.contains(ManifestField.DISPOSAL)) {
+            h = addHash(addHash(h, "veo_disposal_authority"), e.getDisposalAuthority());
+        }
+        if (fields.contains(ManifestField.DATES)) {
+            h = addHash(addHash(h, "veo_start_date"), e.getStartDate());
+            h = addHash(addHash(h, "veo_end_date"), e.getEndDate());
+        }
+        if (fields.contains(ManifestField.SIZE)) {
+            h = addHash(addHash(h, "size_kb"), Long.toString(e.getSizeKb()));
+        }
+        return h;
+    }
+
+    /**
+     * Add a string to a FNV-1a hash. Each string is terminated so that
+     * ("ab", "c") and ("a", "bc") hash differently. A null string (an xsi:nil
+     * element) hashes differently to an empty string.
+     */
+    private static long addHash(long h, String s) {
+        int i;
+
+        if (s == null) {
+            return (h ^ 0xfffe) * 0x100000001b3L;
+        }
+        for (i = 0; i < s.length(); i++) {
+            h = (h ^ s.charAt(i)) * 0x100000001b3L;
+        }
+        return (h ^ 0xffff) * 0x100000001b3L;
+    }
+
+    /**
+     * Hash of the nth occurrence (from 0) of a filename used as the key of the
+     * index (never zero)
+     */
+    private static long nameHash(String filename, int n) {
+        long h;
+
+        h = addHash(0xcbf29ce484222325L, filename);
+        if (n > 0) {
+            h = addHash(h, Integer.toString(n));
+        }
+        h = LongHashSet.mix(h);
+        return h == 0 ? 1 : h;
+    }
+
+    /**
+     * Parse a dam:size_kb. A missing or invalid size is returned as -1, so
+     * the VEO is always parsed.
+     */
+    private static int parseSize(String s) {
+        if (s == null) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(s.trim());
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+
+    /**
+     * Find the slot holding a key, or the empty slot where it would go
+     */
+    private int find(long key) {
+        int i, mask;
+
+        mask = keys.length - 1;
+        i = (int) key & mask;
+        while (keys[i] != 0 && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    /**
+     * Double the size of the index
+     */
+    private void grow() {
+        long[] oldKeys, oldHash;
+        int[] oldSize;
+        int i, slot;
+
+        oldKeys = keys;
+        oldSize = sizeKb;
+        oldHash = itemHash;
+        keys = new long[oldKeys.length * 2];
+        sizeKb = new int[keys.length];
+        itemHash = new long[keys.length];
+        for (i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                slot = find(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                sizeKb[slot] = oldSize[i];
+                itemHash[slot] = oldHash[i];
+            }
+        }
+    }
+
+    private static String stripPrefix(String qName) {
+        int i;
+
+        i = qName.indexOf(':');
+        return i == -1 ? qName : qName.substring(i + 1);
+    }
+
+    /**
+     * Parse a dam:created_timestamp (e.g. 2020-01-02T03:04:05+10:00)
+     */
+    private static long parseTimestamp(String s) throws SAXException {
+        try {
+            return OffsetDateTime.parse(s.trim(), DateTimeFormatter.ISO_OFFSET_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException dtpe) {
+            throw new SAXException("Invalid dam:created_timestamp '" + s + "'");
+        }
+    }
+}
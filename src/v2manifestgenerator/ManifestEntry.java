@@ -0,0 +1,596 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package v2manifestgenerator;
+
+/**
+ * *************************************************************
+ *
+ * M A N I F E S T E N T R Y
+ *
+ * The information extracted from one VEO. An entry is generated by a
+ * VEOParser, and is rendered as a dam:manifest_object_item in the manifest.
+ *
+ * The captured values are held exactly as they were captured from the VEO
+ * (i.e. not escaped, trimmed, or truncated). Escaping the XML special
+ * characters, trimming and truncation is done when the entry is rendered, so
+ * the exports (which are not XML) can have the values without the escaping.
+ *
+ * Entries can be written to, and read from, a binary stream. This is used to
+ * spill entries to temporary files when sorting a large manifest.
+ * ************************************************************
+ */
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.EnumSet;
+import java.util.List;
+
+public class ManifestEntry {
+
+    // information about the VEO file
+    String directory;	// path of the directory containing the VEO
+    String filename;	// name of the VEO file
+    long length;		// length of the VEO in bytes
+    long lastModified;	// time the VEO was last modified
+
+    // information extracted from the VEO
+    boolean record;		// true if this VEO contains a record VEO
+    String fileIdentifier;	// vers:FileIdentifier
+    String recIdentifier;	// vers:RecordIdentifier
+    String titleWords;	// vers:TitleWords
+    String function;	// vers:FunctionDescriptor (et al)
+    String subject;		// vers:Subject (et al)
+    String accessStatus;	// naa:AccessStatus
+    String sentence;	// naa:Sentence
+    String dateRegistered;	// naa:DateTimeRegistered
+    String dateClosed;	// vers:DateTimeClosed
+
+    // SHA-256 digest of the content of the VEO (null if not taken). Only used
+    // to find identical VEOs, so is not written to a stream.
+    byte[] digest;
+
+    /**
+     * Construct an empty entry. Used when reading an entry from a stream.
+     */
+    ManifestEntry() {
+    }
+
+    /**
+     * Construct an entry for a VEO. Only the file information is filled in.
+     *
+     * @param veo the VEO file
+     */
+    public ManifestEntry(File veo) {
+        File parent;
+
+        parent = veo.getAbsoluteFile().getParentFile();
+        directory = parent != null ? parent.getPath() : "";
+        filename = veo.getName();
+        length = veo.length();
+        lastModified = veo.lastModified();
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public String getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Get File Identifier
+     *
+     * @return the file identifier as it is written in the manifest (null if
+     * not captured)
+     */
+    public String getFileIdentifier() {
+        return value(ManifestColumn.FILE_IDENTIFIER, true);
+    }
+
+    /**
+     * Get Record Identifier
+     *
+     * @return the record identifier as it is written in the manifest (null if
+     * not present)
+     */
+    public String getRecordIdentifier() {
+        return value(ManifestColumn.VERS_RECORD_IDENTIFIER, true);
+    }
+
+    /**
+     * Field values
+     *
+     * The following methods return the values of the fields exactly as they
+     * are written in the manifest (i.e. escaped, trimmed, truncated, and with
+     * the default values substituted). A null value is written as an element
+     * with xsi:nil="true".
+     */
+    public String getComputerFilename() {
+        return value(ManifestColumn.COMPUTER_FILENAME, true);
+    }
+
+    public String getTitle() {
+        return value(ManifestColumn.VEO_TITLE, true);
+    }
+
+    public String getClassification() {
+        return value(ManifestColumn.VEO_CLASSIFICATION, true);
+    }
+
+    public String getAccessCategory() {
+        return value(ManifestColumn.VEO_ACCESS_CATEGORY, true);
+    }
+
+    public String getDisposalAuthority() {
+        return value(ManifestColumn.VEO_DISPOSAL_AUTHORITY, true);
+    }
+
+    public String getStartDate() {
+        return value(ManifestColumn.VEO_START_DATE, true);
+    }
+
+    public String getEndDate() {
+        return value(ManifestColumn.VEO_END_DATE, true);
+    }
+
+    public long getSizeKb() {
+        return Math.round(length / 1000);
+    }
+
+    public boolean isRecord() {
+        return record;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Value
+     *
+     * Return the value of a column as it is written in the manifest. The
+     * value is truncated before the XML special characters are escaped, so the
+     * cut is never inside an entity (e.g. '&amp;'), and the length is that of
+     * the value the archive reads (which is what the schema limits). For the
+     * exports the value is not escaped, so is the same as in the manifest. The
+     * computer filename has never been escaped. The dates are normalised (see
+     * VersDate).
+     *
+     * @param column the column
+     * @param xml true if the value is to be escaped for XML
+     * @return the value (null if it is written as xsi:nil="true")
+     */
+    public String value(ManifestColumn column, boolean xml) {
+        switch (column) {
+            case COMPUTER_FILENAME:
+                return trunc(filename, column.getMaxLength());
+            case FILE_IDENTIFIER:
+                return fileIdentifier == null ? null : text(trunc(fileIdentifier, column.getMaxLength()), xml);
+            case VERS_RECORD_IDENTIFIER:
+                return recIdentifier == null ? null : text(trunc(recIdentifier, column.getMaxLength()), xml);
+            case VEO_TITLE:
+                return text(trunc(titleWords, column.getMaxLength()), xml);
+            case VEO_CLASSIFICATION:
+                if (function != null) {
+                    return text(trunc(function, column.getMaxLength()), xml);
+                } else if (subject != null) {
+                    return text(trunc(subject, column.getMaxLength()), xml);
+                }
+                return "No classification";
+            case VEO_ACCESS_CATEGORY:
+                return accessStatus != null ? text(trunc(accessStatus, column.getMaxLength()), xml) : "None";
+            case VEO_DISPOSAL_AUTHORITY:
+                return text(trunc(sentence, column.getMaxLength()), xml);
+            case VEO_START_DATE:
+                return dateRegistered == null ? null : text(VersDate.normalise(dateRegistered), xml);
+            case VEO_END_DATE:
+                if (record) {
+                    return null;
+                }
+                return dateClosed != null ? text(VersDate.normalise(dateClosed), xml) : "Not closed";
+            case SIZE_KB:
+                return Long.toString(getSizeKb());
+            default:
+                throw new IllegalArgumentException("Unknown column " + column);
+        }
+    }
+
+    /**
+     * Check Dates
+     *
+     * Check that the start date (vers:DateTimeRegistered) and, for a file, the
+     * end date (vers:DateTimeClosed) are valid VERS dates, and that the file
+     * was not closed before it was registered.
+     *
+     * @return a description of the problem, or null if the dates are valid
+     */
+    public String checkDates() {
+        VersDate start, end;
+
+        if (dateRegistered == null) {
+            return "no start date";
+        }
+        if ((start = VersDate.parse(dateRegistered)) == null) {
+            return "invalid start date '" + dateRegistered.trim() + "'";
+        }
+        if (record || dateClosed == null) {
+            return null;
+        }
+        if ((end = VersDate.parse(dateClosed)) == null) {
+            return "invalid end date '" + dateClosed.trim() + "'";
+        }
+        if (end.isBefore(start)) {
+            return "closed (" + end + ") before registered (" + start + ")";
+        }
+        return null;
+    }
+
+    /**
+     * Check Required
+     *
+     * Check that the VEO has the values of the selected fields that the
+     * manifest requires (i.e. the elements that the schema does not allow to
+     * be nil).
+     *
+     * @param fields the fields to be written
+     * @return a description of the missing value, or null if none is missing
+     */
+    public String checkRequired(EnumSet<ManifestField> fields) {
+        if (fields.contains(ManifestField.FILE_ID) && fileIdentifier == null) {
+            return "no vers:FileIdentifier";
+        }
+        if (fields.contains(ManifestField.TITLE) && titleWords == null) {
+            return "no naa:TitleWords";
+        }
+        if (fields.contains(ManifestField.DISPOSAL) && sentence == null) {
+            return "no naa:Sentence";
+        }
+        return null;
+    }
+
+    /**
+     * Is Truncated
+     *
+     * @param columns the columns written
+     * @return true if any of the values written was truncated
+     */
+    public boolean isTruncated(List<ManifestColumn> columns) {
+        String s;
+
+        for (ManifestColumn c : columns) {
+            if (c.getMaxLength() == 0) {
+                continue;
+            }
+            switch (c) {
+                case COMPUTER_FILENAME:
+                    s = filename;
+                    break;
+                case FILE_IDENTIFIER:
+                    s = fileIdentifier;
+                    break;
+                case VERS_RECORD_IDENTIFIER:
+                    s = recIdentifier;
+                    break;
+                case VEO_TITLE:
+                    s = titleWords;
+                    break;
+                case VEO_CLASSIFICATION:
+                    s = function != null ? function : subject;
+                    break;
+                case VEO_ACCESS_CATEGORY:
+                    s = accessStatus;
+                    break;
+                default:
+                    s = sentence;
+                    break;
+            }
+            if (s == null) {
+                continue;
+            }
+            if (s.trim().length() > c.getMaxLength()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String text(String value, boolean xml) {
+        return xml ? escape(value) : value;
+    }
+
+    /**
+     * Escape
+     *
+     * Escape the XML special characters ('&', '<', and '>') in a value
+     * captured from a VEO. The runs of characters between the special
+     * characters are copied in one go. Most values contain none, and are
+     * returned as is.
+     */
+    static String escape(String value) {
+        StringBuilder sb;
+        String entity;
+        int i, run, n;
+
+        sb = null;
+        run = 0;
+        n = value.length();
+        for (i = 0; i < n; i++) {
+            switch (value.charAt(i)) {
+                case '&':
+                    entity = "&amp;";
+                    break;
+                case '<':
+                    entity = "&lt;";
+                    break;
+                case '>':
+                    entity = "&gt;";
+                    break;
+                default:
+                    continue;
+            }
+            if (sb == null) {
+                sb = new StringBuilder(n + 16);
+            }
+            sb.append(value, run, i);
+            sb.append(entity);
+            run = i + 1;
+        }
+        if (sb == null) {
+            return value;
+        }
+        sb.append(value, run, n);
+        return sb.toString();
+    }
+
+    /**
+     * Render
+     *
+     * Generate the dam:manifest_object_item for this VEO. Only the selected
+     * fields are written.
+     *
+     * @param fields the fields to be written
+     * @return string containing the dam:manifest_object_item
+     */
+    public String render(EnumSet<ManifestField> fields) {
+        StringBuffer sb;
+        String s;
+
+        sb = new StringBuffer();
+        sb.append("   <dam:manifest_object_item>\n");
+
+        // dam:computer_filename from File.getAbsoluteFile()
+        if (fields.contains(ManifestField.FILENAME)) {
+            sb.append("    <dam:computer_filename>");
+            sb.append(getComputerFilename());
+            sb.append("</dam:computer_filename>\n");
+        }
+
+        // dam:file_identifier from fileIdentifier (which is required, see
+        // checkRequired())
+        if (fields.contains(ManifestField.FILE_ID)) {
+            sb.append("    <dam:file_identifier>");
+            sb.append(getFileIdentifier());
+            sb.append("</dam:file_identifier>\n");
+        }
+
+        // dam:record_identifier from recIdentifier if not null else empty elem
+        if (fields.contains(ManifestField.RECORD_ID)) {
+            s = getRecordIdentifier();
+            if (s != null) {
+                sb.append("    <dam:vers_record_identifier>");
+                sb.append(s);
+                sb.append("</dam:vers_record_identifier>\n");
+            } else {
+                sb.append("    <dam:vers_record_identifier xsi:nil=\"true\"/>\n");
+            }
+        }
+
+        // dam:veo_title from titlewords
+        if (fields.contains(ManifestField.TITLE)) {
+            sb.append("    <dam:veo_title>");
+            sb.append(getTitle());
+            sb.append("</dam:veo_title>\n");
+        }
+
+        // dam:classification from function, subject, or default value
+        if (fields.contains(ManifestField.CLASSIFICATION)) {
+            sb.append("    <dam:veo_classification>");
+            sb.append(getClassification());
+            sb.append("</dam:veo_classification>\n");
+        }
+
+        // dam:veo_access_category from accessStatus or default value
+        if (fields.contains(ManifestField.ACCESS)) {
+            sb.append("    <dam:veo_access_category>");
+            sb.append(getAccessCategory());
+            sb.append("</dam:veo_access_category>\n");
+        }
+
+        // dam:veo_disposal_authority from sentence
+        if (fields.contains(ManifestField.DISPOSAL)) {
+            sb.append("    <dam:veo_disposal_authority>");
+            sb.append(getDisposalAuthority());
+            sb.append("</dam:veo_disposal_authority>\n");
+        }
+
+        if (fields.contains(ManifestField.DATES)) {
+            // start a date range
+            sb.append("    <dam:veo_date_range>\n");
+
+            // dam:veo_start_date is vers:DateTimeRegistered (empty if not present)
+            s = getStartDate();
+            if (s == null) {
+                sb.append("     <dam:veo_start_date xsi:nil=\"true\"/>\n");
+            } else {
+                sb.append("     <dam:veo_start_date>");
+                sb.append(s);
+                sb.append("</dam:veo_start_date>\n");
+            }
+
+            // dam:veo_end_date is empty (if record) or dateClosed (if a file & present)
+            s = getEndDate();
+            if (s == null) {
+                sb.append("     <dam:veo_end_date xsi:nil=\"true\"/>\n");
+            } else {
+                sb.append("     <dam:veo_end_date>");
+                sb.append(s);
+                sb.append("</dam:veo_end_date>\n");
+            }
+            sb.append("    </dam:veo_date_range>\n");
+        }
+
+        // dam:veo_size_kb from File.getLength()
+        if (fields.contains(ManifestField.SIZE)) {
+            sb.append("    <dam:size_kb>");
+            sb.append(getSizeKb());
+            sb.append("</dam:size_kb>\n");
+        }
+        sb.append("   </dam:manifest_object_item>\n");
+
+        // return string containing dam:manifest_object_item
+        return sb.toString();
+    }
+
+    /**
+     * Truncate an element
+     *
+     * This function trims the leading and trailing whitespace from a string, It
+     * then truncates the result to a fixed length. If data is lost, a '*' is
+     * appended. The string is not cut between the two halves of a surrogate
+     * pair (a character outside the Basic Multilingual Plane), as half a pair
+     * is not valid in XML; the whole pair is dropped instead.
+     */
+    static String trunc(String value, int maxLen) {
+        String s;
+        int cut;
+
+        s = value.trim();
+        if (maxLen < 1) {
+            maxLen = 1;
+        }
+        if (s.length() > maxLen) {
+            cut = maxLen - 1;
+            if (cut > 0 && Character.isHighSurrogate(s.charAt(cut - 1)) && Character.isLowSurrogate(s.charAt(cut))) {
+                cut--;
+            }
+            s = s.substring(0, cut) + "*";
+        }
+        return s;
+    }
+
+    /**
+     * Estimate Size
+     *
+     * Returns a rough estimate of the number of bytes of heap occupied by this
+     * entry. Used to bound the memory used when sorting.
+     *
+     * @return estimated size in bytes
+     */
+    public long estimateSize() {
+        return 96
+                + sizeOf(directory) + sizeOf(filename)
+                + sizeOf(fileIdentifier) + sizeOf(recIdentifier)
+                + sizeOf(titleWords) + sizeOf(function) + sizeOf(subject)
+                + sizeOf(accessStatus) + sizeOf(sentence)
+                + sizeOf(dateRegistered) + sizeOf(dateClosed);
+    }
+
+    private static long sizeOf(String s) {
+        return s == null ? 0 : 48 + 2L * s.length();
+    }
+
+    /**
+     * Write
+     *
+     * Write this entry to a binary stream. The entry can be recovered by
+     * read().
+     *
+     * @param out the stream to write to
+     * @throws IOException if the write failed
+     */
+    public void write(DataOutput out) throws IOException {
+        writeString(out, directory);
+        writeString(out, filename);
+        out.writeLong(length);
+        out.writeLong(lastModified);
+        out.writeBoolean(record);
+        writeString(out, fileIdentifier);
+        writeString(out, recIdentifier);
+        writeString(out, titleWords);
+        writeString(out, function);
+        writeString(out, subject);
+        writeString(out, accessStatus);
+        writeString(out, sentence);
+        writeString(out, dateRegistered);
+        writeString(out, dateClosed);
+    }
+
+    /**
+     * Read
+     *
+     * Read an entry previously written by write().
+     *
+     * @param in the stream to read from
+     * @return the entry read
+     * @throws IOException if the read failed (including end of file)
+     */
+    public static ManifestEntry read(DataInput in) throws IOException {
+        ManifestEntry e;
+
+        e = new ManifestEntry();
+        e.directory = readString(in);
+        e.filename = readString(in);
+        e.length = in.readLong();
+        e.lastModified = in.readLong();
+        e.record = in.readBoolean();
+        e.fileIdentifier = readString(in);
+        e.recIdentifier = readString(in);
+        e.titleWords = readString(in);
+        e.function = readString(in);
+        e.subject = readString(in);
+        e.accessStatus = readString(in);
+        e.sentence = readString(in);
+        e.dateRegistered = readString(in);
+        e.dateClosed = readString(in);
+        return e;
+    }
+
+    /**
+     * Write a (possibly null) string as a length followed by UTF-8 bytes. A
+     * length of -1 denotes null. Unlike writeUTF() there is no 64K limit.
+     */
+    static void writeString(DataOutput out, String s) throws IOException {
+        byte[] b;
+
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        b = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    static String readString(DataInput in) throws IOException {
+        byte[] b;
+        int len;
+
+        len = in.readInt();
+        if (len == -1) {
+            return null;
+        }
+        b = new byte[len];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+}
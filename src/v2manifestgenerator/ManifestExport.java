@@ -0,0 +1,551 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package v2manifestgenerator;
+
+/**
+ * *************************************************************
+ *
+ * M A N I F E S T E X P O R T
+ *
+ * This class writes the entries to a file for analysis (the -export argument)
+ * at the same time as the manifest is generated. Each entry is written as it
+ * is produced (i.e. in the order the VEOs are parsed, not sorted), with the
+ * same values as the dam:manifest_object_item in the manifest (one column
+ * for each selected field, see ManifestColumn), but without the XML escaping.
+ *
+ * The format of the export depends on the extension of the file:
+ * '.jsonl' JSON Lines. Each entry is a JSON object on a line of its own, with
+ * the element names as keys. A nil value is null, and size_kb is a number.
+ * '.csv' Comma separated values. The first row lists the element names. A
+ * nil value is an empty cell. Values containing a comma, quote, or line break
+ * are quoted.
+ * '.col' A compact binary columnar format. The entries are written in blocks
+ * of up to BLOCK_ROWS rows; within a block each column is written in turn.
+ * Text columns are dictionary encoded (each distinct value is written once,
+ * followed by the index of the value of each row), so the repetitive columns
+ * (e.g. classification and access category) take little space. Numeric
+ * columns are written as variable length integers. The format is:
+ *   MAGIC (writeUTF), VERSION (int), number of columns (int),
+ *   for each column: element name (writeUTF), type ('S' text, 'N' number),
+ *   for each block: number of rows (int), then for each column:
+ *     text: number of distinct values (varint), the values (varint length
+ *       of UTF-8 then the bytes), then for each row the index of the value
+ *       plus one (varint, 0 denotes nil)
+ *     number: for each row the value (varint)
+ *   a block of zero rows ends the file.
+ * Running this class with a '.col' file as the argument writes the file to
+ * standard out as CSV.
+ * ************************************************************
+ */
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+
+public abstract class ManifestExport implements EntrySink {
+
+    File file;		// the file being written
+    List<ManifestColumn> columns; // the columns written for each entry
+    int rows;		// number of entries written
+
+    /**
+     * Constructor
+     *
+     * @param file the file to be written
+     * @param fields the fields selected for the manifest
+     */
+    ManifestExport(File file, EnumSet<ManifestField> fields) {
+        this.file = file;
+        columns = ManifestColumn.forFields(fields);
+        rows = 0;
+    }
+
+    /**
+     * Format
+     *
+     * Return the format of an export from the extension of the file
+     *
+     * @param file the file to be written
+     * @return 'jsonl', 'csv', or 'col' (null if not recognised)
+     */
+    public static String format(File file) {
+        String name;
+
+        name = file.getName().toLowerCase();
+        if (name.endsWith(".jsonl")) {
+            return "jsonl";
+        } else if (name.endsWith(".csv")) {
+            return "csv";
+        } else if (name.endsWith(".col")) {
+            return "col";
+        }
+        return null;
+    }
+
+    /**
+     * Open
+     *
+     * Create the export in the format given by the extension of the file
+     *
+     * @param file the file to be written
+     * @param fields the fields selected for the manifest
+     * @return the export
+     * @throws IOException if the file could not be created
+     */
+    public static ManifestExport open(File file, EnumSet<ManifestField> fields) throws IOException {
+        String format;
+
+        format = format(file);
+        if (format == null) {
+            throw new IOException("the file name must end in .jsonl, .csv, or .col");
+        }
+        switch (format) {
+            case "jsonl":
+                return new JsonLines(file, fields);
+            case "csv":
+                return new Csv(file, fields);
+            default:
+                return new Columnar(file, fields);
+        }
+    }
+
+    /**
+     * Finish
+     *
+     * Write anything outstanding and close the file
+     *
+     * @throws IOException if the file could not be written
+     */
+    public abstract void finish() throws IOException;
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    static Writer openWriter(File file) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), 65536);
+    }
+
+    /**
+     * J S O N L I N E S
+     */
+    static class JsonLines extends ManifestExport {
+
+        Writer w;		// the file being written
+        StringBuilder sb;	// the line being built
+
+        JsonLines(File file, EnumSet<ManifestField> fields) throws IOException {
+            super(file, fields);
+            w = openWriter(file);
+            sb = new StringBuilder();
+        }
+
+        @Override
+        public void entry(ManifestEntry e) throws IOException {
+            ManifestColumn c;
+            String v;
+            int i;
+
+            sb.setLength(0);
+            sb.append('{');
+            for (i = 0; i < columns.size(); i++) {
+                c = columns.get(i);
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append('"');
+                sb.append(c.getElementName());
+                sb.append("\":");
+                v = e.value(c, false);
+                if (v == null) {
+                    sb.append("null");
+                } else if (c.isNumeric()) {
+                    sb.append(v);
+                } else {
+                    quote(sb, v);
+                }
+            }
+            sb.append("}\n");
+            w.append(sb);
+            rows++;
+        }
+
+        /**
+         * Append a value as a JSON string
+         */
+        static void quote(StringBuilder sb, String v) {
+            int i;
+            char c;
+
+            sb.append('"');
+            for (i = 0; i < v.length(); i++) {
+                c = v.charAt(i);
+                switch (c) {
+                    case '"':
+                        sb.append("\\\"");
+                        break;
+                    case '\\':
+                        sb.append("\\\\");
+                        break;
+                    case '\n':
+                        sb.append("\\n");
+                        break;
+                    case '\r':
+                        sb.append("\\r");
+                        break;
+                    case '\t':
+                        sb.append("\\t");
+                        break;
+                    default:
+                        if (c < 0x20) {
+                            sb.append(String.format("\\u%04x", (int) c));
+                        } else {
+                            sb.append(c);
+                        }
+                        break;
+                }
+            }
+            sb.append('"');
+        }
+
+        @Override
+        public void finish() throws IOException {
+            w.close();
+        }
+    }
+
+    /**
+     * C S V
+     */
+    static class Csv extends ManifestExport {
+
+        Writer w;		// the file being written
+        StringBuilder sb;	// the row being built
+        String[] values;	// the values of the row
+
+        Csv(File file, EnumSet<ManifestField> fields) throws IOException {
+            super(file, fields);
+            int i;
+
+            w = openWriter(file);
+            sb = new StringBuilder();
+            values = new String[columns.size()];
+            for (i = 0; i < values.length; i++) {
+                values[i] = columns.get(i).getElementName();
+            }
+            row(sb, values);
+            w.append(sb);
+        }
+
+        @Override
+        public void entry(ManifestEntry e) throws IOException {
+            int i;
+
+            for (i = 0; i < values.length; i++) {
+                values[i] = e.value(columns.get(i), false);
+            }
+            row(sb, values);
+            w.append(sb);
+            rows++;
+        }
+
+        /**
+         * Build a row of the CSV file in sb. A null value is an empty cell.
+         */
+        static void row(StringBuilder sb, String[] values) {
+            String v;
+            int i, j;
+            char c;
+            boolean quote;
+
+            sb.setLength(0);
+            for (i = 0; i < values.length; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                v = values[i];
+                if (v == null) {
+                    continue;
+                }
+                quote = false;
+                for (j = 0; j < v.length() && !quote; j++) {
+                    c = v.charAt(j);
+                    quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+                }
+                if (!quote) {
+                    sb.append(v);
+                    continue;
+                }
+                sb.append('"');
+                for (j = 0; j < v.length(); j++) {
+                    c = v.charAt(j);
+                    if (c == '"') {
+                        sb.append('"');
+                    }
+                    sb.append(c);
+                }
+                sb.append('"');
+            }
+            sb.append("\r\n");
+        }
+
+        @Override
+        public void finish() throws IOException {
+            w.close();
+        }
+    }
+
+    /**
+     * C O L U M N A R
+     */
+    static class Columnar extends ManifestExport {
+
+        static final String MAGIC = "V2ManifestGenerator columnar export";
+        static final int VERSION = 1;
+        static final int BLOCK_ROWS = 8192;
+
+        DataOutputStream dos;	// the file being written
+        String[][] block;	// values of the rows in the block (by column)
+        int inBlock;		// number of rows in the block
+
+        Columnar(File file, EnumSet<ManifestField> fields) throws IOException {
+            super(file, fields);
+
+            dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+            dos.writeUTF(MAGIC);
+            dos.writeInt(VERSION);
+            dos.writeInt(columns.size());
+            for (ManifestColumn c : columns) {
+                dos.writeUTF(c.getElementName());
+                dos.writeByte(c.isNumeric() ? 'N' : 'S');
+            }
+            block = new String[columns.size()][BLOCK_ROWS];
+            inBlock = 0;
+        }
+
+        @Override
+        public void entry(ManifestEntry e) throws IOException {
+            int i;
+
+            for (i = 0; i < block.length; i++) {
+                block[i][inBlock] = e.value(columns.get(i), false);
+            }
+            inBlock++;
+            rows++;
+            if (inBlock == BLOCK_ROWS) {
+                writeBlock();
+            }
+        }
+
+        /**
+         * Write the rows in the block, column by column
+         */
+        private void writeBlock() throws IOException {
+            HashMap<String, Integer> dictionary;
+            List<String> values;
+            int[] index;
+            String[] col;
+            Integer j;
+            int i, k;
+
+            dos.writeInt(inBlock);
+            dictionary = new HashMap<>();
+            values = new ArrayList<>();
+            index = new int[inBlock];
+            for (i = 0; i < block.length; i++) {
+                col = block[i];
+                if (columns.get(i).isNumeric()) {
+                    for (k = 0; k < inBlock; k++) {
+                        writeVarLong(dos, Long.parseLong(col[k]));
+                    }
+                    continue;
+                }
+                dictionary.clear();
+                values.clear();
+                for (k = 0; k < inBlock; k++) {
+                    if (col[k] == null) {
+                        index[k] = 0;
+                        continue;
+                    }
+                    j = dictionary.get(col[k]);
+                    if (j == null) {
+                        values.add(col[k]);
+                        j = values.size();
+                        dictionary.put(col[k], j);
+                    }
+                    index[k] = j;
+                }
+                writeVarLong(dos, values.size());
+                for (String v : values) {
+                    writeVarString(dos, v);
+                }
+                for (k = 0; k < inBlock; k++) {
+                    writeVarLong(dos, index[k]);
+                }
+            }
+            for (i = 0; i < block.length; i++) {
+                Arrays.fill(block[i], 0, inBlock, null);
+            }
+            inBlock = 0;
+        }
+
+        @Override
+        public void finish() throws IOException {
+            if (inBlock > 0) {
+                writeBlock();
+            }
+            dos.writeInt(0);
+            dos.close();
+        }
+
+        static void writeVarLong(DataOutput out, long v) throws IOException {
+            while ((v & ~0x7fL) != 0) {
+                out.writeByte((int) ((v & 0x7f) | 0x80));
+                v >>>= 7;
+            }
+            out.writeByte((int) v);
+        }
+
+        static long readVarLong(DataInput in) throws IOException {
+            long v;
+            int b, shift;
+
+            v = 0;
+            shift = 0;
+            do {
+                b = in.readUnsignedByte();
+                v |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return v;
+        }
+
+        static void writeVarString(DataOutput out, String s) throws IOException {
+            byte[] b;
+
+            b = s.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(out, b.length);
+            out.write(b);
+        }
+
+        static String readVarString(DataInput in) throws IOException {
+            byte[] b;
+
+            b = new byte[(int) readVarLong(in)];
+            in.readFully(b);
+            return new String(b, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Dump
+         *
+         * Write a columnar export as CSV (the same as the '.csv' export)
+         *
+         * @param file the columnar export
+         * @param w where to write the CSV
+         * @throws IOException if the export could not be read
+         */
+        static void dump(File file, Writer w) throws IOException {
+            DataInputStream dis;
+            StringBuilder sb;
+            String[] names, values, dictionary;
+            String[][] cols;
+            boolean[] numeric;
+            int i, k, n, r, d;
+
+            dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+            try {
+                if (!dis.readUTF().equals(MAGIC)) {
+                    throw new IOException("'" + file.getPath() + "' is not a columnar export");
+                }
+                if (dis.readInt() != VERSION) {
+                    throw new IOException("'" + file.getPath() + "' is a different version of columnar export");
+                }
+                n = dis.readInt();
+                names = new String[n];
+                numeric = new boolean[n];
+                for (i = 0; i < n; i++) {
+                    names[i] = dis.readUTF();
+                    numeric[i] = dis.readByte() == 'N';
+                }
+                sb = new StringBuilder();
+                Csv.row(sb, names);
+                w.append(sb);
+                values = new String[n];
+                while ((k = dis.readInt()) > 0) {
+                    cols = new String[n][k];
+                    for (i = 0; i < n; i++) {
+                        if (numeric[i]) {
+                            for (r = 0; r < k; r++) {
+                                cols[i][r] = Long.toString(readVarLong(dis));
+                            }
+                            continue;
+                        }
+                        dictionary = new String[(int) readVarLong(dis) + 1];
+                        for (d = 1; d < dictionary.length; d++) {
+                            dictionary[d] = readVarString(dis);
+                        }
+                        for (r = 0; r < k; r++) {
+                            cols[i][r] = dictionary[(int) readVarLong(dis)];
+                        }
+                    }
+                    for (r = 0; r < k; r++) {
+                        for (i = 0; i < n; i++) {
+                            values[i] = cols[i][r];
+                        }
+                        Csv.row(sb, values);
+                        w.append(sb);
+                    }
+                }
+            } finally {
+                dis.close();
+            }
+        }
+    }
+
+    /**
+     * Main program
+     *
+     * Write a columnar export to standard out as CSV
+     *
+     * @param args the columnar export
+     */
+    public static void main(String args[]) {
+        Writer w;
+
+        if (args.length != 1) {
+            System.err.println("Usage: ManifestExport <columnar export (.col)>");
+            System.exit(-1);
+        }
+        try {
+            w = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 65536);
+            Columnar.dump(new File(args[0]), w);
+            w.flush();
+        } catch (IOException ioe) {
+            System.err.println("Failed reading '" + args[0] + "': " + ioe.getMessage());
+            System.exit(-1);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package v2manifestgenerator;
+
+/**
+ * *************************************************************
+ *
+ * M A N I F E S T F I E L D
+ *
+ * The fields that may be written for each VEO in a dam:manifest_object_item.
+ * A run of the manifest generator may be restricted to a subset of the fields
+ * (the -fields command line argument). The fields that are not selected are
+ * neither captured from the VEO nor written in the manifest, and the parse of
+ * each VEO terminates as soon as the selected fields have been captured.
+ *
+ * The filename and size fields come from the file system and do not require
+ * the VEO to be parsed at all.
+ * ************************************************************
+ */
+import java.util.EnumSet;
+
+public enum ManifestField {
+    FILENAME("filename", false), // dam:computer_filename
+    FILE_ID("fileid", true), // dam:file_identifier
+    RECORD_ID("recid", true), // dam:vers_record_identifier
+    TITLE("title", true), // dam:veo_title
+    CLASSIFICATION("classification", true), // dam:veo_classification
+    ACCESS("access", true), // dam:veo_access_category
+    DISPOSAL("disposal", true), // dam:veo_disposal_authority
+    DATES("dates", true), // dam:veo_date_range
+    SIZE("size", false);       // dam:size_kb
+
+    private final String argName;   // name used on the command line
+    private final boolean parsed;   // true if value is obtained by parsing VEO
+
+    ManifestField(String argName, boolean parsed) {
+        this.argName = argName;
+        this.parsed = parsed;
+    }
+
+    /**
+     * getArgName
+     *
+     * @return the name of this field as used in the -fields argument
+     */
+    public String getArgName() {
+        return argName;
+    }
+
+    /**
+     * isParsed
+     *
+     * @return true if the value of this field is obtained by parsing the VEO
+     */
+    public boolean isParsed() {
+        return parsed;
+    }
+
+    /**
+     * parseList
+     *
+     * Convert a comma separated list of field names (e.g.
+     * 'filename,fileid,recid') into a set of fields. The name 'all' selects
+     * every field.
+     *
+     * @param list the comma separated list
+     * @return the set of fields selected
+     * @throws IllegalArgumentException if a name is not recognised
+     */
+    public static EnumSet<ManifestField> parseList(String list) {
+        EnumSet<ManifestField> set;
+        String[] names;
+        int i;
+
+        set = EnumSet.noneOf(ManifestField.class);
+        names = list.split(",");
+        for (i = 0; i < names.length; i++) {
+            set.addAll(lookup(names[i].trim()));
+        }
+        if (set.isEmpty()) {
+            throw new IllegalArgumentException("No fields specified in '" + list + "'");
+        }
+        return set;
+    }
+
+    /**
+     * lookup
+     *
+     * Find the fields corresponding to a single name
+     */
+    private static EnumSet<ManifestField> lookup(String name) {
+        if (name.equalsIgnoreCase("all")) {
+            return EnumSet.allOf(ManifestField.class);
+        }
+        for (ManifestField f : values()) {
+            if (f.argName.equalsIgnoreCase(name)) {
+                return EnumSet.of(f);
+            }
+        }
+        throw new IllegalArgumentException("Field '" + name + "' is not one of filename, fileid, recid, title, classification, access, disposal, dates, size, or all");
+    }
+
+    /**
+     * toList
+     *
+     * Convert a set of fields into a comma separated list of field names, as
+     * accepted by parseList()
+     *
+     * @param fields the set of fields
+     * @return the comma separated list
+     */
+    public static String toList(EnumSet<ManifestField> fields) {
+        StringBuilder sb;
+
+        sb = new StringBuilder();
+        for (ManifestField f : fields) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(f.argName);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * needsParse
+     *
+     * @param fields a set of fields
+     * @return true if any of the fields requires the VEO to be parsed
+     */
+    public static boolean needsParse(EnumSet<ManifestField> fields) {
+        for (ManifestField f : fields) {
+            if (f.parsed) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
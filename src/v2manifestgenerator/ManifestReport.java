@@ -0,0 +1,249 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package v2manifestgenerator;
+
+/**
+ * *************************************************************
+ *
+ * M A N I F E S T R E P O R T
+ *
+ * This class generates the HTML manifest report at the same time as the
+ * manifest (the -report argument). The report is the same as that produced by
+ * applying manifestrpt.xsl to the manifest (ManifestReport.bat), but is
+ * rendered directly from the entries, so there is no second parse of the
+ * manifest and no document tree is built.
+ *
+ * The report lists the entries sorted by file identifier and record
+ * identifier, first the file VEOs only, and then all the VEOs. The entries are
+ * sorted using a ManifestSorter (so memory is bounded). As the sorted entries
+ * are read, the rows of the first table are written to the report, and the
+ * rows of the second table to a temporary file, which is then copied into
+ * the report.
+ * ************************************************************
+ */
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Comparator;
+
+public class ManifestReport implements EntrySink {
+
+    File reportFile;	// the HTML report to be written
+    ManifestSorter sorter;	// sorts the entries into report order
+    Writer out;		// writer for the report
+    Writer veoRows;		// writer for the rows of the table of all VEOs
+
+    /**
+     * The order of the entries in the report (as in manifestrpt.xsl)
+     */
+    static final Comparator<ManifestEntry> ORDER
+            = Comparator.comparing(ManifestEntry::getFileIdentifier, Comparator.nullsFirst(Comparator.<String>naturalOrder()))
+                    .thenComparing(ManifestEntry::getRecordIdentifier, Comparator.nullsFirst(Comparator.<String>naturalOrder()))
+                    .thenComparing(ManifestEntry::getFilename)
+                    .thenComparing(ManifestEntry::getDirectory);
+
+    /**
+     * Constructor
+     *
+     * @param reportFile the HTML report to be written
+     * @param memoryLimit bytes of entries to hold in memory when sorting
+     */
+    public ManifestReport(File reportFile, long memoryLimit) {
+        this.reportFile = reportFile;
+        sorter = new ManifestSorter(ORDER, memoryLimit, null);
+    }
+
+    /**
+     * Entry
+     *
+     * Add an entry to the report
+     *
+     * @param e the entry
+     * @throws IOException if the entry could not be sorted
+     */
+    @Override
+    public void entry(ManifestEntry e) throws IOException {
+        sorter.add(e);
+    }
+
+    /**
+     * Finish
+     *
+     * Write the report
+     *
+     * @param mg the generator (for the context of the consignment)
+     * @param mediaWritten the time each piece of media was written (null if
+     * an electronic transfer)
+     * @throws IOException if the report could not be written
+     */
+    public void finish(V2ManifestGenerator mg, long[] mediaWritten) throws IOException {
+        File tmp;
+        String series, created;
+
+        series = "VPRS " + mg.vprsNumber + "/" + mg.consignmentType.toUpperCase() + mg.consignmentNumberString();
+        created = mg.createdTimestamp;
+        tmp = File.createTempFile("manifest", ".html", null);
+        tmp.deleteOnExit();
+        try {
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(reportFile), StandardCharsets.UTF_8));
+            veoRows = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8));
+
+            // heading
+            out.write("<HTML>\n<HEAD>\n");
+            out.write("<META http-equiv=\"Content-Type\" content=\"text/html; charset=UTF-8\">\n");
+            out.write("<TITLE>PROV Digital Submission Manifest Report</TITLE>\n");
+            out.write("<META NAME=\"DC.Creator\" CONTENT=\"PROV\">\n");
+            out.write("<META NAME=\"DC.Title\" CONTENT=\"PROV Digital Submission Manifest Report\">\n");
+            out.write("<STYLE TYPE=\"text/css\" MEDIA=\"SCREEN\">\n");
+            out.write("H1 { background: blue; color: white; font-family: Arial, sans-serif; font-weight: normal }\n");
+            out.write("H2 { background: blue; color: white; font-family: Arial, sans-serif; font-weight: normal }\n");
+            out.write("P { font-family: Arial, sans-serif; font-weight: normal }\n");
+            out.write("TR { font-family: Arial, sans-serif; font-weight: normal }\n");
+            out.write("TD { font-family: Arial, sans-serif; vertical-align: top }\n");
+            out.write(".emphasise { font-family: Arial, sans-serif; font-weight: bold }\n");
+            out.write("</STYLE>\n</HEAD>\n<BODY>\n");
+            out.write("<H1>Manifest Report for " + series + "</H1>\n");
+            out.write("<TABLE>\n");
+            row("Agency Id:", Integer.toString(mg.vaNumber));
+            row("Job Id:", "TR " + mg.transferId);
+            row("Series:", series);
+            row("Submitted:", mg.isInternetExport() ? "Electronically" : "by Media");
+            row("Manifest Created:", created.substring(8, 10) + "/" + created.substring(5, 7) + "/" + created.substring(0, 4)
+                    + " at " + created.substring(11, 19));
+            out.write("</TABLE>\n");
+
+            // the files, and then all the VEOs, sorted by identifier
+            tableStart(out, "Manifest of Files in Set");
+            tableStart(veoRows, "Manifest of VEOs in Set");
+            sorter.finish(this::rows);
+            tableEnd(out);
+            tableEnd(veoRows);
+            veoRows.close();
+            veoRows = null;
+            copy(tmp, out);
+
+            // the media
+            if (mediaWritten != null) {
+                mediaList(mg, mediaWritten);
+            }
+            out.write("</BODY>\n</HTML>\n");
+        } finally {
+            if (veoRows != null) {
+                try {
+                    veoRows.close();
+                } catch (IOException ioe) {
+                    /* ignore */ }
+            }
+            if (out != null) {
+                out.close();
+            }
+            tmp.delete();
+            sorter.close();
+        }
+    }
+
+    /**
+     * Write the rows for an entry (file VEOs appear in both tables, and are
+     * highlighted in the table of all VEOs)
+     */
+    private void rows(ManifestEntry e) throws IOException {
+        if (e.getRecordIdentifier() == null) {
+            veoRow(out, e, "<TR>");
+            veoRow(veoRows, e, "<TR bgcolor=\"yellow\">");
+        } else {
+            veoRow(veoRows, e, "<TR>");
+        }
+    }
+
+    private void veoRow(Writer w, ManifestEntry e, String tr) throws IOException {
+        String s;
+
+        w.write(tr);
+        s = e.getFileIdentifier();
+        cell(w, s == null ? "" : s);
+        s = e.getRecordIdentifier();
+        cell(w, s == null ? "" : s);
+        cell(w, e.getTitle());
+        s = e.getStartDate();
+        cell(w, s == null ? "" : s);
+        s = e.getEndDate();
+        cell(w, s == null ? "" : s);
+        cell(w, e.getClassification());
+        cell(w, e.getAccessCategory());
+        cell(w, e.getDisposalAuthority());
+        cell(w, e.getComputerFilename());
+        cell(w, Long.toString(e.getSizeKb()));
+        w.write("</TR>\n");
+    }
+
+    /**
+     * Write a cell. The values from the entries are already escaped.
+     */
+    private static void cell(Writer w, String s) throws IOException {
+        w.write("<TD>");
+        w.write(s);
+        w.write("</TD>");
+    }
+
+    private void row(String label, String value) throws IOException {
+        out.write("<TR>\n<TD>" + label + "</TD>\n<TD>" + value + "</TD>\n</TR>\n");
+    }
+
+    private static void tableStart(Writer w, String heading) throws IOException {
+        w.write("<H2>" + heading + "</H2>\n");
+        w.write("<TABLE rules=\"cols\">\n<THEAD>\n");
+        w.write("<TR><TD>File Identifier (M102)</TD><TD>Record Identifier (M103)</TD><TD>Title Words (M35)</TD>"
+                + "<TD colspan=\"2\">Date Range</TD><TD>Classification</TD><TD>Access Category</TD>"
+                + "<TD>Sentence (M90)</TD><TD>VEO Name</TD><TD>Size (kbytes)</TD></TR>\n");
+        w.write("<TR><TD></TD><TD></TD><TD></TD><TD>Registered (M57)</TD><TD>Closed (M144)</TD>"
+                + "<TD></TD><TD></TD><TD></TD><TD></TD><TD></TD></TR>\n");
+        w.write("</THEAD>\n<TBODY>\n");
+    }
+
+    private static void tableEnd(Writer w) throws IOException {
+        w.write("</TBODY>\n</TABLE>\n");
+    }
+
+    /**
+     * Write the table of media
+     */
+    private void mediaList(V2ManifestGenerator mg, long[] mediaWritten) throws IOException {
+        int i;
+
+        out.write("<H2>Manifest of Media submitted with Set</H2>\n");
+        out.write("<P>\nTotal Pieces of Media: " + mediaWritten.length + "\n</P>\n");
+        out.write("<TABLE rules=\"cols\">\n");
+        out.write("<TR class=\"HEAD\"><TD>Media</TD><TD>Media</TD><TD>Date Written</TD></TR>\n");
+        out.write("<TR class=\"HEAD\"><TD>Id</TD><TD>Type</TD><TD></TD></TR>\n");
+        for (i = 0; i < mediaWritten.length; i++) {
+            out.write("<TR><TD>" + (i + 1) + "</TD><TD>" + mg.mediaType + "</TD><TD>"
+                    + V2ManifestGenerator.versDateTime(mediaWritten[i]) + "</TD></TR>\n");
+        }
+        out.write("</TABLE>\n");
+    }
+
+    /**
+     * Copy a temporary file into the report
+     */
+    private static void copy(File f, Writer w) throws IOException {
+        char[] buf;
+        int n;
+
+        buf = new char[65536];
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8))) {
+            while ((n = br.read(buf)) != -1) {
+                w.write(buf, 0, n);
+            }
+        }
+    }
+}
@@ -0,0 +1,491 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package v2manifestgenerator;
+
+/**
+ * *************************************************************
+ *
+ * M A N I F E S T S E R V E R
+ *
+ * This class runs the manifest generator as a local HTTP service, so that a
+ * workflow tool can request manifests without starting a JVM for each one.
+ * For example:
+ *
+ * java v2manifestgenerator.ManifestServer -port 8080 -threads 8
+ *
+ * The server listens on the loopback interface only (unless -bind is given).
+ * Requests are handled on virtual threads if the JVM supports them, and
+ * otherwise on a pool of platform threads. The VEOs of all the jobs are
+ * parsed by one shared pool of worker threads (-threads, default the number
+ * of processors).
+ *
+ * GET or POST /manifest?va=1&vprs=2&p=3&tr=2004/0001&d=C:\export[&m=cd]
+ * Generate a manifest. The parameters are the job arguments of the generator
+ * (see V2ManifestGenerator.jobArguments()). The manifest is streamed back as it is generated, and the job number
+ * is returned in the X-Job-Id header. If the job fails once the manifest has
+ * started, the manifest is ended with an XML comment giving the error (and so
+ * is not well formed).
+ *
+ * GET /jobs The status of each job (JSON).
+ *
+ * GET /jobs/<id> The status of a job (JSON).
+ *
+ * GET /jobs/<id>/log The progress and errors reported by a job.
+ *
+ * DELETE /jobs/<id>, or POST /jobs/<id>/cancel Cancel a job. A job is also
+ * cancelled if the client disconnects.
+ * ************************************************************
+ */
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ManifestServer {
+
+    static final int MAX_KEPT = 100; // finished jobs kept for status requests
+
+    HttpServer server;	// the HTTP server
+    ExecutorService handlers; // threads handling the requests
+    ExecutorService pool;	// worker threads parsing VEOs (shared by all jobs)
+    int threads;		// number of worker threads
+    AtomicInteger nextJob;	// number of the next job
+    ConcurrentSkipListMap<Integer, Job> jobs; // jobs running or recently finished
+
+    /**
+     * A manifest being generated
+     */
+    static class Job {
+
+        int id;			// job number
+        String[] args;		// arguments configuring the generator
+        V2ManifestGenerator mg;	// the generator (null until configured)
+        ByteArrayOutputStream log; // progress and errors reported by the job
+        volatile String state;	// running, finished, failed, or cancelled
+        volatile String error;	// why the job failed (null if it has not)
+        long started;		// time the job started
+        volatile long finished;	// time the job finished (0 if running)
+
+        boolean isRunning() {
+            return finished == 0;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param bind the address to listen on
+     * @param port the port to listen on
+     * @param threads the number of worker threads parsing VEOs
+     * @throws IOException if the server could not be started
+     */
+    public ManifestServer(InetAddress bind, int port, int threads) throws IOException {
+        this.threads = threads;
+        pool = V2ManifestGenerator.newWorkerPool(threads);
+        handlers = handlerThreads();
+        nextJob = new AtomicInteger(1);
+        jobs = new ConcurrentSkipListMap<>();
+        server = HttpServer.create(new InetSocketAddress(bind, port), 0);
+        server.createContext("/manifest", this::manifest);
+        server.createContext("/jobs", this::jobs);
+        server.setExecutor(handlers);
+    }
+
+    /**
+     * Use a virtual thread per request if the JVM supports them (Java 21 and
+     * later), otherwise a pool of platform threads. Reflection is used so that
+     * the server still builds and runs on older JVMs.
+     */
+    static ExecutorService handlerThreads() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "ManifestServer");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    /**
+     * Start
+     *
+     * Start accepting requests
+     */
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stop
+     *
+     * Stop accepting requests, cancel the running jobs, and release the
+     * threads
+     */
+    public void stop() {
+        server.stop(0);
+        for (Job job : jobs.values()) {
+            if (job.mg != null) {
+                job.mg.cancel();
+            }
+        }
+        handlers.shutdown();
+        pool.shutdown();
+    }
+
+    /**
+     * Handle a request to generate a manifest
+     */
+    private void manifest(HttpExchange he) throws IOException {
+        Job job;
+        PrintStream out, err;
+        String[] args;
+
+        if (!he.getRequestMethod().equals("GET") && !he.getRequestMethod().equals("POST")) {
+            respond(he, 405, "text/plain", "Use GET or POST");
+            return;
+        }
+        try {
+            args = arguments(he);
+        } catch (IllegalArgumentException iae) {
+            respond(he, 400, "text/plain", iae.getMessage());
+            return;
+        }
+
+        // configure the job
+        job = new Job();
+        job.args = args;
+        job.log = new ByteArrayOutputStream();
+        job.state = "running";
+        job.started = System.currentTimeMillis();
+        job.finished = 0;
+        err = new PrintStream(job.log, true, "UTF-8");
+        out = new PrintStream(new BufferedOutputStream(new CancelOnError(he.getResponseBody(), job), 65536), false, "UTF-8");
+        try {
+            job.mg = new V2ManifestGenerator(args, out, err, pool);
+            if (!job.mg.sourceDirectory.isDirectory()) {
+                job.mg.fail("Source directory '" + job.mg.sourceDirectory.getPath() + "' is not a directory");
+            }
+        } catch (V2ManifestGenerator.Failure f) {
+            respond(he, 400, "text/plain", f.getMessage());
+            return;
+        }
+        job.id = nextJob.getAndIncrement();
+        add(job);
+
+        // generate the manifest, streaming it back
+        he.getResponseHeaders().set("Content-Type", "application/xml; charset=UTF-8");
+        he.getResponseHeaders().set("X-Job-Id", Integer.toString(job.id));
+        he.sendResponseHeaders(200, 0);
+        try {
+            job.mg.generate();
+            job.state = "finished";
+        } catch (RuntimeException e) {
+            job.error = e.getMessage() != null ? e.getMessage() : e.toString();
+            job.state = job.mg.cancelled ? "cancelled" : "failed";
+            if (!(e instanceof V2ManifestGenerator.Failure)) {
+                err.println("Job failed: " + e.toString());
+            }
+            out.println();
+            out.println("<!-- Manifest generation " + job.state + ": " + job.error.replace("--", "- -") + " -->");
+        } finally {
+            job.mg.shutdown();
+            job.finished = System.currentTimeMillis();
+            out.close();
+            he.close();
+        }
+    }
+
+    /**
+     * Convert the parameters of a request (in the query string, or in the body
+     * of a form POST) into the arguments of the generator
+     */
+    private String[] arguments(HttpExchange he) throws IOException {
+        LinkedHashMap<String, String> params;
+        String query;
+        String[] nv;
+        int i, j;
+
+        query = he.getRequestURI().getRawQuery();
+        if (he.getRequestMethod().equals("POST")) {
+            query = (query == null ? "" : query + "&") + readBody(he.getRequestBody());
+        }
+        params = new LinkedHashMap<>();
+        nv = query == null ? new String[0] : query.split("&");
+        for (i = 0; i < nv.length; i++) {
+            if (nv[i].equals("")) {
+                continue;
+            }
+            j = nv[i].indexOf('=');
+            if (j == -1) {
+                params.put(decode(nv[i]), null);
+            } else {
+                params.put(decode(nv[i].substring(0, j)), decode(nv[i].substring(j + 1)));
+            }
+        }
+        return V2ManifestGenerator.jobArguments(params, threads);
+    }
+
+    private static String readBody(InputStream is) throws IOException {
+        ByteArrayOutputStream baos;
+        byte[] b;
+        int n;
+
+        baos = new ByteArrayOutputStream();
+        b = new byte[4096];
+        while ((n = is.read(b)) != -1) {
+            baos.write(b, 0, n);
+        }
+        return new String(baos.toByteArray(), StandardCharsets.UTF_8).trim();
+    }
+
+    private static String decode(String s) {
+        try {
+            return URLDecoder.decode(s, "UTF-8");
+        } catch (UnsupportedEncodingException uee) {
+            throw new IllegalArgumentException(uee);
+        }
+    }
+
+    /**
+     * Remember a job, forgetting the oldest finished jobs if too many are kept
+     */
+    private void add(Job job) {
+        int kept;
+
+        jobs.put(job.id, job);
+        kept = 0;
+        for (Job j : jobs.descendingMap().values()) {
+            if (!j.isRunning() && ++kept > MAX_KEPT) {
+                jobs.remove(j.id);
+            }
+        }
+    }
+
+    /**
+     * Handle a request about the jobs
+     */
+    private void jobs(HttpExchange he) throws IOException {
+        String[] path;
+        String method;
+        StringBuilder sb;
+        Job job;
+
+        path = he.getRequestURI().getPath().split("/");
+        method = he.getRequestMethod();
+
+        // '/jobs': list the jobs
+        if (path.length <= 2) {
+            sb = new StringBuilder();
+            sb.append("[");
+            for (Job j : jobs.values()) {
+                if (sb.length() > 1) {
+                    sb.append(",\n");
+                }
+                status(sb, j);
+            }
+            sb.append("]\n");
+            respond(he, 200, "application/json", sb.toString());
+            return;
+        }
+
+        // '/jobs/<id>...': find the job
+        try {
+            job = jobs.get(Integer.parseInt(path[2]));
+        } catch (NumberFormatException nfe) {
+            job = null;
+        }
+        if (job == null) {
+            respond(he, 404, "text/plain", "No job '" + path[2] + "'");
+            return;
+        }
+        if (path.length == 3 && method.equals("GET")) {
+            sb = new StringBuilder();
+            status(sb, job);
+            sb.append("\n");
+            respond(he, 200, "application/json", sb.toString());
+        } else if (path.length == 4 && path[3].equals("log") && method.equals("GET")) {
+            respond(he, 200, "text/plain; charset=UTF-8", new String(job.log.toByteArray(), StandardCharsets.UTF_8));
+        } else if ((path.length == 3 && method.equals("DELETE"))
+                || (path.length == 4 && path[3].equals("cancel") && method.equals("POST"))) {
+            if (job.isRunning()) {
+                job.mg.cancel();
+                respond(he, 202, "text/plain", "Job " + job.id + " cancelled");
+            } else {
+                respond(he, 409, "text/plain", "Job " + job.id + " has " + job.state);
+            }
+        } else {
+            respond(he, 404, "text/plain", "Unrecognised request");
+        }
+    }
+
+    /**
+     * Describe the status of a job in JSON
+     */
+    private static void status(StringBuilder sb, Job job) {
+        long end;
+
+        end = job.isRunning() ? System.currentTimeMillis() : job.finished;
+        sb.append("{\"id\":").append(job.id);
+        sb.append(",\"state\":\"").append(job.state).append("\"");
+        sb.append(",\"veosParsed\":").append(job.mg.getVeosParsed());
+        sb.append(",\"started\":\"").append(V2ManifestGenerator.versDateTime(job.started)).append("\"");
+        sb.append(",\"elapsedMs\":").append(end - job.started);
+        sb.append(",\"args\":\"").append(json(String.join(" ", job.args))).append("\"");
+        if (job.error != null) {
+            sb.append(",\"error\":\"").append(json(job.error)).append("\"");
+        }
+        sb.append("}");
+    }
+
+    private static String json(String s) {
+        StringBuilder sb;
+        char c;
+        int i;
+
+        sb = new StringBuilder();
+        for (i = 0; i < s.length(); i++) {
+            c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void respond(HttpExchange he, int code, String contentType, String body) throws IOException {
+        byte[] b;
+
+        b = body.getBytes(StandardCharsets.UTF_8);
+        he.getResponseHeaders().set("Content-Type", contentType);
+        he.sendResponseHeaders(code, b.length == 0 ? -1 : b.length);
+        try (OutputStream os = he.getResponseBody()) {
+            os.write(b);
+        }
+    }
+
+    /**
+     * The stream of a manifest being returned. If the client has gone (the
+     * stream fails), the job is cancelled.
+     */
+    private static class CancelOnError extends FilterOutputStream {
+
+        Job job;
+
+        CancelOnError(OutputStream out, Job job) {
+            super(out);
+            this.job = job;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            try {
+                out.write(b);
+            } catch (IOException ioe) {
+                cancel();
+                throw ioe;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                out.write(b, off, len);
+            } catch (IOException ioe) {
+                cancel();
+                throw ioe;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            try {
+                out.flush();
+            } catch (IOException ioe) {
+                cancel();
+                throw ioe;
+            }
+        }
+
+        private void cancel() {
+            if (job.mg != null) {
+                job.mg.cancel();
+            }
+        }
+    }
+
+    /**
+     * Main program
+     *
+     * @param args command line args
+     */
+    public static void main(String args[]) {
+        ManifestServer ms;
+        InetAddress bind;
+        int i, port, threads;
+        String usage = "ManifestServer [-port n] [-threads n] [-bind address]";
+
+        port = 8080;
+        threads = Runtime.getRuntime().availableProcessors();
+        bind = InetAddress.getLoopbackAddress();
+        try {
+            for (i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-port":
+                        port = Integer.parseInt(args[++i]);
+                        break;
+                    case "-threads":
+                        threads = Integer.parseInt(args[++i]);
+                        break;
+                    case "-bind":
+                        bind = InetAddress.getByName(args[++i]);
+                        break;
+                    default:
+                        System.err.println("Unrecognised argument '" + args[i] + "'");
+                        System.err.println(usage);
+                        System.exit(-1);
+                }
+            }
+            if (threads < 1) {
+                throw new NumberFormatException("threads must be positive");
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException | IOException e) {
+            System.err.println("Bad argument: " + e.getMessage());
+            System.err.println(usage);
+            System.exit(-1);
+            return;
+        }
+        try {
+            ms = new ManifestServer(bind, port, threads);
+        } catch (IOException ioe) {
+            System.err.println("Failed starting server: " + ioe.getMessage());
+            System.exit(-1);
+            return;
+        }
+        ms.start();
+        System.err.println("Manifest server listening on http://" + bind.getHostAddress() + ":" + port + "/ (" + threads + " parsing threads)");
+    }
+}
@@ -0,0 +1,372 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package v2manifestgenerator;
+
+/**
+ * *************************************************************
+ *
+ * M A N I F E S T S H A R D
+ *
+ * A large consignment can be split across several machines (or processes)
+ * using the -shard i/n argument of the manifest generator. Each shard parses
+ * the VEOs whose relative path hashes to i (modulo n), and writes the sorted
+ * entries to a partial manifest file. No coordination between the shards is
+ * needed.
+ *
+ * This class reads and writes the partial manifest files, and its main()
+ * merges the partial files from all the shards into one manifest, which is
+ * written to standard out. For example:
+ *
+ * java v2manifestgenerator.ManifestShard shard0.part shard1.part shard2.part
+ *
+ * A partial file starts with a header recording the context of the
+ * consignment (VA, VPRS, consignment, transfer, media type, fields, and sort
+ * key), the shard number, and the media directories. The merge checks that
+ * all n shards are present and agree on the header. The entries follow, each
+ * preceded by a 'true' marker, and the file ends with a 'false' marker so
+ * that a truncated file is detected.
+ * ************************************************************
+ */
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ManifestShard {
+
+    static final String MAGIC = "V2ManifestGenerator partial manifest";
+    static final int VERSION = 2;
+
+    // header of the partial manifest
+    int shardIndex;		// which shard this is (0 to shardCount-1)
+    int shardCount;		// total number of shards
+    int vaNumber;		// VA number of exporting agency
+    int vprsNumber;		// series number (VPRS number) of exported VEOs
+    String consignmentType;	// type of consignment
+    int consignmentNumber;	// number of consignment within series
+    String transferId;	// transfer job number
+    String mediaType;	// if a media export, the type of media (else null)
+    String fields;		// fields written (as a -fields argument)
+    ManifestSorter.Key sortKey; // order of the entries
+    String[] mediaNames;	// names of the media directories (if media export)
+    long[] mediaWritten;	// time each media directory was last modified
+
+    File file;		// the partial manifest file
+    DataInputStream dis;	// stream reading the entries
+    DataOutputStream dos;	// stream writing the entries
+
+    /**
+     * Select
+     *
+     * Decide if a VEO belongs to a shard. The decision depends only on the
+     * path of the VEO relative to the source directory, so each shard makes the
+     * same decision without coordination.
+     *
+     * @param relativePath path of the VEO relative to the source directory
+     * @param shardIndex the shard
+     * @param shardCount the total number of shards
+     * @return true if the VEO belongs to the shard
+     */
+    public static boolean select(String relativePath, int shardIndex, int shardCount) {
+        long h;
+        int i;
+
+        h = 0xcbf29ce484222325L;
+        for (i = 0; i < relativePath.length(); i++) {
+            h = (h ^ relativePath.charAt(i)) * 0x100000001b3L;
+        }
+        return Long.remainderUnsigned(LongHashSet.mix(h), shardCount) == shardIndex;
+    }
+
+    /**
+     * Create
+     *
+     * Create a partial manifest file and write the header. Entries are then
+     * written with write(), and the file completed with close().
+     *
+     * @param file the file to create
+     * @throws IOException if the file could not be written
+     */
+    public void create(File file) throws IOException {
+        int i;
+
+        this.file = file;
+        dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+        dos.writeUTF(MAGIC);
+        dos.writeInt(VERSION);
+        dos.writeInt(shardIndex);
+        dos.writeInt(shardCount);
+        dos.writeInt(vaNumber);
+        dos.writeInt(vprsNumber);
+        dos.writeUTF(consignmentType);
+        dos.writeInt(consignmentNumber);
+        ManifestEntry.writeString(dos, transferId);
+        ManifestEntry.writeString(dos, mediaType);
+        dos.writeUTF(fields);
+        dos.writeUTF(sortKey.name());
+        dos.writeInt(mediaNames.length);
+        for (i = 0; i < mediaNames.length; i++) {
+            ManifestEntry.writeString(dos, mediaNames[i]);
+            dos.writeLong(mediaWritten[i]);
+        }
+    }
+
+    /**
+     * Write
+     *
+     * Write an entry to the partial manifest
+     *
+     * @param e the entry
+     * @throws IOException if the entry could not be written
+     */
+    public void write(ManifestEntry e) throws IOException {
+        dos.writeBoolean(true);
+        e.write(dos);
+    }
+
+    /**
+     * Close
+     *
+     * Complete a partial manifest being written, or close one being read
+     *
+     * @throws IOException if the file could not be completed
+     */
+    public void close() throws IOException {
+        if (dos != null) {
+            dos.writeBoolean(false);
+            dos.close();
+            dos = null;
+        }
+        if (dis != null) {
+            dis.close();
+            dis = null;
+        }
+    }
+
+    /**
+     * Open
+     *
+     * Open a partial manifest file and read the header
+     *
+     * @param file the partial manifest file
+     * @return the shard, positioned at the first entry
+     * @throws IOException if the file could not be read or is not a partial
+     * manifest
+     */
+    public static ManifestShard open(File file) throws IOException {
+        ManifestShard ms;
+        int i, n;
+
+        ms = new ManifestShard();
+        ms.file = file;
+        ms.dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+        try {
+            if (!ms.dis.readUTF().equals(MAGIC) || ms.dis.readInt() != VERSION) {
+                throw new IOException("'" + file.getPath() + "' is not a partial manifest");
+            }
+            ms.shardIndex = ms.dis.readInt();
+            ms.shardCount = ms.dis.readInt();
+            ms.vaNumber = ms.dis.readInt();
+            ms.vprsNumber = ms.dis.readInt();
+            ms.consignmentType = ms.dis.readUTF();
+            ms.consignmentNumber = ms.dis.readInt();
+            ms.transferId = ManifestEntry.readString(ms.dis);
+            ms.mediaType = ManifestEntry.readString(ms.dis);
+            ms.fields = ms.dis.readUTF();
+            ms.sortKey = ManifestSorter.Key.valueOf(ms.dis.readUTF());
+            n = ms.dis.readInt();
+            ms.mediaNames = new String[n];
+            ms.mediaWritten = new long[n];
+            for (i = 0; i < n; i++) {
+                ms.mediaNames[i] = ManifestEntry.readString(ms.dis);
+                ms.mediaWritten[i] = ms.dis.readLong();
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            ms.dis.close();
+            throw new IOException("'" + file.getPath() + "' is not a partial manifest: " + e.getMessage());
+        }
+        return ms;
+    }
+
+    /**
+     * Source
+     *
+     * Return the entries of a partial manifest being read, for merging
+     *
+     * @return a source of the entries
+     */
+    public ManifestSorter.EntrySource source() {
+        return new ManifestSorter.EntrySource() {
+            @Override
+            public ManifestEntry next() throws IOException {
+                try {
+                    if (!dis.readBoolean()) {
+                        return null;
+                    }
+                } catch (EOFException eofe) {
+                    throw new IOException("Partial manifest '" + file.getPath() + "' is truncated");
+                }
+                return ManifestEntry.read(dis);
+            }
+
+            @Override
+            public void close() {
+                try {
+                    ManifestShard.this.close();
+                } catch (IOException ioe) {
+                    /* ignore */ }
+            }
+        };
+    }
+
+    /**
+     * Arguments
+     *
+     * Return the command line arguments that configure a manifest generator
+     * for the context of this consignment
+     */
+    String[] arguments() {
+        ArrayList<String> args;
+
+        args = new ArrayList<>();
+        args.add("-va");
+        args.add(Integer.toString(vaNumber));
+        args.add("-vprs");
+        args.add(Integer.toString(vprsNumber));
+        args.add("-" + consignmentType.toLowerCase());
+        args.add(Integer.toString(consignmentNumber));
+        if (transferId != null) {
+            args.add("-tr");
+            args.add(transferId);
+        }
+        if (mediaType != null) {
+            args.add("-m");
+            args.add(mediaType.split(" ")[0].toLowerCase());
+        }
+        args.add("-fields");
+        args.add(fields);
+        return args.toArray(new String[args.size()]);
+    }
+
+    /**
+     * Check that another shard is from the same consignment as this one
+     */
+    private void checkSame(ManifestShard ms) throws IOException {
+        if (ms.shardCount != shardCount
+                || ms.vaNumber != vaNumber
+                || ms.vprsNumber != vprsNumber
+                || !ms.consignmentType.equals(consignmentType)
+                || ms.consignmentNumber != consignmentNumber
+                || !same(ms.transferId, transferId)
+                || !same(ms.mediaType, mediaType)
+                || !ms.fields.equals(fields)
+                || ms.sortKey != sortKey
+                || !Arrays.equals(ms.mediaNames, mediaNames)) {
+            throw new IOException("Partial manifest '" + ms.file.getPath() + "' is not from the same run as '" + file.getPath() + "'");
+        }
+    }
+
+    private static boolean same(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * Merge
+     *
+     * Merge the partial manifests from all the shards of a consignment into a
+     * manifest, written to standard out.
+     *
+     * @param files the partial manifest files
+     * @throws IOException if the files are incomplete or inconsistent
+     */
+    public static void merge(List<File> files) throws IOException {
+        ArrayList<ManifestShard> shards;
+        ArrayList<ManifestSorter.EntrySource> sources;
+        ManifestShard first;
+        V2ManifestGenerator mg;
+        boolean[] found;
+        int i;
+
+        // read the headers and check that all the shards are present
+        shards = new ArrayList<>();
+        try {
+            for (File f : files) {
+                shards.add(open(f));
+            }
+            if (shards.isEmpty()) {
+                throw new IOException("No partial manifests to merge");
+            }
+            first = shards.get(0);
+            found = new boolean[first.shardCount];
+            for (ManifestShard ms : shards) {
+                first.checkSame(ms);
+                if (found[ms.shardIndex]) {
+                    throw new IOException("Shard " + ms.shardIndex + " is repeated in '" + ms.file.getPath() + "'");
+                }
+                found[ms.shardIndex] = true;
+            }
+            for (i = 0; i < found.length; i++) {
+                if (!found[i]) {
+                    throw new IOException("Shard " + i + "/" + first.shardCount + " is missing");
+                }
+            }
+        } catch (IOException ioe) {
+            for (ManifestShard ms : shards) {
+                ms.close();
+            }
+            throw ioe;
+        }
+
+        // write the manifest
+        mg = new V2ManifestGenerator(first.arguments());
+        sources = new ArrayList<>();
+        for (ManifestShard ms : shards) {
+            sources.add(ms.source());
+        }
+        mg.writePreamble();
+        mg.writeListStart();
+        ManifestSorter.merge(sources, ManifestSorter.comparator(first.sortKey), e -> mg.writeEntry(e));
+        mg.writeListEnd();
+        if (!mg.isInternetExport()) {
+            mg.writeMediaList(first.mediaWritten);
+        }
+        mg.writePostamble();
+        mg.shutdown();
+    }
+
+    /**
+     * Main program
+     *
+     * @param args the partial manifest files to merge
+     */
+    public static void main(String args[]) {
+        ArrayList<File> files;
+        int i;
+
+        if (args.length == 0) {
+            System.err.println("Usage: ManifestShard <partial manifest> ...");
+            System.exit(-1);
+        }
+        files = new ArrayList<>();
+        for (i = 0; i < args.length; i++) {
+            files.add(new File(args[i]));
+        }
+        try {
+            merge(files);
+        } catch (IOException ioe) {
+            System.err.println(ioe.getMessage());
+            System.exit(-1);
+        }
+    }
+}
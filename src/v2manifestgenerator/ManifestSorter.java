@@ -0,0 +1,366 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package v2manifestgenerator;
+
+/**
+ * *************************************************************
+ *
+ * M A N I F E S T S O R T E R
+ *
+ * This class sorts the entries of a manifest using an external merge sort, so
+ * that the order of the dam:manifest_object_items does not depend on the order
+ * in which the file system lists the VEOs.
+ *
+ * Entries are added in any order. They are buffered in memory until the
+ * estimated size of the buffer exceeds the memory limit. The buffer is then
+ * sorted and written to a temporary file as a 'run'. When all the entries have
+ * been added, the runs are merged and the entries are passed, in order, to an
+ * EntrySink. If there are more than MAX_FANIN runs, groups of runs are first
+ * merged into longer runs so that the number of files open at once is
+ * bounded.
+ *
+ * The sort order is total (ties on the key are broken by filename and then by
+ * directory), so the same set of VEOs always produces the same manifest.
+ *
+ * The merge is also used to combine the sorted partial manifests produced by
+ * shards (see ManifestShard).
+ * ************************************************************
+ */
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+public class ManifestSorter {
+
+    static final int MAX_FANIN = 64;	// maximum runs merged at once
+    static final int BUFFER_SIZE = 65536; // size of the run file buffers
+
+    /**
+     * The keys upon which the manifest may be sorted
+     */
+    public enum Key {
+        FILENAME, FILE_ID, RECORD_ID, PATH;
+
+        /**
+         * Convert a command line value (filename, fileid, recid, or path) into a
+         * key. Path sorts by directory and then filename.
+         *
+         * @param s the command line value
+         * @return the key
+         * @throws IllegalArgumentException if the value is not recognised
+         */
+        public static Key parse(String s) {
+            switch (s.toLowerCase()) {
+                case "filename":
+                    return FILENAME;
+                case "fileid":
+                    return FILE_ID;
+                case "recid":
+                    return RECORD_ID;
+                case "path":
+                    return PATH;
+                default:
+                    throw new IllegalArgumentException("Sort key '" + s + "' should be filename, fileid, recid, or path");
+            }
+        }
+    }
+
+    Comparator<ManifestEntry> order; // order in which entries are emitted
+    long memoryLimit;	// maximum estimated size of the in memory buffer
+    long memoryUsed;	// estimated size of the in memory buffer
+    File tempDirectory;	// directory in which runs are written (null = default)
+    ArrayList<ManifestEntry> buffer; // entries not yet written to a run
+    ArrayList<File> runs;	// runs written to temporary files
+
+    /**
+     * Constructor
+     *
+     * @param key the key upon which to sort
+     * @param memoryLimit maximum bytes of entries to hold in memory
+     * @param tempDirectory directory for the temporary files (null to use the
+     * system default)
+     */
+    public ManifestSorter(Key key, long memoryLimit, File tempDirectory) {
+        this(comparator(key), memoryLimit, tempDirectory);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param order the order in which to sort (must be total for the result
+     * to be deterministic)
+     * @param memoryLimit maximum bytes of entries to hold in memory
+     * @param tempDirectory directory for the temporary files (null to use the
+     * system default)
+     */
+    public ManifestSorter(Comparator<ManifestEntry> order, long memoryLimit, File tempDirectory) {
+        this.order = order;
+        this.memoryLimit = memoryLimit;
+        this.tempDirectory = tempDirectory;
+        memoryUsed = 0;
+        buffer = new ArrayList<>();
+        runs = new ArrayList<>();
+    }
+
+    /**
+     * Comparator
+     *
+     * Return a comparator that orders entries by the key. Ties are broken by
+     * filename and then directory, so the order is total.
+     *
+     * @param key the key upon which to sort
+     * @return the comparator
+     */
+    public static Comparator<ManifestEntry> comparator(Key key) {
+        Comparator<ManifestEntry> byName;
+
+        byName = Comparator.comparing(ManifestEntry::getFilename)
+                .thenComparing(ManifestEntry::getDirectory);
+        switch (key) {
+            case FILE_ID:
+                return Comparator.comparing(ManifestEntry::getFileIdentifier,
+                        Comparator.nullsFirst(Comparator.<String>naturalOrder())).thenComparing(byName);
+            case RECORD_ID:
+                return Comparator.comparing(ManifestEntry::getRecordIdentifier,
+                        Comparator.nullsFirst(Comparator.<String>naturalOrder())).thenComparing(byName);
+            case PATH:
+                return Comparator.comparing(ManifestEntry::getDirectory)
+                        .thenComparing(ManifestEntry::getFilename);
+            default:
+                return byName;
+        }
+    }
+
+    /**
+     * Add
+     *
+     * Add an entry to be sorted. If the memory limit is exceeded, the buffered
+     * entries are sorted and spilled to a run.
+     *
+     * @param e the entry
+     * @throws IOException if a run could not be written
+     */
+    public void add(ManifestEntry e) throws IOException {
+        buffer.add(e);
+        memoryUsed += e.estimateSize();
+        if (memoryUsed > memoryLimit) {
+            spill();
+        }
+    }
+
+    /**
+     * Spill
+     *
+     * Sort the buffered entries and write them to a new run
+     */
+    private void spill() throws IOException {
+        File run;
+
+        Collections.sort(buffer, order);
+        run = File.createTempFile("manifest", ".run", tempDirectory);
+        run.deleteOnExit();
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), BUFFER_SIZE))) {
+            for (ManifestEntry e : buffer) {
+                e.write(dos);
+            }
+        }
+        runs.add(run);
+        buffer.clear();
+        memoryUsed = 0;
+    }
+
+    /**
+     * Finish
+     *
+     * Pass all the entries, in order, to the sink. The temporary files are
+     * deleted. The sorter is empty afterwards and may be reused.
+     *
+     * @param sink where to send the sorted entries
+     * @throws IOException if the runs could not be read, or the sink failed
+     */
+    public void finish(EntrySink sink) throws IOException {
+        File merged;
+
+        try {
+            // if nothing spilled, just sort in memory
+            if (runs.isEmpty()) {
+                Collections.sort(buffer, order);
+                for (ManifestEntry e : buffer) {
+                    sink.entry(e);
+                }
+                return;
+            }
+            if (!buffer.isEmpty()) {
+                spill();
+            }
+
+            // reduce the number of runs until they can be merged in one pass
+            while (runs.size() > MAX_FANIN) {
+                merged = File.createTempFile("manifest", ".run", tempDirectory);
+                merged.deleteOnExit();
+                try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(merged), BUFFER_SIZE))) {
+                    merge(open(runs.subList(0, MAX_FANIN)), order, e -> e.write(dos));
+                }
+                for (File f : runs.subList(0, MAX_FANIN)) {
+                    f.delete();
+                }
+                runs.subList(0, MAX_FANIN).clear();
+                runs.add(merged);
+            }
+            merge(open(runs), order, sink);
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Close
+     *
+     * Discard any buffered entries and delete the temporary files
+     */
+    public void close() {
+        for (File f : runs) {
+            f.delete();
+        }
+        runs.clear();
+        buffer.clear();
+        memoryUsed = 0;
+    }
+
+    /**
+     * A source of entries in sorted order (e.g. a run or a partial manifest)
+     */
+    public interface EntrySource {
+
+        /**
+         * Next
+         *
+         * @return the next entry, or null if there are no more
+         * @throws IOException if the entry could not be read
+         */
+        ManifestEntry next() throws IOException;
+
+        /**
+         * Close the source
+         */
+        void close();
+    }
+
+    /**
+     * A run written by spill()
+     */
+    private static class RunReader implements EntrySource {
+
+        DataInputStream dis;
+
+        RunReader(File f) throws IOException {
+            dis = new DataInputStream(new BufferedInputStream(new FileInputStream(f), BUFFER_SIZE));
+        }
+
+        @Override
+        public ManifestEntry next() throws IOException {
+            try {
+                return ManifestEntry.read(dis);
+            } catch (EOFException eofe) {
+                return null;
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                dis.close();
+            } catch (IOException ioe) {
+                /* ignore */ }
+        }
+    }
+
+    /**
+     * Open readers on a list of runs
+     */
+    private static List<EntrySource> open(List<File> files) throws IOException {
+        ArrayList<EntrySource> readers;
+
+        readers = new ArrayList<>();
+        try {
+            for (File f : files) {
+                readers.add(new RunReader(f));
+            }
+        } catch (IOException ioe) {
+            for (EntrySource r : readers) {
+                r.close();
+            }
+            throw ioe;
+        }
+        return readers;
+    }
+
+    /**
+     * A source being merged, with the next entry to be read from it
+     */
+    private static class Head {
+
+        EntrySource source;
+        ManifestEntry next;
+
+        Head(EntrySource source) {
+            this.source = source;
+        }
+
+        boolean advance() throws IOException {
+            next = source.next();
+            return next != null;
+        }
+    }
+
+    /**
+     * Merge
+     *
+     * Merge sources, each of which is in order, into the sink using a priority
+     * queue of the heads of the sources. The sources are closed.
+     *
+     * @param sources the sources to be merged
+     * @param order the order of the entries in each source
+     * @param sink where to send the merged entries
+     * @throws IOException if a source could not be read, or the sink failed
+     */
+    public static void merge(List<EntrySource> sources, Comparator<ManifestEntry> order, EntrySink sink) throws IOException {
+        PriorityQueue<Head> heads;
+        Head h;
+
+        heads = new PriorityQueue<>(Math.max(1, sources.size()), (a, b) -> order.compare(a.next, b.next));
+        try {
+            for (EntrySource es : sources) {
+                h = new Head(es);
+                if (h.advance()) {
+                    heads.add(h);
+                }
+            }
+            while (!heads.isEmpty()) {
+                h = heads.poll();
+                sink.entry(h.next);
+                if (h.advance()) {
+                    heads.add(h);
+                }
+            }
+        } finally {
+            for (EntrySource es : sources) {
+                es.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,509 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package v2manifestgenerator;
+
+/**
+ * *************************************************************
+ *
+ * M A N I F E S T S T A T S
+ *
+ * This class accumulates summary statistics about the consignment while the
+ * manifest is generated (the -stats argument), so they do not have to be
+ * obtained by post processing the manifest. The figures are: the number of
+ * VEOs (records and files), the total, minimum, maximum, and percentiles of
+ * size_kb, the earliest and latest start and end dates, the number of VEOs in
+ * each access category, classification, and disposal authority, and the
+ * number of VEOs with a value truncated in the manifest. Only the selected
+ * fields contribute. The values are as written in the manifest, without the
+ * XML escaping.
+ *
+ * Each thread parsing VEOs has its own accumulator (see Collector), so there
+ * is no contention between the threads; the accumulators are merged when the
+ * statistics are written. The memory used is bounded: the sizes are counted
+ * in a histogram of fixed size (so the percentiles are approximate, within
+ * 2%), and the values of access category, classification, and disposal
+ * authority are counted in a bounded summary (see Counts). At most MAX_VALUES
+ * values of each are listed, and the rest are counted together as '(other)'.
+ * The counts are exact, and do not depend on how the VEOs were divided
+ * between the threads, unless a thread saw more than 2 * MAX_VALUES distinct
+ * values. Then a count that may be low is listed as the range it lies in. The
+ * dates are compared by the start of the period they denote (see VersDate),
+ * which is kept so each date is only parsed once; invalid dates are ignored,
+ * and counted with the files closed before they were registered.
+ * ************************************************************
+ */
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class ManifestStats {
+
+    static final int MAX_VALUES = 1000;
+    static final int EXACT = 128;	// sizes counted exactly below this
+    static final int SUB_BUCKETS = 64;	// buckets per power of two above EXACT
+
+    EnumSet<ManifestField> fields;	// fields selected
+    List<ManifestColumn> columns;	// columns written (to check truncation)
+    long veos;		// number of VEOs
+    long records;		// number of record VEOs
+    long totalKb;		// sum of size_kb
+    long minKb;		// smallest size_kb
+    long maxKb;		// largest size_kb
+    long[] sizes;		// histogram of size_kb
+    Extremes starts;	// earliest and latest veo_start_date
+    Extremes ends;		// earliest and latest veo_end_date (excluding 'Not closed')
+    long notClosed;		// number of files not closed
+    Counts access;		// VEOs by access category
+    Counts classification;	// VEOs by classification
+    Counts disposal;	// VEOs by disposal authority
+    long truncated;		// number of VEOs with a truncated value
+    long badDates;		// number of VEOs with invalid or out of order dates
+
+    /**
+     * Constructor
+     *
+     * @param fields the fields selected for the manifest
+     */
+    public ManifestStats(EnumSet<ManifestField> fields) {
+        this.fields = fields;
+        columns = ManifestColumn.forFields(fields);
+        veos = 0;
+        records = 0;
+        totalKb = 0;
+        minKb = Long.MAX_VALUE;
+        maxKb = Long.MIN_VALUE;
+        sizes = new long[bucket(Long.MAX_VALUE) + 1];
+        starts = new Extremes();
+        ends = new Extremes();
+        access = new Counts();
+        classification = new Counts();
+        disposal = new Counts();
+        truncated = 0;
+        badDates = 0;
+    }
+
+    /**
+     * Add
+     *
+     * Add an entry to the statistics
+     *
+     * @param e the entry
+     */
+    public void add(ManifestEntry e) {
+        long kb;
+        String s;
+
+        veos++;
+        if (e.isRecord()) {
+            records++;
+        }
+        if (fields.contains(ManifestField.SIZE)) {
+            kb = e.getSizeKb();
+            totalKb += kb;
+            minKb = Math.min(minKb, kb);
+            maxKb = Math.max(maxKb, kb);
+            sizes[bucket(kb)]++;
+        }
+        if (fields.contains(ManifestField.DATES)) {
+            if (e.checkDates() != null) {
+                badDates++;
+            } else {
+                s = e.value(ManifestColumn.VEO_START_DATE, false);
+                starts.add(s, VersDate.parse(s).earliest());
+                s = e.value(ManifestColumn.VEO_END_DATE, false);
+                if ("Not closed".equals(s)) {
+                    notClosed++;
+                } else if (s != null) {
+                    ends.add(s, VersDate.parse(s).earliest());
+                }
+            }
+        }
+        if (fields.contains(ManifestField.ACCESS)) {
+            access.add(e.value(ManifestColumn.VEO_ACCESS_CATEGORY, false), 1);
+        }
+        if (fields.contains(ManifestField.CLASSIFICATION)) {
+            classification.add(e.value(ManifestColumn.VEO_CLASSIFICATION, false), 1);
+        }
+        if (fields.contains(ManifestField.DISPOSAL)) {
+            disposal.add(e.value(ManifestColumn.VEO_DISPOSAL_AUTHORITY, false), 1);
+        }
+        if (e.isTruncated(columns)) {
+            truncated++;
+        }
+    }
+
+    /**
+     * Merge
+     *
+     * Add the statistics accumulated by another accumulator to these
+     *
+     * @param ms the other accumulator
+     */
+    public void merge(ManifestStats ms) {
+        int i;
+
+        veos += ms.veos;
+        records += ms.records;
+        totalKb += ms.totalKb;
+        minKb = Math.min(minKb, ms.minKb);
+        maxKb = Math.max(maxKb, ms.maxKb);
+        for (i = 0; i < sizes.length; i++) {
+            sizes[i] += ms.sizes[i];
+        }
+        starts.merge(ms.starts);
+        ends.merge(ms.ends);
+        notClosed += ms.notClosed;
+        access.merge(ms.access);
+        classification.merge(ms.classification);
+        disposal.merge(ms.disposal);
+        truncated += ms.truncated;
+        badDates += ms.badDates;
+    }
+
+    /**
+     * Bucket
+     *
+     * Return the bucket of the size histogram that counts a size. Sizes below
+     * EXACT have a bucket each; above that each power of two is divided into
+     * SUB_BUCKETS buckets.
+     */
+    static int bucket(long kb) {
+        int e;
+
+        if (kb < EXACT) {
+            return (int) Math.max(kb, 0);
+        }
+        e = 63 - Long.numberOfLeadingZeros(kb);
+        return EXACT + (e - 7) * SUB_BUCKETS + (int) ((kb >>> (e - 6)) - SUB_BUCKETS);
+    }
+
+    /**
+     * The smallest size counted by a bucket
+     */
+    static long bucketStart(int b) {
+        int e;
+
+        if (b < EXACT) {
+            return b;
+        }
+        e = (b - EXACT) / SUB_BUCKETS + 7;
+        return ((long) ((b - EXACT) % SUB_BUCKETS + SUB_BUCKETS)) << (e - 6);
+    }
+
+    /**
+     * Percentile
+     *
+     * Return the size_kb below which the given fraction of the VEOs lie
+     * (e.g. 0.5 for the median). The value is the middle of the bucket
+     * containing it, limited to the smallest and largest sizes seen.
+     *
+     * @param p the fraction
+     * @return the size
+     */
+    public long percentile(double p) {
+        long rank, seen, v;
+        int b;
+
+        rank = (long) Math.ceil(p * veos);
+        if (rank < 1) {
+            rank = 1;
+        }
+        seen = 0;
+        for (b = 0; b < sizes.length; b++) {
+            seen += sizes[b];
+            if (seen >= rank) {
+                break;
+            }
+        }
+        if (b >= sizes.length) {
+            return maxKb;
+        }
+        if (b < EXACT) {
+            v = b;
+        } else if (b + 1 == sizes.length) {
+            v = maxKb;
+        } else {
+            v = (bucketStart(b) + bucketStart(b + 1) - 1) / 2;
+        }
+        return Math.max(minKb, Math.min(maxKb, v));
+    }
+
+    /**
+     * Write
+     *
+     * Write the statistics to a summary file
+     *
+     * @param file the file to write
+     * @throws IOException if the file could not be written
+     */
+    public void write(File file) throws IOException {
+        PrintWriter w;
+
+        w = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)));
+        try {
+            w.println("VEOs: " + veos);
+            w.println("Records: " + records);
+            w.println("Files: " + (veos - records));
+            if (fields.contains(ManifestField.SIZE) && veos > 0) {
+                w.println("Total size (KB): " + totalKb);
+                w.println("Smallest size (KB): " + minKb);
+                w.println("Median size (KB): " + percentile(0.5));
+                w.println("90th percentile size (KB): " + percentile(0.9));
+                w.println("99th percentile size (KB): " + percentile(0.99));
+                w.println("Largest size (KB): " + maxKb);
+            }
+            if (fields.contains(ManifestField.DATES) && veos > 0) {
+                w.println("Earliest start date: " + starts.first);
+                w.println("Latest start date: " + starts.last);
+                w.println("Earliest end date: " + (ends.first != null ? ends.first : "None"));
+                w.println("Latest end date: " + (ends.last != null ? ends.last : "None"));
+                w.println("Files not closed: " + notClosed);
+                w.println("VEOs with invalid or out of order dates: " + badDates);
+            }
+            w.println("VEOs with truncated values: " + truncated);
+            if (fields.contains(ManifestField.ACCESS)) {
+                access.write(w, "Access category");
+            }
+            if (fields.contains(ManifestField.CLASSIFICATION)) {
+                classification.write(w, "Classification");
+            }
+            if (fields.contains(ManifestField.DISPOSAL)) {
+                disposal.write(w, "Disposal authority");
+            }
+        } finally {
+            w.close();
+        }
+        if (w.checkError()) {
+            throw new IOException("write failed");
+        }
+    }
+
+    /**
+     * E X T R E M E S
+     *
+     * The earliest and latest of a set of valid dates, with the start of the
+     * period each denotes (VersDate.earliest()). Dates with the same start are
+     * ordered by their text, so the result does not depend on the order the
+     * dates are added.
+     */
+    static class Extremes {
+
+        String first, last;	// earliest and latest dates (null if none)
+        long firstAt, lastAt;	// the start of the period of each
+
+        void add(String date, long at) {
+            if (first == null || at < firstAt || (at == firstAt && date.compareTo(first) < 0)) {
+                first = date;
+                firstAt = at;
+            }
+            if (last == null || at > lastAt || (at == lastAt && date.compareTo(last) > 0)) {
+                last = date;
+                lastAt = at;
+            }
+        }
+
+        void merge(Extremes x) {
+            if (x.first != null) {
+                add(x.first, x.firstAt);
+                add(x.last, x.lastAt);
+            }
+        }
+    }
+
+    /**
+     * C O U N T S
+     *
+     * The number of VEOs with each value of a field, kept in a bounded summary
+     * (a variant of the Misra-Gries 'frequent items' summary). While there are
+     * at most 2 * MAX_VALUES distinct values, every value is counted exactly.
+     * Beyond that, the values with the smallest counts are dropped, and the
+     * largest count dropped so far (the floor) is remembered. A value seen
+     * again after it (or any other value) was dropped is counted from then on,
+     * with the floor as the number of times it may have been missed. So each
+     * count is a lower bound, and the count plus its error an upper bound. The
+     * summaries of the threads are merged by adding the counts and errors, and
+     * only then cut to the MAX_VALUES largest counts for writing.
+     */
+    static class Counts {
+
+        HashMap<String, long[]> counts;	// count and error of each value
+        long floor;		// most times a value not held may have been seen
+        long total;		// number of values added
+
+        Counts() {
+            counts = new HashMap<>();
+            floor = 0;
+            total = 0;
+        }
+
+        void add(String value, long n) {
+            long[] c;
+
+            total += n;
+            c = counts.get(value);
+            if (c != null) {
+                c[0] += n;
+                return;
+            }
+            counts.put(value, new long[]{n, floor});
+            if (counts.size() > 2 * MAX_VALUES) {
+                floor = Math.max(floor, cut(MAX_VALUES));
+            }
+        }
+
+        /**
+         * Merge another summary into this one. A value held by only one
+         * summary may have been seen up to the floor of the other.
+         */
+        void merge(Counts c) {
+            long[] v, w;
+
+            for (Map.Entry<String, long[]> me : counts.entrySet()) {
+                if (!c.counts.containsKey(me.getKey())) {
+                    me.getValue()[1] += c.floor;
+                }
+            }
+            for (Map.Entry<String, long[]> me : c.counts.entrySet()) {
+                v = me.getValue();
+                w = counts.get(me.getKey());
+                if (w != null) {
+                    w[0] += v[0];
+                    w[1] += v[1];
+                } else {
+                    counts.put(me.getKey(), new long[]{v[0], v[1] + floor});
+                }
+            }
+            floor += c.floor;
+            total += c.total;
+        }
+
+        /**
+         * Drop all but the n values with the largest counts (ties broken by
+         * the value), and return the largest count plus error dropped
+         */
+        long cut(int n) {
+            List<Map.Entry<String, long[]>> l;
+            long[] v;
+            long dropped;
+            int i;
+
+            dropped = 0;
+            if (counts.size() <= n) {
+                return dropped;
+            }
+            l = sorted();
+            for (i = n; i < l.size(); i++) {
+                v = l.get(i).getValue();
+                dropped = Math.max(dropped, v[0] + v[1]);
+                counts.remove(l.get(i).getKey());
+            }
+            return dropped;
+        }
+
+        /**
+         * The values, largest count first
+         */
+        List<Map.Entry<String, long[]>> sorted() {
+            List<Map.Entry<String, long[]>> l;
+
+            l = new ArrayList<>(counts.entrySet());
+            l.sort((a, b) -> a.getValue()[0] != b.getValue()[0]
+                    ? Long.compare(b.getValue()[0], a.getValue()[0])
+                    : a.getKey().compareTo(b.getKey()));
+            return l;
+        }
+
+        /**
+         * Write the MAX_VALUES largest counts, largest first. A count that
+         * may be low is written as a range (e.g. '12-15').
+         */
+        void write(PrintWriter w, String title) {
+            List<Map.Entry<String, long[]>> l;
+            long[] v;
+            long other;
+
+            cut(MAX_VALUES);
+            l = sorted();
+            other = total;
+            for (Map.Entry<String, long[]> me : l) {
+                other -= me.getValue()[0];
+            }
+            w.println();
+            w.println(title + " (" + counts.size() + (other > 0 ? "+" : "") + " values):");
+            for (Map.Entry<String, long[]> me : l) {
+                v = me.getValue();
+                w.println("  " + v[0] + (v[1] > 0 ? "-" + (v[0] + v[1]) : "") + "\t" + me.getKey());
+            }
+            if (other > 0) {
+                w.println("  " + other + "\t(other)");
+            }
+            if (floor > 0) {
+                w.println("  (more than " + (2 * MAX_VALUES) + " values were seen by a thread, so the counts are approximate)");
+            }
+        }
+    }
+
+    /**
+     * C O L L E C T O R
+     *
+     * Gives each thread adding entries its own accumulator, and merges them
+     * at the end. A thread only synchronises when it first adds an entry.
+     */
+    public static class Collector {
+
+        EnumSet<ManifestField> fields;	// fields selected
+        List<ManifestStats> parts;	// the accumulator of each thread
+        ThreadLocal<ManifestStats> local; // the accumulator of this thread
+
+        public Collector(EnumSet<ManifestField> fields) {
+            this.fields = fields;
+            parts = new ArrayList<>();
+            local = ThreadLocal.withInitial(this::newPart);
+        }
+
+        private synchronized ManifestStats newPart() {
+            ManifestStats ms;
+
+            ms = new ManifestStats(fields);
+            parts.add(ms);
+            return ms;
+        }
+
+        /**
+         * Add an entry to the accumulator of the calling thread
+         *
+         * @param e the entry
+         */
+        public void add(ManifestEntry e) {
+            local.get().add(e);
+        }
+
+        /**
+         * Merge the accumulators of all the threads. The threads must have
+         * finished adding entries.
+         *
+         * @return the merged statistics
+         */
+        public synchronized ManifestStats merge() {
+            ManifestStats ms;
+
+            ms = new ManifestStats(fields);
+            for (ManifestStats part : parts) {
+                ms.merge(part);
+            }
+            return ms;
+        }
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package v2manifestgenerator;
+
+/**
+ * *************************************************************
+ *
+ * M A N I F E S T V A L I D A T O R
+ *
+ * This class validates the manifest against the manifest schema
+ * (manifest.xsd) as it is generated (the -validate argument). Rather than
+ * parsing the manifest once it is written, the validator is fed the SAX events
+ * that correspond to the text written by the generator, so the validation
+ * costs little compared to parsing the VEOs. The dam:manifest_object_items
+ * are the bulk of the manifest, so the text written for each (by
+ * ManifestEntry.render()) is itself parsed and validated, so what is validated
+ * is exactly what is written. The few contextual elements are generated here.
+ *
+ * The schema is compiled once and cached (a Schema is thread safe). Each
+ * violation is reported with the name of the VEO whose entry caused it.
+ * ************************************************************
+ */
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.net.URL;
+import javax.xml.XMLConstants;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.ValidatorHandler;
+import org.xml.sax.Attributes;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+
+public class ManifestValidator implements ErrorHandler {
+
+    static final String DAM = "http://www.prov.vic.gov.au/digitalarchive/";
+    static final String XSI = XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI;
+    static final AttributesImpl NO_ATTS = new AttributesImpl();
+    private static Schema schema;	// the compiled manifest schema
+
+    ValidatorHandler vh;	// validator being fed the events
+    XMLReader reader;	// parses the text written for each entry
+    StringBuilder item;	// text of the entry being parsed
+    PrintStream err;	// where violations are reported
+    String context;		// what is being validated (e.g. the VEO name)
+    int violations;		// number of violations found
+
+    /**
+     * Constructor
+     *
+     * @param err where to report violations
+     * @throws SAXException if the schema could not be compiled
+     */
+    public ManifestValidator(PrintStream err) throws SAXException {
+        SAXParserFactory spf;
+
+        this.err = err;
+        vh = getSchema().newValidatorHandler();
+        vh.setErrorHandler(this);
+        spf = SAXParserFactory.newInstance();
+        spf.setNamespaceAware(true);
+        try {
+            reader = spf.newSAXParser().getXMLReader();
+        } catch (ParserConfigurationException pce) {
+            throw new SAXException("Failed creating parser: " + pce.getMessage());
+        }
+        reader.setContentHandler(new ItemHandler());
+        item = new StringBuilder();
+        violations = 0;
+        context = "Manifest";
+    }
+
+    /**
+     * Get Schema
+     *
+     * Return the compiled manifest schema, compiling it the first time
+     *
+     * @return the schema
+     * @throws SAXException if the schema could not be compiled
+     */
+    static synchronized Schema getSchema() throws SAXException {
+        URL url;
+
+        if (schema == null) {
+            url = ManifestValidator.class.getResource("manifest.xsd");
+            if (url == null) {
+                throw new SAXException("manifest.xsd not found on the classpath");
+            }
+            schema = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI).newSchema(url);
+        }
+        return schema;
+    }
+
+    /**
+     * Preamble
+     *
+     * Validate the start of the manifest (the contextual elements)
+     *
+     * @param mg the generator (for the context of the consignment)
+     * @throws SAXException if validation could not continue
+     */
+    public void preamble(V2ManifestGenerator mg) throws SAXException {
+        AttributesImpl atts;
+
+        context = "Manifest";
+        vh.startDocument();
+        vh.startPrefixMapping("dam", DAM);
+        vh.startPrefixMapping("xsi", XSI);
+        atts = new AttributesImpl();
+        atts.addAttribute(XSI, "schemaLocation", "xsi:schemaLocation", "CDATA",
+                "http://www.prov.vic.gov.au/digitalarchive/ http://www.prov.vic.gov.au/digitalarchive/setManifest_1_0_0.xsd");
+        vh.startElement(DAM, "set_manifest", "dam:set_manifest", atts);
+        start(mg.isInternetExport() ? "electronic_transfer" : "media_transfer");
+        element("created_timestamp", mg.createdTimestamp);
+        element("agency_id", Integer.toString(mg.vaNumber));
+        element("series_type", "VPRS");
+        element("series_number", Integer.toString(mg.vprsNumber));
+        element("job_id", "TR " + mg.transferId);
+        element("consignment_type", mg.consignmentType.toUpperCase());
+        element("consignment_number", mg.consignmentNumberString());
+    }
+
+    /**
+     * Start List
+     *
+     * Validate the start of the dam:manifest_object_list
+     *
+     * @throws SAXException if validation could not continue
+     */
+    public void startList() throws SAXException {
+        start("manifest_object_list");
+    }
+
+    /**
+     * Entry
+     *
+     * Validate the dam:manifest_object_item for a VEO. The text written for
+     * the entry is parsed (within an element declaring the namespaces) and the
+     * events passed to the validator.
+     *
+     * @param e the entry
+     * @param rendered the text written for the entry (from render())
+     * @throws SAXException if validation could not continue (e.g. the text
+     * was not well formed)
+     */
+    public void entry(ManifestEntry e, String rendered) throws SAXException {
+        context = "VEO '" + e.getFilename() + "'";
+        item.setLength(0);
+        item.append("<item xmlns:dam=\"").append(DAM).append("\" xmlns:xsi=\"").append(XSI).append("\">");
+        item.append(rendered);
+        item.append("</item>");
+        try {
+            reader.parse(new InputSource(new StringReader(item.toString())));
+        } catch (SAXParseException spe) {
+            err.println(context + ": schema violation: " + spe.getMessage());
+            violations++;
+            throw spe;
+        } catch (IOException ioe) {
+            throw new SAXException(ioe.getMessage());
+        }
+        context = "Manifest";
+    }
+
+    /**
+     * Item Handler
+     *
+     * Passes the events of the parsed entry, less the enclosing element, to
+     * the validator
+     */
+    private class ItemHandler extends DefaultHandler {
+
+        int depth;	// depth of the current element (the enclosing one is 1)
+
+        @Override
+        public void startDocument() {
+            depth = 0;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes atts) throws SAXException {
+            depth++;
+            if (depth > 1) {
+                vh.startElement(uri, localName, qName, atts);
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) throws SAXException {
+            if (depth > 1) {
+                vh.endElement(uri, localName, qName);
+            }
+            depth--;
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) throws SAXException {
+            if (depth > 1) {
+                vh.characters(ch, start, length);
+            }
+        }
+
+        @Override
+        public void ignorableWhitespace(char[] ch, int start, int length) throws SAXException {
+            if (depth > 1) {
+                vh.ignorableWhitespace(ch, start, length);
+            }
+        }
+    }
+
+    /**
+     * End List
+     *
+     * Validate the end of the dam:manifest_object_list
+     *
+     * @throws SAXException if validation could not continue
+     */
+    public void endList() throws SAXException {
+        end("manifest_object_list");
+    }
+
+    /**
+     * Media List
+     *
+     * Validate the dam:media_list. The same elements are generated as for
+     * V2ManifestGenerator.writeMediaList().
+     *
+     * @param mg the generator (for the media type)
+     * @param written the time each piece of media was written
+     * @throws SAXException if validation could not continue
+     */
+    public void mediaList(V2ManifestGenerator mg, long[] written) throws SAXException {
+        int i;
+
+        start("media_list");
+        for (i = 0; i < written.length; i++) {
+            start("media_item");
+            element("media_written", V2ManifestGenerator.versDateTime(written[i]));
+            element("media_item", Integer.toString(i + 1));
+            element("media_item_total", Integer.toString(written.length));
+            element("media_type", mg.mediaType);
+            end("media_item");
+        }
+        end("media_list");
+    }
+
+    /**
+     * Postamble
+     *
+     * Validate the end of the manifest
+     *
+     * @param mg the generator (for the type of transfer)
+     * @return the number of violations found
+     * @throws SAXException if validation could not continue
+     */
+    public int postamble(V2ManifestGenerator mg) throws SAXException {
+        end(mg.isInternetExport() ? "electronic_transfer" : "media_transfer");
+        vh.endElement(DAM, "set_manifest", "dam:set_manifest");
+        vh.endPrefixMapping("xsi");
+        vh.endPrefixMapping("dam");
+        vh.endDocument();
+        return violations;
+    }
+
+    private void start(String name) throws SAXException {
+        vh.startElement(DAM, name, "dam:" + name, NO_ATTS);
+    }
+
+    private void end(String name) throws SAXException {
+        vh.endElement(DAM, name, "dam:" + name);
+    }
+
+    /**
+     * Generate the events for a simple element. The value is not escaped.
+     */
+    private void element(String name, String value) throws SAXException {
+        char[] c;
+
+        vh.startElement(DAM, name, "dam:" + name, NO_ATTS);
+        c = value.toCharArray();
+        vh.characters(c, 0, c.length);
+        vh.endElement(DAM, name, "dam:" + name);
+    }
+
+    /**
+     * Error Handler
+     *
+     * Report a violation against the element being validated
+     */
+    @Override
+    public void warning(SAXParseException e) {
+        err.println(context + ": schema warning: " + e.getMessage());
+    }
+
+    @Override
+    public void error(SAXParseException e) {
+        err.println(context + ": schema violation: " + e.getMessage());
+        violations++;
+    }
+
+    @Override
+    public void fatalError(SAXParseException e) throws SAXException {
+        err.println(context + ": schema violation: " + e.getMessage());
+        violations++;
+        throw e;
+    }
+}
@@ -0,0 +1,443 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package v2manifestgenerator;
+
+/**
+ * *************************************************************
+ *
+ * M A N I F E S T W A T C H E R
+ *
+ * This class implements the watch mode of the manifest generator (the -watch
+ * argument). Instead of scanning the source directory once, the generator
+ * watches it (and, for a media export, the media directories within it) while
+ * the VEOs are being written by the export. A VEO is parsed once the writes
+ * to it have stopped (no change for the settle time given by the -settle
+ * argument), and its entry is kept. If a VEO is rewritten it is parsed again,
+ * and if it is deleted its entry is dropped. So the manifest is kept up to
+ * date incrementally and the manifest can be produced at any time without
+ * rescanning the VEOs.
+ *
+ * The watcher is controlled by commands read from standard input, one per
+ * line:
+ *
+ * manifest [file] Write the manifest (to standard out if no file is given)
+ * once all the VEOs have settled. The watcher then continues.
+ *
+ * status Report the number of VEOs in the manifest and waiting to settle.
+ *
+ * quit Stop watching (as does the end of standard input).
+ *
+ * The entries are written sorted on the -sort key (by path if none was
+ * given), so the manifest does not depend on the order the VEOs arrived.
+ * ************************************************************
+ */
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.xml.sax.SAXException;
+
+public class ManifestWatcher {
+
+    static final long POLL = 500;	// ms between checks of the waiting VEOs
+
+    V2ManifestGenerator mg;	// generator (context, parser, and output)
+    long settleTime;	// ms without a change before a VEO is parsed
+    WatchService ws;	// service watching the directories
+    HashMap<WatchKey, File> watched; // the directories being watched
+    HashMap<String, Waiting> waiting; // VEOs waiting to settle (by path)
+    HashMap<String, ManifestEntry> entries; // entries of parsed VEOs (by path)
+    LinkedBlockingQueue<String> commands; // commands read from standard input
+    String manifestRequest;	// outstanding 'manifest' command (null if none)
+    boolean quit;		// true once a 'quit' command is received
+
+    /**
+     * A VEO that is being written
+     */
+    private static class Waiting {
+
+        long lastChange;	// time the VEO was last seen to change
+        long length;		// length of the VEO when last checked
+        long modified;		// modification time when last checked
+    }
+
+    /**
+     * Constructor
+     *
+     * @param mg the generator, configured for the consignment
+     * @param settleTime ms without a change before a VEO is parsed
+     */
+    public ManifestWatcher(V2ManifestGenerator mg, long settleTime) {
+        this.mg = mg;
+        this.settleTime = settleTime;
+        watched = new HashMap<>();
+        waiting = new HashMap<>();
+        entries = new HashMap<>();
+        commands = new LinkedBlockingQueue<>();
+        manifestRequest = null;
+        quit = false;
+    }
+
+    /**
+     * Run
+     *
+     * Watch the source directory until a quit command is received
+     *
+     * @throws IOException if the directories could not be watched
+     */
+    public void run() throws IOException {
+        WatchKey key;
+        String cmd;
+
+        ws = FileSystems.getDefault().newWatchService();
+        try {
+            // watch the source directory, and any media directories in it
+            watch(mg.sourceDirectory.getAbsoluteFile());
+            startCommandReader();
+            mg.err.println("Watching '" + mg.sourceDirectory.getAbsolutePath() + "' (settle time " + settleTime / 1000 + "s)");
+
+            while (!quit || manifestRequest != null) {
+                try {
+                    key = ws.poll(POLL, TimeUnit.MILLISECONDS);
+                    while (key != null) {
+                        events(key);
+                        key = ws.poll();
+                    }
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                settle();
+                while ((cmd = commands.poll()) != null) {
+                    command(cmd.trim());
+                }
+                if (manifestRequest != null && waiting.isEmpty()) {
+                    writeManifest(manifestRequest);
+                    manifestRequest = null;
+                }
+            }
+        } finally {
+            ws.close();
+        }
+    }
+
+    /**
+     * Read commands from standard input on a daemon thread, so that the main
+     * thread can wait on the watch service. The end of input is a quit.
+     */
+    private void startCommandReader() {
+        Thread t;
+
+        t = new Thread(() -> {
+            BufferedReader br;
+            String line;
+
+            br = new BufferedReader(new InputStreamReader(System.in));
+            try {
+                while ((line = br.readLine()) != null) {
+                    commands.add(line);
+                }
+            } catch (IOException ioe) {
+                mg.err.println("Failed reading commands: " + ioe.getMessage());
+            }
+            commands.add("quit");
+        }, "ManifestWatcherCommands");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Execute a command
+     */
+    private void command(String cmd) {
+        if (cmd.equals("")) {
+            return;
+        }
+        if (cmd.equals("quit")) {
+            quit = true;
+        } else if (cmd.equals("status")) {
+            mg.err.println("VEOs in manifest: " + entries.size() + ", waiting to settle: " + waiting.size());
+        } else if (cmd.equals("manifest") || cmd.startsWith("manifest ")) {
+            manifestRequest = cmd.substring(8).trim();
+            if (!waiting.isEmpty()) {
+                mg.err.println("Waiting for " + waiting.size() + " VEOs to settle before writing manifest");
+            }
+        } else {
+            mg.err.println("Unrecognised command '" + cmd + "' (manifest [file], status, or quit)");
+        }
+    }
+
+    /**
+     * Start watching a directory. In a media export the source directory
+     * contains the media directories, which are watched in turn. The VEOs
+     * already in the directory are added to those waiting to settle.
+     */
+    private void watch(File dir) throws IOException {
+        File[] files;
+        int i;
+
+        watched.put(dir.toPath().register(ws, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE), dir);
+        if (isMediaRoot(dir)) {
+            files = dir.listFiles(mg.new FilterDirectories());
+        } else {
+            files = dir.listFiles(mg.new FilterVEOs());
+        }
+        if (files == null) {
+            return;
+        }
+        for (i = 0; i < files.length; i++) {
+            changed(files[i]);
+        }
+    }
+
+    /**
+     * Is this the source directory of a media export (which contains media
+     * directories, not VEOs)?
+     */
+    private boolean isMediaRoot(File dir) {
+        return !mg.isInternetExport() && dir.equals(mg.sourceDirectory.getAbsoluteFile());
+    }
+
+    /**
+     * Process the events on a watched directory
+     */
+    private void events(WatchKey key) throws IOException {
+        File dir, f;
+        WatchEvent.Kind<?> kind;
+
+        dir = watched.get(key);
+        for (WatchEvent<?> we : key.pollEvents()) {
+            kind = we.kind();
+            if (kind == StandardWatchEventKinds.OVERFLOW) {
+                rescan();
+                continue;
+            }
+            f = new File(dir, ((Path) we.context()).toString());
+            if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+                removed(f);
+            } else {
+                changed(f);
+            }
+        }
+        if (!key.reset()) {
+            watched.remove(key);
+            removed(dir);
+        }
+    }
+
+    /**
+     * A file has been created or modified. A new media directory is watched;
+     * a VEO waits to settle.
+     */
+    private void changed(File f) throws IOException {
+        Waiting w;
+        String path;
+
+        if (isMediaRoot(f.getParentFile())) {
+            if (f.isDirectory() && !watched.containsValue(f)) {
+                watch(f);
+            }
+            return;
+        }
+        if (!mg.new FilterVEOs().accept(f)) {
+            return;
+        }
+        path = f.getPath();
+        w = waiting.get(path);
+        if (w == null) {
+            w = new Waiting();
+            waiting.put(path, w);
+        }
+        w.lastChange = System.currentTimeMillis();
+        w.length = f.length();
+        w.modified = f.lastModified();
+    }
+
+    /**
+     * A file or directory has been deleted. Any entries for it are dropped.
+     */
+    private void removed(File f) {
+        String path, prefix;
+        Iterator<String> it;
+
+        path = f.getPath();
+        waiting.remove(path);
+        if (entries.remove(path) != null) {
+            return;
+        }
+
+        // a media directory: drop the VEOs within it
+        prefix = path + File.separator;
+        it = entries.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().startsWith(prefix)) {
+                it.remove();
+            }
+        }
+        it = waiting.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().startsWith(prefix)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Events have been lost. Check every VEO against its entry, and drop the
+     * entries of VEOs that have gone.
+     */
+    private void rescan() throws IOException {
+        File[] veos;
+        ManifestEntry e;
+        Iterator<Map.Entry<String, ManifestEntry>> it;
+        int i;
+
+        mg.err.println("Watch events lost: rescanning");
+        for (File dir : new ArrayList<>(watched.values())) {
+            if (isMediaRoot(dir)) {
+                veos = dir.listFiles(mg.new FilterDirectories());
+            } else {
+                veos = dir.listFiles(mg.new FilterVEOs());
+            }
+            if (veos == null) {
+                continue;
+            }
+            for (i = 0; i < veos.length; i++) {
+                if (veos[i].isDirectory()) {
+                    if (!watched.containsValue(veos[i])) {
+                        watch(veos[i]);
+                    }
+                    continue;
+                }
+                e = entries.get(veos[i].getPath());
+                if (e == null || e.getLength() != veos[i].length() || e.getLastModified() != veos[i].lastModified()) {
+                    changed(veos[i]);
+                }
+            }
+        }
+        it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            if (!new File(it.next().getKey()).exists()) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Parse the VEOs that have not changed for the settle time. A VEO that is
+     * still changing (even if no event was seen) continues to wait.
+     */
+    private void settle() {
+        ArrayList<File> ready;
+        Iterator<Map.Entry<String, Waiting>> it;
+        Map.Entry<String, Waiting> me;
+        Waiting w;
+        File f;
+        long now;
+
+        ready = new ArrayList<>();
+        now = System.currentTimeMillis();
+        it = waiting.entrySet().iterator();
+        while (it.hasNext()) {
+            me = it.next();
+            w = me.getValue();
+            f = new File(me.getKey());
+            if (!f.exists()) {
+                it.remove();
+                continue;
+            }
+            if (f.length() != w.length || f.lastModified() != w.modified) {
+                w.lastChange = now;
+                w.length = f.length();
+                w.modified = f.lastModified();
+                continue;
+            }
+            if (now - w.lastChange >= settleTime) {
+                ready.add(f);
+                entries.remove(me.getKey());
+                it.remove();
+            }
+        }
+        if (ready.isEmpty()) {
+            return;
+        }
+        mg.parseVEOs(ready.toArray(new File[ready.size()]), e -> {
+            mg.checkDates(e);
+            entries.put(new File(e.getDirectory(), e.getFilename()).getPath(), e);
+        });
+        mg.err.println();
+    }
+
+    /**
+     * Write the manifest from the entries of the VEOs
+     *
+     * @param file the file to write the manifest to ("" for standard out)
+     */
+    private void writeManifest(String file) {
+        ArrayList<ManifestEntry> list;
+        File[] media;
+        long[] written;
+        PrintStream ps, out;
+        int i;
+
+        ps = null;
+        out = mg.out;
+        try {
+            if (!file.equals("")) {
+                ps = new PrintStream(new FileOutputStream(file), false, "UTF-8");
+                mg.out = ps;
+            }
+            if (mg.validate) {
+                mg.validator = new ManifestValidator(mg.err);
+            }
+            list = new ArrayList<>(entries.values());
+            Collections.sort(list, ManifestSorter.comparator(mg.sortKey != null ? mg.sortKey : ManifestSorter.Key.PATH));
+            mg.writePreamble();
+            mg.writeListStart();
+            for (ManifestEntry e : list) {
+                mg.writeEntry(e);
+            }
+            mg.writeListEnd();
+            if (!mg.isInternetExport()) {
+                media = mg.sourceDirectory.listFiles(mg.new FilterDirectories());
+                Arrays.sort(media, Comparator.comparing(File::getName));
+                written = new long[media.length];
+                for (i = 0; i < media.length; i++) {
+                    written[i] = media[i].lastModified();
+                }
+                mg.writeMediaList(written);
+            }
+            mg.writePostamble();
+            mg.out.flush();
+            mg.err.println("Manifest of " + list.size() + " VEOs written" + (file.equals("") ? "" : " to '" + file + "'"));
+        } catch (IOException | SAXException e) {
+            mg.err.println("Failed writing manifest: " + e.getMessage());
+        } finally {
+            if (ps != null) {
+                ps.close();
+                mg.out = out;
+            }
+        }
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package v2manifestgenerator;
+
+/**
+ * *************************************************************
+ *
+ * M E D I A P L A N N E R
+ *
+ * This class plans which VEOs are to be written to which piece of media in a
+ * media export (the -plan argument), instead of the VEOs having been sorted
+ * by hand into one directory for each piece of media. The VEOs are packed
+ * into as few pieces of media as practical using first fit decreasing: the
+ * VEOs are taken largest first, and each is put on the first piece of media
+ * with room for it.
+ *
+ * Finding the first piece of media with room is done with a tree of the
+ * largest space left in each range of media (a segment tree), so each VEO is
+ * placed in O(log m) time for m pieces of media, and millions of VEOs are
+ * planned in seconds.
+ *
+ * The capacity of each type of media is given by capacity() and may be
+ * overridden with the -capacity argument.
+ * ************************************************************
+ */
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+public class MediaPlanner {
+
+    long capacity;		// bytes that fit on a piece of media
+    long[] sizes;		// size of each VEO
+    int[] media;		// the piece of media (from 0) each VEO is on
+    long[] used;		// bytes used on each piece of media
+    int[] first;		// position in byMedia of the first VEO on each piece of media
+    int[] byMedia;		// the VEOs, grouped by media (in the order listed)
+    int mediaUsed;		// number of pieces of media used
+
+    /**
+     * Constructor
+     *
+     * @param capacity bytes that fit on a piece of media
+     */
+    public MediaPlanner(long capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Capacity
+     *
+     * Return the capacity of a type of media (as given to -m)
+     *
+     * @param mediaType the type of media
+     * @return the capacity in bytes
+     */
+    public static long capacity(String mediaType) {
+        switch (mediaType) {
+            case "CD":
+                return 700L * 1024 * 1024;
+            case "DVD":
+                return 4700L * 1000 * 1000;
+            case "DDS TAPE":
+                return 20L * 1000 * 1000 * 1000;
+            case "LTO TAPE":
+                return 1500L * 1000 * 1000 * 1000;
+            default:
+                throw new IllegalArgumentException("Unknown media type '" + mediaType + "'");
+        }
+    }
+
+    /**
+     * Plan
+     *
+     * Assign each VEO to a piece of media
+     *
+     * @param sizes the size of each VEO in bytes
+     * @return the number of pieces of media needed
+     * @throws IllegalArgumentException if a VEO is larger than the media
+     */
+    public int plan(long[] sizes) {
+        int[] order, tally;
+        long[] tree;
+        long total;
+        int i, n, leaves, m, node;
+
+        this.sizes = sizes;
+        n = sizes.length;
+        media = new int[n];
+        total = 0;
+        for (i = 0; i < n; i++) {
+            if (sizes[i] > capacity) {
+                throw new IllegalArgumentException("VEO " + i + " (" + sizes[i] + " bytes) is larger than the media (" + capacity + " bytes)");
+            }
+            total += sizes[i];
+        }
+
+        // first fit never leaves two pieces of media less than half full, so
+        // this many pieces of media are enough
+        m = (int) Math.min(n, 2 * (total / capacity + 1) + 1);
+        m = Math.max(m, 1);
+        leaves = Integer.highestOneBit(m);
+        if (leaves < m) {
+            leaves *= 2;
+        }
+        tree = new long[2 * leaves];
+        Arrays.fill(tree, leaves, leaves + m, capacity);
+        for (i = leaves - 1; i > 0; i--) {
+            tree[i] = Math.max(tree[2 * i], tree[2 * i + 1]);
+        }
+
+        order = largestFirst(sizes);
+
+        // put each on the first piece of media with room (the leftmost leaf
+        // with at least the size left)
+        mediaUsed = 0;
+        for (int v : order) {
+            node = 1;
+            while (node < leaves) {
+                node = tree[2 * node] >= sizes[v] ? 2 * node : 2 * node + 1;
+            }
+            media[v] = node - leaves;
+            mediaUsed = Math.max(mediaUsed, media[v] + 1);
+            tree[node] -= sizes[v];
+            for (node /= 2; node > 0; node /= 2) {
+                tree[node] = Math.max(tree[2 * node], tree[2 * node + 1]);
+            }
+        }
+
+        // group the VEOs by media
+        used = new long[mediaUsed];
+        first = new int[mediaUsed + 1];
+        for (i = 0; i < n; i++) {
+            used[media[i]] += sizes[i];
+            first[media[i] + 1]++;
+        }
+        for (i = 0; i < mediaUsed; i++) {
+            first[i + 1] += first[i];
+        }
+        byMedia = new int[n];
+        tally = Arrays.copyOf(first, mediaUsed);
+        for (i = 0; i < n; i++) {
+            byMedia[tally[media[i]]++] = i;
+        }
+        return mediaUsed;
+    }
+
+    /**
+     * Largest First
+     *
+     * Return the indexes of the VEOs, largest VEO first (in the order listed
+     * if the same size). If the size and index fit in a long together, they
+     * are sorted as longs, which is much faster than sorting boxed indexes
+     * with a comparator.
+     */
+    static int[] largestFirst(long[] sizes) {
+        Integer[] boxed;
+        long[] keys;
+        int[] order;
+        long max, mask;
+        int i, n, bits;
+
+        n = sizes.length;
+        order = new int[n];
+        max = 0;
+        for (i = 0; i < n; i++) {
+            max = Math.max(max, sizes[i]);
+        }
+        bits = 64 - Long.numberOfLeadingZeros(Math.max(n - 1, 1));
+        if (max < (1L << (63 - bits))) {
+            mask = (1L << bits) - 1;
+            keys = new long[n];
+            for (i = 0; i < n; i++) {
+                keys[i] = ((max - sizes[i]) << bits) | i;
+            }
+            Arrays.sort(keys);
+            for (i = 0; i < n; i++) {
+                order[i] = (int) (keys[i] & mask);
+            }
+        } else {
+            boxed = new Integer[n];
+            for (i = 0; i < n; i++) {
+                boxed[i] = i;
+            }
+            Arrays.sort(boxed, (a, b) -> sizes[a] != sizes[b] ? Long.compare(sizes[b], sizes[a]) : Integer.compare(a, b));
+            for (i = 0; i < n; i++) {
+                order[i] = boxed[i];
+            }
+        }
+        return order;
+    }
+
+    /**
+     * On Media
+     *
+     * Return the VEOs on a piece of media, in the order they were listed
+     *
+     * @param veos the VEOs planned
+     * @param m the piece of media (from 0)
+     * @return the VEOs on the media
+     */
+    public File[] onMedia(File[] veos, int m) {
+        File[] on;
+        int i;
+
+        on = new File[first[m + 1] - first[m]];
+        for (i = first[m]; i < first[m + 1]; i++) {
+            on[i - first[m]] = veos[byMedia[i]];
+        }
+        return on;
+    }
+
+    /**
+     * Write Layout
+     *
+     * Write the layout of the media: a line for each piece of media giving
+     * the number of VEOs and the bytes used, followed by a line for each VEO
+     * on it giving its size and name (separated by tabs).
+     *
+     * @param file the file to write
+     * @param veos the VEOs planned
+     * @param mediaType the type of media
+     * @throws IOException if the file could not be written
+     */
+    public void writeLayout(File file, File[] veos, String mediaType) throws IOException {
+        PrintWriter w;
+        int m, i;
+
+        w = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), 65536));
+        try {
+            for (m = 0; m < mediaUsed; m++) {
+                w.println(mediaType + " " + (m + 1) + " of " + mediaUsed + "\t" + (first[m + 1] - first[m]) + " VEOs\t" + used[m] + " of " + capacity + " bytes");
+                for (i = first[m]; i < first[m + 1]; i++) {
+                    w.println("\t" + sizes[byMedia[i]] + "\t" + veos[byMedia[i]].getName());
+                }
+            }
+        } finally {
+            w.close();
+        }
+        if (w.checkError()) {
+            throw new IOException("write failed");
+        }
+    }
+
+    /**
+     * Summary
+     *
+     * @return a description of how full the media are
+     */
+    public String summary() {
+        long min, max, total;
+        int m;
+
+        min = Long.MAX_VALUE;
+        max = 0;
+        total = 0;
+        for (m = 0; m < mediaUsed; m++) {
+            min = Math.min(min, used[m]);
+            max = Math.max(max, used[m]);
+            total += used[m];
+        }
+        if (mediaUsed == 0) {
+            return "No media needed";
+        }
+        return "Media needed: " + mediaUsed + " (" + percent(total, (long) mediaUsed * capacity)
+                + " full; fullest " + percent(max, capacity) + ", emptiest " + percent(min, capacity) + ")";
+    }
+
+    private static String percent(long a, long b) {
+        return String.format("%.1f%%", 100.0 * a / b);
+    }
+}
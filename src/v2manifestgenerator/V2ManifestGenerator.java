@@ -49,42 +49,104 @@ package v2manifestgenerator;
  * 'CD', 'DVD', 'DDS', or 'LTO'. If not present, an electronic transfer is
  * generated. -n Use the DTD referenced by the VEO. If this is not present the
  * standard VERS DTD from the PROV web site is used. -proxy <host>:<port> It is
- * necessary to use a proxy to get to the PROV website
+ * necessary to use a proxy to get to the PROV website -fields <list> Only
+ * capture and write the listed fields for each VEO (a comma separated list of
+ * filename, fileid, recid, title, classification, access, disposal, dates, and
+ * size). The parse of a VEO stops as soon as the listed fields are captured.
+ * -threads <n> Parse VEOs using n threads. The entries are still written in the
+ * order the VEOs are listed. -sort <key> Sort the manifest entries by
+ * 'filename', 'fileid', or 'recid' so that the manifest does not depend on the
+ * order the file system lists the VEOs. -sortmem <MB> The memory used for
+ * sorting, above which sorted runs are spilled to temporary files (default
+ * 64MB). -dups Check for VEOs with the same file and record identifiers, and
+ * for identical VEOs (e.g. copied onto two pieces of media), and report them
+ * (not when sharding, as a shard only sees some of the VEOs).
+ * -diff <manifest> Instead of generating a manifest, compare the VEOs against
+ * a manifest previously generated, and list the VEOs that have been added,
+ * removed, or changed. Only new VEOs, and VEOs whose size or modification time
+ * has changed, are parsed. -shard <i>/<n> Only process the VEOs belonging to
+ * shard i of n (decided by a hash of the path of the VEO), and write the
+ * sorted entries to a partial manifest (-partial <file>, default
+ * 'shard<i>of<n>.part') instead of standard out. The partial manifests from the
+ * shards are merged into a manifest by ManifestShard. -report <file> Also write
+ * the HTML manifest report (as produced by manifestrpt.xsl) to the file.
+ * -validate Validate the manifest against the schema (manifest.xsd) as it is
+ * generated, and report any violations against the VEO concerned. -watch
+ * Instead of scanning the VEOs once, watch the directory while the VEOs are
+ * being exported, parse each VEO once writes to it have stopped for the settle
+ * time (-settle <seconds>, default 5), and write the manifest when asked (see
+ * ManifestWatcher). -export <file> Also write the entries, as they are
+ * generated, to the file for analysis; the format is JSON Lines, CSV, or a
+ * compact binary columnar format if the file name ends in '.jsonl', '.csv',
+ * or '.col' (see ManifestExport). May be repeated. -stats <file> Also write
+ * summary statistics about the consignment (numbers of VEOs, sizes, date
+ * ranges, and counts by access category, classification, and disposal
+ * authority) to the file (see ManifestStats). -plan <file> For a media
+ * export, instead of the VEOs already being in a directory for each piece of
+ * media, plan which piece of media each of the VEOs in the directory is to be
+ * written to, packing the media as full as possible, write the layout of the
+ * media to the file, and generate the manifest (including the dam:media_list)
+ * for that layout (see MediaPlanner). -capacity <MB> The capacity of each
+ * piece of media when planning (default depends on the media type).
+ *
+ * The start and end dates are written in a canonical form (see VersDate), and
+ * dates that are not valid VERS dates, or files that were closed before they
+ * were registered, are reported.
  *
  * Version History 20090506	Added an entity resolver to allow use of a local
  * vers.dtd file as something seems to block remote access to
  * www.prov.vic.gov.au/vers/std
  * ************************************************************
  */
-import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileFilter;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
-import java.util.TimeZone;
-import java.util.Locale;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Date;
-import java.text.SimpleDateFormat;
-import java.util.Stack;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
-import org.xml.sax.Attributes;
-import org.xml.sax.InputSource;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.xml.sax.SAXException;
-import org.xml.sax.SAXNotRecognizedException;
-import org.xml.sax.SAXNotSupportedException;
-import org.xml.sax.XMLReader;
-import org.xml.sax.ext.DefaultHandler2;
-
-public class V2ManifestGenerator extends DefaultHandler2 {
-    // XMLReader xr;		// XML reader to perform parser
 
-    SAXParser sax;		// XML parser to perform parse
+public class V2ManifestGenerator {
+
+    static final int WINDOW = 4; // VEOs in progress per worker thread
+
+    // format of the dates written by the generator (see versDateTime())
+    static final DateTimeFormatter VERS_DATE_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ssxxx");
+    static final ZoneId ZONE = ZoneId.systemDefault();
+
+    // arguments of a job run within a server or batch that take a value, and
+    // those that are flags
+    static final List<String> JOB_ARGS = Arrays.asList(
+            "va", "vprs", "p", "r", "t", "u", "tr", "d", "m", "v", "fields", "sort", "sortmem");
+    static final List<String> JOB_FLAGS = Arrays.asList("n", "dups", "validate");
+
+    ExecutorService workers; // threads parsing VEOs in parallel (null if none)
+    boolean sharedWorkers;	// true if the worker threads are shared with other jobs
+    ManifestSorter sorter;	// sorts the entries (null if not sorting)
+    DuplicateDetector duplicates; // finds duplicate VEOs (null if not checking)
+    ManifestReport report;	// generates the HTML report (null if none)
+    ManifestValidator validator; // validates the manifest (null if not)
+    List<ManifestExport> exports; // exports being written as the entries arrive
+    ManifestStats.Collector stats; // accumulates the statistics (null if none)
+    PrintStream out;	// where the manifest is written (standard out)
+    PrintStream err;	// where progress and errors are reported (standard err)
+    boolean exitOnError;	// true if an error ends the program (else throws Failure)
+    volatile boolean cancelled; // true if the job has been cancelled
+    volatile int veosParsed; // number of VEOs parsed so far
     String proxyHost;	// Domain name of proxy server (null if none)
     String proxyPort;	// Port that proxy server is listening
 
@@ -99,25 +161,40 @@ public class V2ManifestGenerator extends DefaultHandler2 {
     int consignmentNumber;	// number of consignment within series
     String transferId;	// transfer job number
     boolean useStdDtd;	// true if using the DTD from the VERS website
+    EnumSet<ManifestField> fields; // fields to be captured and written
+    int threads;		// number of threads parsing VEOs
+    ManifestSorter.Key sortKey; // key to sort manifest on (null if not sorted)
+    long sortMemory;	// bytes of entries held in memory when sorting
+    boolean checkDuplicates; // true if checking for duplicate VEOs
+    File diffManifest;	// manifest to compare against (null if not diffing)
+    int shardIndex;		// shard of the VEOs to be processed
+    int shardCount;		// number of shards (0 if not sharding)
+    File partialFile;	// partial manifest written by a shard
+    File reportFile;	// HTML report to be written (null if none)
+    List<File> exportFiles;	// files the entries are exported to
+    File statsFile;		// summary statistics to be written (null if none)
+    File planFile;		// media layout to be planned (null if not planning)
+    long mediaCapacity;	// bytes per piece of media when planning (0 if default)
+    boolean validate;	// true if validating the manifest against the schema
+    boolean watch;		// true if watching the directory for VEOs
+    long settleTime;	// ms without a change before a watched VEO is parsed
+    String createdTimestamp; // time the manifest was created
+
+    /**
+     * Failure
+     *
+     * Thrown when a job run within a server or batch fails, instead of the
+     * program exiting. The error has already been reported on the job's error
+     * stream.
+     */
+    public static class Failure extends RuntimeException {
 
-    // global variables storing information extracted from this VEO
-    boolean record;		// true if this VEO contains a record VEO
-    String fileIdentifier;	// vers:FileIdentifier
-    String recIdentifier;	// vers:RecordIdentifier
-    String titleWords;	// vers:TitleWords
-    String function;	// vers:FunctionDescriptor (et al)
-    String subject;		// vers:Subject (et al)
-    String accessStatus;	// naa:AccessStatus
-    String sentence;	// naa:Sentence
-    String dateRegistered;	// naa:DateTimeRegistered
-    String dateClosed;	// vers:DateTimeClosed
-
-    // stack of elements encountered in the parse
-    Stack<String> elementsFound; // stack of the elements recognised in the parse
-    int elementFound;	// which element did we find?
-    boolean recording;	// true if recognised an element name and are
-    // now capturing element value
-    StringBuffer elementValue; // the value of the element found
+        private static final long serialVersionUID = 1L;
+
+        public Failure(String msg) {
+            super(msg);
+        }
+    }
 
     /**
      * Default constructor
@@ -125,27 +202,50 @@ public class V2ManifestGenerator extends DefaultHandler2 {
      * @param args command line arguments
      */
     public V2ManifestGenerator(String args[]) {
-        super();
-
-        SAXParserFactory spf;
+        this(args, standardOut(), System.err, null, true);
+    }
 
-        // set up SAX parser
+    /**
+     * Standard Out
+     *
+     * The manifest declares that it is encoded in UTF-8, so it is written to
+     * standard out in UTF-8 whatever the platform's default charset (which is
+     * ASCII in a POSIX locale, turning all other characters into '?').
+     */
+    private static PrintStream standardOut() {
         try {
-            spf = SAXParserFactory.newInstance();
-            spf.setValidating(false);
-            sax = spf.newSAXParser();
-            XMLReader xmlReader = sax.getXMLReader();
-
-            xmlReader.setProperty("http://xml.org/sax/properties/lexical-handler", this);
-        } catch (SAXNotRecognizedException | SAXNotSupportedException | ParserConfigurationException e) {
-            System.err.println("Failure initiating SAX Parser: " + e.toString());
-            System.exit(-1);
-        } catch (SAXException e) {
-            System.err.println("Failure initiating SAX Parser: " + e.toString());
-            System.exit(-1);
+            return new PrintStream(System.out, true, "UTF-8");
+        } catch (UnsupportedEncodingException uee) {
+            // every JVM supports UTF-8
+            throw new Error(uee);
         }
+    }
+
+    /**
+     * Job constructor
+     *
+     * Constructor for a job run within a server or batch (e.g. ManifestServer).
+     * An error in the job throws a Failure rather than ending the program.
+     *
+     * @param args arguments configuring the job (as for the command line)
+     * @param out where the manifest is to be written
+     * @param err where the progress and errors of the job are reported
+     * @param pool worker threads shared between jobs (null to create threads
+     * for this job as given by -threads)
+     */
+    public V2ManifestGenerator(String args[], PrintStream out, PrintStream err, ExecutorService pool) {
+        this(args, out, err, pool, false);
+    }
+
+    private V2ManifestGenerator(String args[], PrintStream out, PrintStream err, ExecutorService pool, boolean exitOnError) {
+        super();
 
         // set up default global variables
+        this.out = out;
+        this.err = err;
+        this.exitOnError = exitOnError;
+        cancelled = false;
+        veosParsed = 0;
         proxyHost = null;
         proxyPort = null;
         sourceDirectory = new File(".");
@@ -158,12 +258,71 @@ public class V2ManifestGenerator extends DefaultHandler2 {
         consignmentNumber = -1;
         transferId = null;
         useStdDtd = true;
-
-        elementValue = new StringBuffer();
+        setFields(EnumSet.allOf(ManifestField.class));
+        threads = 1;
+        sortKey = null;
+        sortMemory = 64L * 1024 * 1024;
+        checkDuplicates = false;
+        diffManifest = null;
+        shardIndex = 0;
+        shardCount = 0;
+        partialFile = null;
+        reportFile = null;
+        exportFiles = new ArrayList<>();
+        statsFile = null;
+        planFile = null;
+        mediaCapacity = 0;
+        validate = false;
+        watch = false;
+        settleTime = 5000;
+        createdTimestamp = null;
 
         // process command line arguments
         configure(args);
 
+        // set up the worker threads, and the sorter if sorting
+        if (pool != null) {
+            workers = pool;
+            sharedWorkers = true;
+        } else if (threads > 1) {
+            workers = newWorkerPool(threads);
+            sharedWorkers = false;
+        }
+        if (shardCount > 0 && sortKey == null) {
+            sortKey = ManifestSorter.Key.PATH;
+        }
+        if (sortKey != null) {
+            sorter = new ManifestSorter(sortKey, sortMemory, null);
+        }
+        if (reportFile != null) {
+            report = new ManifestReport(reportFile, sortMemory);
+        }
+        exports = new ArrayList<>();
+        for (File f : exportFiles) {
+            try {
+                exports.add(ManifestExport.open(f, fields));
+            } catch (IOException ioe) {
+                fail("Failed creating export '" + f.getPath() + "': " + ioe.getMessage());
+            }
+        }
+        if (statsFile != null) {
+            stats = new ManifestStats.Collector(fields);
+        }
+        if (validate) {
+            try {
+                validator = new ManifestValidator(err);
+            } catch (SAXException se) {
+                fail("Failed loading manifest schema: " + se.getMessage());
+            }
+        }
+        if (checkDuplicates) {
+            try {
+                duplicates = new DuplicateDetector(null);
+            } catch (IOException ioe) {
+                fail("Failed setting up duplicate check: " + ioe.getMessage());
+            }
+        }
+
         // use proxy
         if (proxyHost != null) {
             System.setProperty("http.proxyHost", proxyHost);
@@ -171,6 +330,101 @@ public class V2ManifestGenerator extends DefaultHandler2 {
         }
     }
 
+    /**
+     * newWorkerPool
+     *
+     * Create a pool of (daemon) threads to parse VEOs
+     *
+     * @param threads the number of threads
+     * @return the pool
+     */
+    public static ExecutorService newWorkerPool(int threads) {
+        return Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "VEOParser");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * jobArguments
+     *
+     * Convert the parameters of a job run within a server or batch into the
+     * arguments of a generator. The parameters are the command line arguments
+     * without the '-': va, vprs, p|r|t|u, tr, d, m, v, fields, sort, and
+     * sortmem take a value, and n, dups, and validate are flags (set unless
+     * the value is 'false'). The directory (d) must be given, as the current
+     * directory of a server or batch is not meaningful.
+     *
+     * @param params the parameters of the job (name to value)
+     * @param threads the number of threads in the shared worker pool
+     * @return the arguments
+     * @throws IllegalArgumentException if a parameter is not recognised
+     */
+    public static String[] jobArguments(Map<String, String> params, int threads) {
+        ArrayList<String> args;
+        String value;
+
+        args = new ArrayList<>();
+        for (Map.Entry<String, String> p : params.entrySet()) {
+            value = p.getValue();
+            if (JOB_ARGS.contains(p.getKey())) {
+                if (value == null || value.equals("")) {
+                    throw new IllegalArgumentException("Parameter '" + p.getKey() + "' needs a value");
+                }
+                args.add("-" + p.getKey());
+                args.add(value);
+            } else if (JOB_FLAGS.contains(p.getKey())) {
+                if (value == null || !value.equalsIgnoreCase("false")) {
+                    args.add("-" + p.getKey());
+                }
+            } else {
+                throw new IllegalArgumentException("Unrecognised parameter '" + p.getKey() + "' (expected one of " + JOB_ARGS + " or " + JOB_FLAGS + ")");
+            }
+        }
+        if (!params.containsKey("d")) {
+            throw new IllegalArgumentException("The directory containing the VEOs (d) must be given");
+        }
+        args.add("-threads");
+        args.add(Integer.toString(threads));
+        return args.toArray(new String[args.size()]);
+    }
+
+    /**
+     * Fail
+     *
+     * Report an error that prevents this run continuing. From the command line
+     * the program exits; a job run within a server or batch throws a Failure
+     * so that the other jobs are not affected.
+     *
+     * @param msg the error
+     */
+    void fail(String msg) {
+        err.println(msg);
+        if (exitOnError) {
+            System.exit(-1);
+        }
+        throw new Failure(msg);
+    }
+
+    /**
+     * Cancel
+     *
+     * Cancel a job. The job fails at the next VEO.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * getVeosParsed
+     *
+     * @return the number of VEOs parsed so far (for reporting progress)
+     */
+    public int getVeosParsed() {
+        return veosParsed;
+    }
+
     /**
      * Configure
      *
@@ -182,7 +436,7 @@ public class V2ManifestGenerator extends DefaultHandler2 {
      */
     public final void configure(String args[]) {
         int i, j;
-        String usage = "manifestGenerator -va <number> -vprs <number> -p|r|t|u <number> -tr <id> [-m <media type>] [-d <directory>] [-v extension] [-n] [-proxy host:port]";
+        String usage = "manifestGenerator -va <number> -vprs <number> -p|r|t|u <number> -tr <id> [-m <media type>] [-d <directory>] [-v extension] [-n] [-proxy host:port] [-fields list] [-threads n] [-sort filename|fileid|recid] [-sortmem MB] [-dups] [-diff manifest] [-shard i/n [-partial file]] [-report file] [-export file] [-stats file] [-plan file [-capacity MB]] [-validate] [-watch [-settle seconds]]";
         String s;
 
         // process command line arguments
@@ -193,7 +447,7 @@ public class V2ManifestGenerator extends DefaultHandler2 {
                 if (args[i].equals("-va")) {
                     i++;
                     vaNumber = parseInt("VA", args[i]);
-                    System.err.println("VA Number: '" + vaNumber + "'");
+                    err.println("VA Number: '" + vaNumber + "'");
                     i++;
                     continue;
                 }
@@ -202,7 +456,7 @@ public class V2ManifestGenerator extends DefaultHandler2 {
                 if (args[i].equals("-vprs")) {
                     i++;
                     vprsNumber = parseInt("VPRS", args[i]);
-                    System.err.println("VPRS Number: '" + vprsNumber + "'");
+                    err.println("VPRS Number: '" + vprsNumber + "'");
                     i++;
                     continue;
                 }
@@ -232,10 +486,9 @@ public class V2ManifestGenerator extends DefaultHandler2 {
                     i++;
                     consignmentNumber = parseInt("Consignment", args[i]);
                     if (consignmentNumber < 0 || consignmentNumber > 9999) {
-                        System.err.println("Consignment number (" + consignmentNumber + ") must be between 1 and 9999");
-                        System.exit(-1);
+                        fail("Consignment number (" + consignmentNumber + ") must be between 1 and 9999");
                     }
-                    System.err.println("Consignment Type: '" + consignmentType + "', Number: '" + consignmentNumber + "'");
+                    err.println("Consignment Type: '" + consignmentType + "', Number: '" + consignmentNumber + "'");
                     i++;
                     continue;
                 }
@@ -244,7 +497,7 @@ public class V2ManifestGenerator extends DefaultHandler2 {
                 if (args[i].equals("-tr")) {
                     i++;
                     transferId = args[i];
-                    System.err.println("Transfer Job Number: '" + transferId + "'");
+                    err.println("Transfer Job Number: '" + transferId + "'");
                     i++;
                     continue;
                 }
@@ -258,7 +511,7 @@ public class V2ManifestGenerator extends DefaultHandler2 {
                         s = sourceDirectory.getCanonicalPath();
                     } catch (IOException ioe) {
                         /* ignore */ }
-                    System.err.println("Source directory: '" + s + "'");
+                    err.println("Source directory: '" + s + "'");
                     i++;
                     continue;
                 }
@@ -266,7 +519,7 @@ public class V2ManifestGenerator extends DefaultHandler2 {
                 // '-n' use DTD from VEOs, not from VERS web site
                 if (args[i].equals("-n")) {
                     useStdDtd = false;
-                    System.err.println("Using 'vers.dtd' from current directory nstead of from VERS website");
+                    err.println("Using 'vers.dtd' from current directory nstead of from VERS website");
                     i++;
                     continue;
                 }
@@ -282,7 +535,7 @@ public class V2ManifestGenerator extends DefaultHandler2 {
                         proxyHost = args[i];
                         proxyPort = "80";
                     }
-                    System.err.println("Using proxy server: " + proxyHost + ":" + proxyPort);
+                    err.println("Using proxy server: " + proxyHost + ":" + proxyPort);
                     i++;
                     continue;
                 }
@@ -291,7 +544,164 @@ public class V2ManifestGenerator extends DefaultHandler2 {
                 if (args[i].equals("-v")) {
                     i++;
                     fileExtension = args[i].toLowerCase();
-                    System.err.println("File extension: '" + fileExtension + "'");
+                    err.println("File extension: '" + fileExtension + "'");
+                    i++;
+                    continue;
+                }
+
+                // '-fields' restricts the fields captured and written
+                if (args[i].equals("-fields")) {
+                    i++;
+                    try {
+                        setFields(ManifestField.parseList(args[i]));
+                    } catch (IllegalArgumentException iae) {
+                        fail(iae.getMessage());
+                    }
+                    err.println("Fields: " + fields.toString());
+                    i++;
+                    continue;
+                }
+
+                // '-threads' parse VEOs in parallel
+                if (args[i].equals("-threads")) {
+                    i++;
+                    threads = parseInt("Threads", args[i]);
+                    err.println("Parsing threads: " + threads);
+                    i++;
+                    continue;
+                }
+
+                // '-sort' sorts the manifest entries on a key
+                if (args[i].equals("-sort")) {
+                    i++;
+                    try {
+                        sortKey = ManifestSorter.Key.parse(args[i]);
+                    } catch (IllegalArgumentException iae) {
+                        fail(iae.getMessage());
+                    }
+                    err.println("Sort manifest by: " + sortKey);
+                    i++;
+                    continue;
+                }
+
+                // '-sortmem' memory (in MB) used to sort before spilling to disk
+                if (args[i].equals("-sortmem")) {
+                    i++;
+                    sortMemory = parseInt("Sort memory", args[i]) * 1024L * 1024L;
+                    err.println("Sort memory: " + args[i] + "MB");
+                    i++;
+                    continue;
+                }
+
+                // '-dups' check for duplicate identifiers and VEOs
+                if (args[i].equals("-dups")) {
+                    checkDuplicates = true;
+                    err.println("Checking for duplicate VEOs");
+                    i++;
+                    continue;
+                }
+
+                // '-diff' compare against a previous manifest
+                if (args[i].equals("-diff")) {
+                    i++;
+                    diffManifest = new File(args[i]);
+                    err.println("Comparing against manifest: '" + diffManifest.getPath() + "'");
+                    i++;
+                    continue;
+                }
+
+                // '-shard' process one shard of the VEOs
+                if (args[i].equals("-shard")) {
+                    i++;
+                    j = args[i].indexOf('/');
+                    if (j == -1) {
+                        fail("Shard '" + args[i] + "' should be of the form i/n");
+                    }
+                    shardIndex = parseShard(args[i].substring(0, j));
+                    shardCount = parseInt("Shard count", args[i].substring(j + 1));
+                    if (shardIndex >= shardCount) {
+                        fail("Shard '" + args[i] + "' must be less than the number of shards");
+                    }
+                    err.println("Processing shard " + shardIndex + " of " + shardCount);
+                    i++;
+                    continue;
+                }
+
+                // '-partial' the partial manifest written by a shard
+                if (args[i].equals("-partial")) {
+                    i++;
+                    partialFile = new File(args[i]);
+                    err.println("Partial manifest: '" + partialFile.getPath() + "'");
+                    i++;
+                    continue;
+                }
+
+                // '-report' generate the HTML manifest report as well
+                if (args[i].equals("-report")) {
+                    i++;
+                    reportFile = new File(args[i]);
+                    err.println("Manifest report: '" + reportFile.getPath() + "'");
+                    i++;
+                    continue;
+                }
+
+                // '-export' write the entries to a file for analysis as well
+                if (args[i].equals("-export")) {
+                    i++;
+                    exportFiles.add(new File(args[i]));
+                    err.println("Exporting entries to: '" + args[i] + "'");
+                    i++;
+                    continue;
+                }
+
+                // '-stats' write summary statistics about the consignment
+                if (args[i].equals("-stats")) {
+                    i++;
+                    statsFile = new File(args[i]);
+                    err.println("Statistics: '" + statsFile.getPath() + "'");
+                    i++;
+                    continue;
+                }
+
+                // '-plan' plan the layout of the VEOs on the media
+                if (args[i].equals("-plan")) {
+                    i++;
+                    planFile = new File(args[i]);
+                    err.println("Media layout: '" + planFile.getPath() + "'");
+                    i++;
+                    continue;
+                }
+
+                // '-capacity' capacity of the media when planning
+                if (args[i].equals("-capacity")) {
+                    i++;
+                    mediaCapacity = parseInt("Media capacity", args[i]) * 1000L * 1000L;
+                    err.println("Media capacity: " + args[i] + "MB");
+                    i++;
+                    continue;
+                }
+
+                // '-validate' validate the manifest against the schema
+                if (args[i].equals("-validate")) {
+                    validate = true;
+                    err.println("Validating manifest against schema");
+                    i++;
+                    continue;
+                }
+
+                // '-watch' watch the directory while the VEOs are exported
+                if (args[i].equals("-watch")) {
+                    watch = true;
+                    err.println("Watching for VEOs");
+                    i++;
+                    continue;
+                }
+
+                // '-settle' time without a change before a watched VEO is parsed
+                if (args[i].equals("-settle")) {
+                    i++;
+                    settleTime = parseInt("Settle time", args[i]) * 1000L;
+                    err.println("Settle time: " + settleTime / 1000 + "s");
                     i++;
                     continue;
                 }
@@ -315,41 +725,119 @@ public class V2ManifestGenerator extends DefaultHandler2 {
                             mediaType = "DVD";
                             break;
                         default:
-                            System.err.println("Media Type: '" + mediaType + "' should be DDS, LTO, CD, or LTO");
-                            System.exit(-1);
+                            fail("Media Type: '" + mediaType + "' should be DDS, LTO, CD, or LTO");
                     }
-                    System.err.println("Media Type: '" + mediaType + "'");
+                    err.println("Media Type: '" + mediaType + "'");
                     i++;
                     continue;
                 }
 
                 // if unrecognised arguement, print help string and exit
-                System.err.println("Unrecognised argument '" + args[i] + "'");
-                System.err.println(usage);
-                System.exit(-1);
+                fail("Unrecognised argument '" + args[i] + "'\n" + usage);
             }
         } catch (ArrayIndexOutOfBoundsException ae) {
-            System.err.println("Missing argument. Usage: ");
-            System.err.println(usage);
-            System.exit(-1);
+            fail("Missing argument. Usage: \n" + usage);
         }
 
         // check to see that user specified a VA, VPRS, and consignment number
         if (vaNumber == -1) {
-            System.err.println("You must specify a VA number");
-            System.err.println(usage);
-            System.exit(-1);
+            fail("You must specify a VA number\n" + usage);
         }
         if (vprsNumber == -1) {
-            System.err.println("You must specify a VPRS number");
-            System.err.println(usage);
-            System.exit(-1);
+            fail("You must specify a VPRS number\n" + usage);
         }
         if (consignmentNumber == -1) {
-            System.err.println("You must specify a consignment number");
-            System.err.println(usage);
-            System.exit(-1);
+            fail("You must specify a consignment number\n" + usage);
+        }
+        if (shardCount > 0 && partialFile == null) {
+            partialFile = new File("shard" + shardIndex + "of" + shardCount + ".part");
+        }
+        if (reportFile != null && (shardCount > 0 || diffManifest != null)) {
+            fail("A report (-report) can only be generated with a manifest");
+        }
+        if (reportFile != null && !fields.equals(EnumSet.allOf(ManifestField.class))) {
+            fail("A report (-report) requires all fields");
+        }
+        for (File f : exportFiles) {
+            if (ManifestExport.format(f) == null) {
+                fail("Export file '" + f.getPath() + "' must end in .jsonl, .csv, or .col");
+            }
+        }
+        if (!exportFiles.isEmpty() && (diffManifest != null || watch)) {
+            fail("Entries cannot be exported (-export) when comparing (-diff) or watching (-watch)");
+        }
+        if (planFile != null && (internetExport || shardCount > 0 || diffManifest != null || watch)) {
+            fail("Planning the media (-plan) requires a media export (-m), and cannot be combined with -shard, -diff, or -watch");
         }
+        if (mediaCapacity != 0 && planFile == null) {
+            fail("The media capacity (-capacity) is only used when planning the media (-plan)");
+        }
+        if (statsFile != null && (diffManifest != null || watch)) {
+            fail("Statistics (-stats) cannot be collected when comparing (-diff) or watching (-watch)");
+        }
+        if (validate && (shardCount > 0 || diffManifest != null)) {
+            fail("Validation (-validate) can only be done when generating a manifest");
+        }
+        if (watch && (shardCount > 0 || diffManifest != null || reportFile != null || checkDuplicates)) {
+            fail("Watching (-watch) cannot be combined with -shard, -diff, -report, or -dups");
+        }
+        if (shardCount > 0 && diffManifest != null) {
+            fail("Cannot compare against a manifest (-diff) when sharding (-shard)");
+        }
+        if (shardCount > 0 && checkDuplicates) {
+            fail("Cannot check for duplicates (-dups) when sharding (-shard), as each shard only sees some of the VEOs");
+        }
+        if (checkDuplicates && !(fields.contains(ManifestField.FILE_ID) && fields.contains(ManifestField.RECORD_ID))) {
+            fail("Checking for duplicates (-dups) requires the fileid and recid fields");
+        }
+    }
+
+    /**
+     * setFields
+     *
+     * Select the fields to be captured from each VEO and written in the
+     * manifest. Fields that are not selected are not captured, and the parse
+     * of each VEO ends as soon as all the selected fields have been captured.
+     * If none of the selected fields requires parsing, the VEOs are not
+     * opened.
+     *
+     * @param fields the fields to capture
+     */
+    public final void setFields(EnumSet<ManifestField> fields) {
+        if (fields == null || fields.isEmpty()) {
+            throw new IllegalArgumentException("At least one field must be selected");
+        }
+        this.fields = EnumSet.copyOf(fields);
+    }
+
+    /**
+     * getFields
+     *
+     * @return the fields captured and written for each VEO
+     */
+    public EnumSet<ManifestField> getFields() {
+        return EnumSet.copyOf(fields);
+    }
+
+    /**
+     * parseShard
+     *
+     * Convert the shard number (which may be zero) to an integer. Program
+     * execution ends if the string is not a non-negative integer.
+     */
+    private int parseShard(String s) {
+        int i;
+
+        i = -1;
+        try {
+            i = Integer.parseInt(s);
+        } catch (NumberFormatException ne) {
+            /* reported below */
+        }
+        if (i < 0) {
+            fail("Shard: '" + s + "' should be zero or a positive integer");
+        }
+        return i;
     }
 
     /**
@@ -365,12 +853,10 @@ public class V2ManifestGenerator extends DefaultHandler2 {
         try {
             i = Integer.parseInt(s);
         } catch (NumberFormatException ne) {
-            System.err.println(purpose + " Number: '" + s + "' should be a positive integer");
-            System.exit(-1);
+            fail(purpose + " Number: '" + s + "' should be a positive integer");
         }
         if (i < 1) {
-            System.err.println(purpose + " Number: " + i + " should be a positive integer");
-            System.exit(-1);
+            fail(purpose + " Number: " + i + " should be a positive integer");
         }
         return i;
     }
@@ -382,44 +868,116 @@ public class V2ManifestGenerator extends DefaultHandler2 {
      * includes the <?xml...> attribute, and the contextual elements
      */
     public void writePreamble() {
-        System.out.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
-        System.out.println("<dam:set_manifest");
-        System.out.println("\txmlns:dam=\"http://www.prov.vic.gov.au/digitalarchive/\"");
-        System.out.println("\txmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"");
-        System.out.println("\txsi:schemaLocation=\"http://www.prov.vic.gov.au/digitalarchive/");
-        System.out.println("\thttp://www.prov.vic.gov.au/digitalarchive/setManifest_1_0_0.xsd\">");
+        out.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        out.println("<dam:set_manifest");
+        out.println("\txmlns:dam=\"http://www.prov.vic.gov.au/digitalarchive/\"");
+        out.println("\txmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"");
+        out.println("\txsi:schemaLocation=\"http://www.prov.vic.gov.au/digitalarchive/");
+        out.println("\thttp://www.prov.vic.gov.au/digitalarchive/setManifest_1_0_0.xsd\">");
         if (internetExport) {
-            System.out.println(" <dam:electronic_transfer>");
+            out.println(" <dam:electronic_transfer>");
         } else {
-            System.out.println(" <dam:media_transfer>");
-        }
-        System.out.print("  <dam:created_timestamp>");
-        System.out.print(versDateTime(0));
-        System.out.println("</dam:created_timestamp>");
-        System.out.print("  <dam:agency_id>");
-        System.out.print(vaNumber);
-        System.out.println("</dam:agency_id>");
-        System.out.println("  <dam:series_type>VPRS</dam:series_type>");
-        System.out.print("  <dam:series_number>");
-        System.out.print(vprsNumber);
-        System.out.println("</dam:series_number>");
-        System.out.print("  <dam:job_id>");
-        System.out.print("TR " + transferId);
-        System.out.println("</dam:job_id>");
-        System.out.print("  <dam:consignment_type>");
-        System.out.print(consignmentType.toUpperCase());
-        System.out.println("</dam:consignment_type>");
-        System.out.print("  <dam:consignment_number>");
+            out.println(" <dam:media_transfer>");
+        }
+        out.print("  <dam:created_timestamp>");
+        createdTimestamp = versDateTime(0);
+        out.print(createdTimestamp);
+        out.println("</dam:created_timestamp>");
+        out.print("  <dam:agency_id>");
+        out.print(vaNumber);
+        out.println("</dam:agency_id>");
+        out.println("  <dam:series_type>VPRS</dam:series_type>");
+        out.print("  <dam:series_number>");
+        out.print(vprsNumber);
+        out.println("</dam:series_number>");
+        out.print("  <dam:job_id>");
+        out.print("TR " + transferId);
+        out.println("</dam:job_id>");
+        out.print("  <dam:consignment_type>");
+        out.print(consignmentType.toUpperCase());
+        out.println("</dam:consignment_type>");
+        out.print("  <dam:consignment_number>");
+        out.print(consignmentNumberString());
+        out.println("</dam:consignment_number>");
+        if (validator != null) {
+            try {
+                validator.preamble(this);
+            } catch (SAXException se) {
+                validationFailed(se);
+            }
+        }
+    }
+
+    /**
+     * writeListStart
+     *
+     * This method writes the start of the dam:manifest_object_list element
+     */
+    public void writeListStart() {
+        out.println("  <dam:manifest_object_list>");
+        if (validator != null) {
+            try {
+                validator.startList();
+            } catch (SAXException se) {
+                validationFailed(se);
+            }
+        }
+    }
+
+    /**
+     * writeEntry
+     *
+     * This method writes the dam:manifest_object_item element for a VEO
+     *
+     * @param e the entry for the VEO
+     */
+    public void writeEntry(ManifestEntry e) {
+        String s;
+
+        s = e.render(fields);
+        out.print(s);
+        if (validator != null) {
+            try {
+                validator.entry(e, s);
+            } catch (SAXException se) {
+                validationFailed(se);
+            }
+        }
+    }
+
+    /**
+     * writeListEnd
+     *
+     * This method writes the end of the dam:manifest_object_list element
+     */
+    public void writeListEnd() {
+        out.println("  </dam:manifest_object_list>");
+        if (validator != null) {
+            try {
+                validator.endList();
+            } catch (SAXException se) {
+                validationFailed(se);
+            }
+        }
+    }
+
+    /**
+     * consignmentNumberString
+     *
+     * Returns the consignment number padded with leading zeros, as written in
+     * the dam:consignment_number element
+     */
+    String consignmentNumberString() {
         if (consignmentNumber < 9) {
-            System.out.print("000" + consignmentNumber);
+            return "000" + consignmentNumber;
         } else if (consignmentNumber < 99) {
-            System.out.print("00" + consignmentNumber);
+            return "00" + consignmentNumber;
         } else if (consignmentNumber < 999) {
-            System.out.print("0" + consignmentNumber);
+            return "0" + consignmentNumber;
         } else if (consignmentNumber < 9999) {
-            System.out.print(consignmentNumber);
+            return Integer.toString(consignmentNumber);
         }
-        System.out.println("</dam:consignment_number>");
+        return "";
     }
 
     /**
@@ -428,12 +986,33 @@ public class V2ManifestGenerator extends DefaultHandler2 {
      * This method writes the end of the manifest to standard out.
      */
     public void writePostamble() {
+        int n;
+
         if (internetExport) {
-            System.out.println(" </dam:electronic_transfer>");
+            out.println(" </dam:electronic_transfer>");
         } else {
-            System.out.println(" </dam:media_transfer>");
+            out.println(" </dam:media_transfer>");
         }
-        System.out.println("</dam:set_manifest>");
+        out.println("</dam:set_manifest>");
+        if (validator != null) {
+            try {
+                n = validator.postamble(this);
+                err.println(n == 0 ? "Manifest is valid" : ("Schema violations found: " + n));
+            } catch (SAXException se) {
+                validationFailed(se);
+            }
+            validator = null;
+        }
+    }
+
+    /**
+     * Validation Failed
+     *
+     * The validator could not continue (e.g. the manifest was not well formed)
+     */
+    private void validationFailed(SAXException se) {
+        err.println("Validation of manifest abandoned: " + se.getMessage());
+        validator = null;
     }
 
     /**
@@ -468,6 +1047,7 @@ public class V2ManifestGenerator extends DefaultHandler2 {
     public void processMediaExport() {
         File[] directories;
         FilterDirectories filterDirectories;
+        long[] written;
         int i;
         String s;
 
@@ -478,46 +1058,141 @@ public class V2ManifestGenerator extends DefaultHandler2 {
                 s = sourceDirectory.getCanonicalPath();
             } catch (IOException ioe) {/* ignore */
             }
-            System.err.println("Source directory '" + s + "' is not a directory");
-            System.exit(-1);
+            fail("Source directory '" + s + "' is not a directory");
         }
 
-        // get list of directories (i.e. media) in this directory
+        // get list of directories (i.e. media) in this directory, in name
+        // order (as -diff expects)
         filterDirectories = new FilterDirectories();
         directories = sourceDirectory.listFiles(filterDirectories);
+        Arrays.sort(directories, Comparator.comparing(File::getName));
 
         // go through list of directories, processing VEOs
-        System.out.println("  <dam:manifest_object_list>");
+        writeListStart();
         for (i = 0; i < directories.length; i++) {
             s = "";
             try {
                 s = directories[i].getCanonicalPath();
             } catch (IOException ioe) {/* ignore */
             }
-            System.err.println("Processing media '" + s + "'");
+            err.println("Processing media '" + s + "'");
             processVEOs(directories[i]);
         }
-        System.out.println("  </dam:manifest_object_list>");
+        flushSorted();
+        reportDuplicates();
+        writeListEnd();
 
         // write dam:media_list element listing the media
-        System.out.println("  <dam:media_list>");
+        written = new long[directories.length];
         for (i = 0; i < directories.length; i++) {
-            System.out.println("   <dam:media_item>");
-            System.out.print("    <dam:media_written>");
-            System.out.print(versDateTime(directories[i].lastModified()));
-            System.out.println("</dam:media_written>");
-            System.out.print("    <dam:media_item>");
-            System.out.print(i + 1);
-            System.out.println("</dam:media_item>");
-            System.out.print("    <dam:media_item_total>");
-            System.out.print(directories.length);
-            System.out.println("</dam:media_item_total>");
-            System.out.print("    <dam:media_type>");
-            System.out.print(mediaType);
-            System.out.println("</dam:media_type>");
-            System.out.println("   </dam:media_item>");
-        }
-        System.out.println("  </dam:media_list>");
+            written[i] = directories[i].lastModified();
+        }
+        writeMediaList(written);
+        writeReport(written);
+        finishExports();
+    }
+
+    /**
+     * writeMediaList
+     *
+     * This method writes the dam:media_list element listing the media to
+     * standard out.
+     *
+     * @param written the time each piece of media was written (i.e. the time
+     * the media directory was last modified)
+     */
+    public void writeMediaList(long[] written) {
+        int i;
+
+        out.println("  <dam:media_list>");
+        for (i = 0; i < written.length; i++) {
+            out.println("   <dam:media_item>");
+            out.print("    <dam:media_written>");
+            out.print(versDateTime(written[i]));
+            out.println("</dam:media_written>");
+            out.print("    <dam:media_item>");
+            out.print(i + 1);
+            out.println("</dam:media_item>");
+            out.print("    <dam:media_item_total>");
+            out.print(written.length);
+            out.println("</dam:media_item_total>");
+            out.print("    <dam:media_type>");
+            out.print(mediaType);
+            out.println("</dam:media_type>");
+            out.println("   </dam:media_item>");
+        }
+        out.println("  </dam:media_list>");
+        if (validator != null) {
+            try {
+                validator.mediaList(this, written);
+            } catch (SAXException se) {
+                validationFailed(se);
+            }
+        }
+    }
+
+    /**
+     * processPlannedExport
+     *
+     * This method processes a media export where the VEOs are all in the
+     * source directory. The media the VEOs are to be written to is planned,
+     * the layout written, and the VEOs are listed in the manifest by media.
+     * The media has not been written yet, so the time each piece of media was
+     * written is taken to be now.
+     */
+    public void processPlannedExport() {
+        MediaPlanner planner;
+        File[] veos;
+        long[] sizes, written;
+        int i, n;
+        String s;
+
+        // is this source directory actually a directory?
+        if (!sourceDirectory.isDirectory()) {
+            s = "";
+            try {
+                s = sourceDirectory.getCanonicalPath();
+            } catch (IOException ioe) {/* ignore */
+            }
+            fail("Source directory '" + s + "' is not a directory");
+        }
+
+        // plan the media
+        planner = new MediaPlanner(mediaCapacity != 0 ? mediaCapacity : MediaPlanner.capacity(mediaType));
+        veos = sourceDirectory.listFiles(new FilterVEOs());
+        sizes = new long[veos.length];
+        for (i = 0; i < veos.length; i++) {
+            sizes[i] = veos[i].length();
+            if (sizes[i] > planner.capacity) {
+                fail("VEO '" + veos[i].getPath() + "' (" + sizes[i] + " bytes) will not fit on the media (" + planner.capacity + " bytes)");
+            }
+        }
+        n = planner.plan(sizes);
+        err.println(planner.summary());
+        try {
+            planner.writeLayout(planFile, veos, mediaType);
+        } catch (IOException ioe) {
+            fail("Failed writing media layout '" + planFile.getPath() + "': " + ioe.getMessage());
+        }
+
+        // go through the media, processing VEOs
+        writeListStart();
+        for (i = 0; i < n; i++) {
+            err.println("Processing media " + (i + 1) + " of " + n);
+            err.println("Start " + (new Date()).getTime() / 1000);
+            parseVEOs(planner.onMedia(veos, i), this::output);
+            err.println("End " + (new Date()).getTime() / 1000);
+        }
+        flushSorted();
+        reportDuplicates();
+        writeListEnd();
+
+        // write dam:media_list element listing the media
+        written = new long[n];
+        Arrays.fill(written, System.currentTimeMillis());
+        writeMediaList(written);
+        writeReport(written);
+        finishExports();
     }
 
     /**
@@ -535,14 +1210,81 @@ public class V2ManifestGenerator extends DefaultHandler2 {
                 s = sourceDirectory.getCanonicalPath();
             } catch (IOException ioe) {/* ignore */
             }
-            System.err.println("Source directory '" + s + "' is not a directory");
-            System.exit(-1);
+            fail("Source directory '" + s + "' is not a directory");
         }
 
         // go through list of directories, processing VEOs
-        System.out.println("  <dam:manifest_object_list>");
+        writeListStart();
         processVEOs(sourceDirectory);
-        System.out.println("  </dam:manifest_object_list>");
+        flushSorted();
+        reportDuplicates();
+        writeListEnd();
+        writeReport(null);
+        finishExports();
+    }
+
+    /**
+     * processDiff
+     *
+     * This method compares the VEOs in the source directory (or, for a media
+     * export, in the media directories within the source directory) against
+     * a manifest previously generated, and writes a list of the VEOs added,
+     * removed, or changed to standard out.
+     */
+    public void processDiff() {
+        ManifestDiff diff;
+        File[] directories, veos;
+        ArrayList<File> candidates;
+        int i, j;
+        String s;
+
+        // is this source directory actually a directory?
+        if (!sourceDirectory.isDirectory()) {
+            s = "";
+            try {
+                s = sourceDirectory.getCanonicalPath();
+            } catch (IOException ioe) {/* ignore */
+            }
+            fail("Source directory '" + s + "' is not a directory");
+        }
+
+        // index the old manifest
+        diff = new ManifestDiff(diffManifest, fields, out, err);
+        try {
+            diff.load();
+        } catch (IOException ioe) {
+            fail(ioe.getMessage());
+        }
+
+        // find the VEOs that are new or may have changed
+        if (internetExport) {
+            directories = new File[]{sourceDirectory};
+        } else {
+            // in name order, so VEOs with the same filename on different
+            // media are matched in the order the old manifest lists them
+            directories = sourceDirectory.listFiles(new FilterDirectories());
+            Arrays.sort(directories, Comparator.comparing(File::getName));
+        }
+        candidates = new ArrayList<>();
+        for (i = 0; i < directories.length; i++) {
+            veos = directories[i].listFiles(new FilterVEOs());
+            for (j = 0; j < veos.length; j++) {
+                if (diff.needsParse(veos[j])) {
+                    candidates.add(veos[j]);
+                }
+            }
+        }
+        err.println("VEOs to be parsed: " + candidates.size());
+
+        // parse them and compare, then look for the VEOs removed
+        err.println("Start " + (new Date()).getTime() / 1000);
+        parseVEOs(candidates.toArray(new File[candidates.size()]), diff::compare);
+        try {
+            diff.finish();
+        } catch (IOException ioe) {
+            fail(ioe.getMessage());
+        }
+        err.println("End " + (new Date()).getTime() / 1000);
     }
 
     /**
@@ -576,7 +1318,6 @@ public class V2ManifestGenerator extends DefaultHandler2 {
 
     public void processVEOs(File directory) {
         File[] veos;
-        int i;
         String s;
 
         // is this source directory actually a directory?
@@ -586,434 +1327,454 @@ public class V2ManifestGenerator extends DefaultHandler2 {
                 s = directory.getCanonicalPath();
             } catch (IOException ioe) {/* ignore */
             }
-            System.err.println("File '" + s + "' must be a directory to contain VEOs");
-            System.exit(-1);
+            fail("File '" + s + "' must be a directory to contain VEOs");
         }
 
         // get list of VEOs in this directory
         veos = directory.listFiles(new FilterVEOs());
 
+        // if sharding, only process the VEOs that belong to this shard
+        if (shardCount > 0) {
+            veos = selectShard(directory, veos);
+        }
+
         // go through list of directories, processing VEOs
-        System.err.println("Start " + (new Date()).getTime() / 1000);
+        err.println("Start " + (new Date()).getTime() / 1000);
+        parseVEOs(veos, this::output);
+        err.println("End " + (new Date()).getTime() / 1000);
+    }
+
+    /**
+     * Select Shard
+     *
+     * Return the VEOs in a directory that belong to this shard. The decision
+     * is made on the path of the VEO relative to the source directory.
+     */
+    private File[] selectShard(File directory, File[] veos) {
+        ArrayList<File> selected;
+        String prefix;
+        int i;
+
+        prefix = relativeDirectory(directory);
+        if (!prefix.isEmpty()) {
+            prefix = prefix + "/";
+        }
+        selected = new ArrayList<>();
         for (i = 0; i < veos.length; i++) {
-            try {
-                if (i % 10 == 0) {
-                    System.err.println(veos[i].getName());
-                } else {
-                    System.err.print('.');
-                }
-                System.out.print(processVEO(veos[i]));
-            } catch (IOException ioe) {
-                System.err.println(ioe.getMessage());
+            if (ManifestShard.select(prefix + veos[i].getName(), shardIndex, shardCount)) {
+                selected.add(veos[i]);
             }
         }
-        System.err.println("End " + (new Date()).getTime() / 1000);
+        return selected.toArray(new File[selected.size()]);
     }
 
     /**
-     * Process VEO
-     *
-     * This method opens a VEO and calls SAX to parse it looking for information
-     * to include in the manifest. The parse ends as soon as we have completed
-     * processing the vers:FileMetadata or vers:RecordMetadata element
+     * Relative Directory
      *
-     * @param veo	the VEO to parse
-     * @return
-     * @throws java.io.IOException if something failed
+     * Return the path of a directory relative to the source directory (i.e.
+     * the name of the media directory, or "" for an internet export)
      */
-    private String processVEO(File veo) throws IOException {
-        FileInputStream fis;
-        BufferedInputStream bis;
-        InputStreamReader fir;
-        InputSource is;
-        InputStreamReader isr;
-        StringBuffer sb;
-
-        // print diagnostic...
-        // System.err.println((new Date()).getTime()/1000+" Processing '"+veo.getName()+"'");
-        // check parameters
-        if (veo == null) {
-            throw new IOException("veo must not be null");
-        }
-
-        record = false;
-        fileIdentifier = null;
-        recIdentifier = null;
-        titleWords = null;
-        function = null;
-        subject = null;
-        accessStatus = null;
-        sentence = null;
-        dateRegistered = null;
-        dateClosed = null;
-        elementsFound = new Stack<>();
-
-        // Open the VEO for reading
-        try {
-            fis = new FileInputStream(veo);
-        } catch (FileNotFoundException e) {
-            throw new IOException("XML file '" + veo.toString() + "' does not exist");
-        }
-        bis = new BufferedInputStream(fis);
-        // this is necessary because SAX cannot auto-detect the encoding of the XML files
-        // it will break if the encoding is not UTF-8
-        try {
-            fir = new InputStreamReader(bis, "UTF-8");
-        } catch (UnsupportedEncodingException uee) {
-            try {
-                fis.close();
-            } catch (IOException ioe) {
-                /* ignore */ }
-            throw new IOException("XMLParser.parse(): Error when setting encoding of input file: " + uee.getMessage());
+    private String relativeDirectory(File directory) {
+        if (directory.getAbsoluteFile().toPath().normalize().equals(sourceDirectory.getAbsoluteFile().toPath().normalize())) {
+            return "";
         }
-        is = new InputSource(fir);
+        return directory.getName();
+    }
 
-        // do it...
-        try {
-            sax.parse(is, this);
-        } catch (IOException ioe) {
-            throw new IOException("XMLParser.parse(): SAX parse of " + veo.toString() + " due to: " + ioe.getMessage());
-        } catch (SAXException e) {
-            if (!e.getMessage().equals("Finished Parse")) {
-                throw new IOException("XMLParser.parse(): SAX parse of " + veo.toString() + " due to: " + e.getMessage());
-            }
-        } finally {
-            elementsFound = null;
-            try {
-                fir.close();
-            } catch (IOException ioe) {
-                /* ignore */ }
-            try {
-                bis.close();
-            } catch (IOException ioe) {
-                /* ignore */ }
+    /**
+     * processShard
+     *
+     * This method processes one shard of an export, writing the sorted entries
+     * of the VEOs belonging to the shard to a partial manifest file. The
+     * partial manifests of all the shards are merged by ManifestShard. The
+     * media directories are processed in order of their names, so that every
+     * shard (and the merged manifest) numbers the media in the same way.
+     */
+    public void processShard() {
+        ManifestShard ms;
+        File[] directories;
+        int i;
+        String s;
+
+        // is this source directory actually a directory?
+        if (!sourceDirectory.isDirectory()) {
+            s = "";
             try {
-                fis.close();
-            } catch (IOException ioe) {
-                /* ignore */ }
+                s = sourceDirectory.getCanonicalPath();
+            } catch (IOException ioe) {/* ignore */
+            }
+            fail("Source directory '" + s + "' is not a directory");
         }
 
-        // generate dam:manifest_object_item
-        sb = new StringBuffer();
-        sb.append("   <dam:manifest_object_item>\n");
-
-        // dam:computer_filename from File.getAbsoluteFile()
-        sb.append("    <dam:computer_filename>");
-        sb.append(trunc(veo.getName(), 256));
-        sb.append("</dam:computer_filename>\n");
-
-        // dam:file_identifier from fileIdentifier
-        sb.append("    <dam:file_identifier>");
-        sb.append(trunc(fileIdentifier, 32));
-        sb.append("</dam:file_identifier>\n");
-
-        // dam:record_identifier from recIdentifier if not null else empty elem
-        if (recIdentifier != null) {
-            sb.append("    <dam:vers_record_identifier>");
-            sb.append(trunc(recIdentifier, 32));
-            sb.append("</dam:vers_record_identifier>\n");
-        } else {
-            sb.append("    <dam:vers_record_identifier xsi:nil=\"true\"/>\n");
-        }
-
-        // dam:veo_title from titlewords
-        sb.append("    <dam:veo_title>");
-        sb.append(trunc(titleWords, 1024));
-        sb.append("</dam:veo_title>\n");
-
-        // dam:classification from function, subject, or default value
-        if (function != null) {
-            sb.append("    <dam:veo_classification>");
-            sb.append(trunc(function, 1024));
-            sb.append("</dam:veo_classification>\n");
-        } else if (subject != null) {
-            sb.append("    <dam:veo_classification>");
-            sb.append(trunc(subject, 1024));
-            sb.append("</dam:veo_classification>\n");
+        // set up the header of the partial manifest
+        ms = new ManifestShard();
+        ms.shardIndex = shardIndex;
+        ms.shardCount = shardCount;
+        ms.vaNumber = vaNumber;
+        ms.vprsNumber = vprsNumber;
+        ms.consignmentType = consignmentType;
+        ms.consignmentNumber = consignmentNumber;
+        ms.transferId = transferId;
+        ms.mediaType = mediaType;
+        ms.fields = ManifestField.toList(fields);
+        ms.sortKey = sortKey;
+        if (internetExport) {
+            directories = new File[]{sourceDirectory};
+            ms.mediaNames = new String[0];
+            ms.mediaWritten = new long[0];
         } else {
-            sb.append("    <dam:veo_classification>");
-            sb.append("No classification");
-            sb.append("</dam:veo_classification>\n");
+            directories = sourceDirectory.listFiles(new FilterDirectories());
+            Arrays.sort(directories, Comparator.comparing(File::getName));
+            ms.mediaNames = new String[directories.length];
+            ms.mediaWritten = new long[directories.length];
+            for (i = 0; i < directories.length; i++) {
+                ms.mediaNames[i] = directories[i].getName();
+                ms.mediaWritten[i] = directories[i].lastModified();
+            }
         }
 
-        // dam:veo_access_category from accessStatus or default value
-        if (accessStatus != null) {
-            sb.append("    <dam:veo_access_category>");
-            sb.append(trunc(accessStatus, 1024));
-            sb.append("</dam:veo_access_category>\n");
-        } else {
-            sb.append("    <dam:veo_access_category>");
-            sb.append("None");
-            sb.append("</dam:veo_access_category>\n");
-        }
-
-        // dam:veo_disposal_authority from sentence
-        sb.append("    <dam:veo_disposal_authority>");
-        sb.append(trunc(sentence, 1024));
-        sb.append("</dam:veo_disposal_authority>\n");
-
-        // start a date range
-        sb.append("    <dam:veo_date_range>\n");
-
-        // dam:veo_start_date is vers:DateTimeRegistered
-        sb.append("     <dam:veo_start_date>");
-        sb.append(dateRegistered.trim());
-        sb.append("</dam:veo_start_date>\n");
-
-        // dam:veo_end_date is empty (if record) or dateClosed (if a file & present)
-        if (record) {
-            sb.append("     <dam:veo_end_date xsi:nil=\"true\"/>\n");
-        } else if (dateClosed != null) {
-            sb.append("     <dam:veo_end_date>");
-            sb.append(dateClosed.trim());
-            sb.append("</dam:veo_end_date>\n");
-        } else {
-            sb.append("     <dam:veo_end_date>");
-            sb.append("Not closed");
-            sb.append("</dam:veo_end_date>\n");
+        // process the VEOs, then write them in order to the partial manifest
+        try {
+            ms.create(partialFile);
+            for (i = 0; i < directories.length; i++) {
+                err.println("Processing media '" + directories[i].getPath() + "'");
+                processVEOs(directories[i]);
+            }
+            sorter.finish(ms::write);
+            ms.close();
+        } catch (IOException ioe) {
+            fail("Failed writing partial manifest '" + partialFile.getPath() + "': " + ioe.getMessage());
         }
-        sb.append("    </dam:veo_date_range>\n");
+        finishExports();
+    }
 
-        // dam:veo_size_kb from File.getLength()
-        sb.append("    <dam:size_kb>");
-        sb.append(Math.round(veo.length() / 1000));
-        sb.append("</dam:size_kb>\n");
-        sb.append("   </dam:manifest_object_item>\n");
+    /**
+     * Parse VEOs
+     *
+     * Parse a list of VEOs, passing the entries to a sink in the order of the
+     * list. If more than one thread was requested, the VEOs are parsed in
+     * parallel. A VEO that fails to parse, that lacks a value the manifest
+     * requires, or whose entry cannot be processed, is reported and skipped.
+     *
+     * @param veos the VEOs to parse
+     * @param sink where to send the entries
+     */
+    public void parseVEOs(File[] veos, EntrySink sink) {
+        ArrayDeque<Future<ManifestEntry>> pending;
+        VEOParser parser;
+        int i, done;
 
-        // return string containing dam:manifest_object_item
-        return sb.toString();
+        if (workers == null) {
+            try {
+                parser = VEOParser.forThread(fields);
+            } catch (SAXException se) {
+                fail(se.getMessage());
+                return;
+            }
+            for (i = 0; i < veos.length; i++) {
+                progress(i, veos[i]);
+                try {
+                    sink.entry(parse(parser, veos[i]));
+                } catch (IOException ioe) {
+                    err.println(ioe.getMessage());
+                } catch (Failure f) {
+                    throw f;
+                } catch (RuntimeException re) {
+                    err.println("VEO '" + veos[i].getAbsolutePath() + "': failed: " + re);
+                }
+            }
+        } else {
+            // parse in parallel, but output the entries in the order the VEOs
+            // were listed. At most WINDOW VEOs per thread are in progress.
+            pending = new ArrayDeque<>();
+            done = 0;
+            try {
+                for (i = 0; i < veos.length; i++) {
+                    final File veo = veos[i];
+                    pending.add(workers.submit(() -> parse(VEOParser.forThread(fields), veo)));
+                    if (pending.size() >= threads * WINDOW) {
+                        progress(done, veos[done]);
+                        collect(pending.remove(), veos[done], sink);
+                        done++;
+                    }
+                }
+                while (!pending.isEmpty()) {
+                    progress(done, veos[done]);
+                    collect(pending.remove(), veos[done], sink);
+                    done++;
+                }
+            } finally {
+                // if the job failed, abandon the VEOs still being parsed
+                for (Future<ManifestEntry> f : pending) {
+                    f.cancel(true);
+                }
+            }
+        }
     }
 
     /**
-     * Truncate an element
+     * Parse
      *
-     * This function trims the leading and trailing whitespace from a string, It
-     * then truncates the result to a fixed length. If data is lost, a '*' is
-     * appended
+     * Parse a VEO. If checking for duplicates, the digest of the VEO is taken
+     * as it is read. If collecting statistics, the entry is added to the
+     * statistics of the thread doing the parse. A VEO that lacks a value the
+     * manifest requires fails, as the archive would reject the manifest.
      */
-    private String trunc(String value, int maxLen) {
+    private ManifestEntry parse(VEOParser parser, File veo) throws IOException {
+        ManifestEntry e;
         String s;
 
-        s = value.trim();
-        if (maxLen < 1) {
-            maxLen = 1;
+        e = parser.parse(veo, duplicates != null);
+        if ((s = e.checkRequired(fields)) != null) {
+            throw new IOException("VEO '" + new File(e.getDirectory(), e.getFilename()).getPath() + "': " + s + " (left out of the manifest)");
+        }
+        if (stats != null) {
+            stats.add(e);
+        }
+        return e;
+    }
+
+    /**
+     * Progress
+     *
+     * Report the progress through the list of VEOs in a directory. A cancelled
+     * job fails here.
+     */
+    private void progress(int i, File veo) {
+        if (cancelled) {
+            fail("Cancelled");
         }
-        if (s.length() > maxLen) {
-            s = s.substring(0, maxLen - 1) + "*";
+        veosParsed++;
+        if (i % 10 == 0) {
+            err.println(veo.getName());
+        } else {
+            err.print('.');
         }
-        return s;
     }
 
     /**
-     * This forces the parser to ignore the reference to the external DTD (if
-     * any is present)
+     * Collect
+     *
+     * Wait for a VEO being parsed by a worker thread to be completed, and pass
+     * the result to the sink. Failures to parse a VEO are reported and the VEO
+     * is skipped, as for a sequential parse.
      */
-    private static final ByteArrayInputStream BAIS = new ByteArrayInputStream("".getBytes());
+    private void collect(Future<ManifestEntry> f, File veo, EntrySink sink) {
+        Throwable t;
 
-    @Override
-    public InputSource resolveEntity(String name, String publicId, String baseURI, String systemId) throws SAXException {
-        return new InputSource(BAIS);
+        try {
+            sink.entry(f.get());
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            fail("Interrupted while waiting for VEO to be parsed");
+        } catch (IOException ioe) {
+            err.println(ioe.getMessage());
+        } catch (ExecutionException ee) {
+            t = ee.getCause();
+            if (t instanceof IOException) {
+                err.println(t.getMessage());
+            } else if (t instanceof SAXException) {
+                // the parser for the thread could not be set up
+                fail(t.getMessage());
+            } else if (t instanceof Failure) {
+                throw (Failure) t;
+            } else if (t instanceof Error) {
+                throw (Error) t;
+            } else {
+                err.println("VEO '" + veo.getAbsolutePath() + "': failed: " + t);
+            }
+        } catch (Failure fe) {
+            throw fe;
+        } catch (RuntimeException re) {
+            err.println("VEO '" + veo.getAbsolutePath() + "': failed: " + re);
+        }
     }
 
     /**
-     * Entity Resolver
+     * Output
      *
-     * If -n command line is set, try to use a local copy of the vers.dtd in the
-     * directory in which the program is running
+     * Output the entry for a VEO. If the manifest is being sorted, the entry is
+     * passed to the sorter and is written when the list of VEOs is finished.
      */
-    /*
-    @Override
-    public InputSource resolveEntity(String publicId, String systemId)
-            throws SAXException {
-        InputSource is;
-        FileReader fr;
-        File f;
-
-        if (systemId.contains("vers.dtd") && !useStdDtd) {
-            f = new File("vers.dtd");
+    private void output(ManifestEntry e) {
+        checkDates(e);
+        if (duplicates != null) {
             try {
-                fr = new FileReader(f);
-            } catch (FileNotFoundException fnfe) {
-                System.err.println("There is no 'vers.dtd' in the local directory when using '-n' command line argument");
-                return null;
+                duplicates.add(e);
+            } catch (IOException ioe) {
+                fail("Failed checking for duplicates: " + ioe.getMessage());
+            }
+        }
+        if (shardCount > 0) {
+            e.directory = relativeDirectory(new File(e.directory));
+        }
+        for (ManifestExport me : exports) {
+            try {
+                me.entry(e);
+            } catch (IOException ioe) {
+                fail("Failed writing export '" + me.getFile().getPath() + "': " + ioe.getMessage());
+            }
+        }
+        if (report != null) {
+            try {
+                report.entry(e);
+            } catch (IOException ioe) {
+                fail("Failed generating report: " + ioe.getMessage());
             }
-            return new InputSource(fr);
         }
-        return null;
+        if (sorter == null) {
+            writeEntry(e);
+            return;
+        }
+        try {
+            sorter.add(e);
+        } catch (IOException ioe) {
+            fail("Failed sorting manifest: " + ioe.getMessage());
+        }
     }
-     */
+
     /**
-     * SAX Events captured
+     * Check Dates
+     *
+     * Report invalid dates, and files closed before they were registered, in
+     * the entry for a VEO (the dates are written as they are)
+     *
+     * @param e the entry for the VEO
      */
+    void checkDates(ManifestEntry e) {
+        String s;
+
+        if (fields.contains(ManifestField.DATES) && (s = e.checkDates()) != null) {
+            err.println("VEO '" + new File(e.getDirectory(), e.getFilename()).getPath() + "': " + s);
+        }
+    }
+
     /**
-     * Start of element
+     * Flush Sorted
      *
-     * This event is called when the parser finds a new element. The element
-     * name is pushed onto the stack. The stack keeps the element path from the
-     * root of the parse tree to the current element. We then check this path to
-     * see if the current element matches one of the elements we are interested
-     * in (the parent and grandparent of this element may be checked on the
-     * stack to check the context). If they match, we start recording the
-     * element value.
+     * If the manifest is being sorted, write the sorted entries. This is called
+     * at the end of the dam:manifest_object_list.
      */
-    String[][] captureElements = {
-        {"vers:Text", "vers:FileIdentifier", "vers:VEOIdentifier"},
-        {"vers:Text", "vers:VERSRecordIdentifier", "vers:VEOIdentifier"},
-        {"naa:TitleWords", "naa:Title", ""},
-        {"naa:FunctionDescriptor", "naa:Function", ""},
-        {"naa:ActivityDescriptor", "naa:Function", ""},
-        {"naa:ThirdLevelDescriptor", "naa:Function", ""},
-        {"vers:Keyword", "vers:Subject", ""},
-        {"vers:KeywordLevel", "vers:Subject", ""},
-        {"naa:AccessStatus", "naa:RightsManagement", ""},
-        {"naa:Sentence", "", ""},
-        {"naa:DateTimeRegistered", "", ""},
-        {"vers:DateTimeClosed", "", ""}};
-
-    @Override
-    public void startElement(String uri, String localName,
-            String qName, Attributes attributes)
-            throws SAXException {
-        boolean match;
-        int i, j;
+    private void flushSorted() {
+        if (sorter == null) {
+            return;
+        }
+        try {
+            sorter.finish(e -> writeEntry(e));
+        } catch (IOException ioe) {
+            fail("Failed sorting manifest: " + ioe.getMessage());
+        }
+    }
 
-        // push element on stack
-        elementsFound.push(qName);
+    /**
+     * Report Duplicates
+     *
+     * If checking for duplicates, report any duplicate VEOs found. This is
+     * called at the end of the dam:manifest_object_list.
+     */
+    private void reportDuplicates() {
+        int n;
 
-        // check for vers:RecordMetadata (i.e. record VEO)
-        if (qName.equals("vers:RecordMetadata")) {
-            record = true;
+        if (duplicates == null) {
+            return;
         }
-
-        // match against path for interesting elements
-        match = false;
-        elementFound = 0;
-        for (i = 0; i < captureElements.length; i++) {
-            for (j = 0; j < captureElements[i].length; j++) {
-                if (!(captureElements[i][j].equals(elementsFound.elementAt(elementsFound.size() - j - 1))
-                        || (captureElements[i][j].equals("")))) {
-                    break;
-                }
-            }
-            if (j == captureElements[i].length) {
-                elementFound = i;
-                match = true;
-                break;
-            }
+        try {
+            n = duplicates.report(err);
+        } catch (IOException ioe) {
+            fail("Failed checking for duplicates: " + ioe.getMessage());
+            return;
         }
-
-        // if match start recording element contents
-        recording = match;
-        elementValue.setLength(0);
+        duplicates = null;
+        err.println(n == 0 ? "No duplicate VEOs found" : ("Duplicate VEOs found: " + n));
     }
 
     /**
-     * Processing the content of an element
+     * Write Report
      *
-     * Remember the element content if we are interested in the element
+     * If generating a report, write it. This is called at the end of the
+     * manifest.
      *
-     * @throws org.xml.sax.SAXException
+     * @param mediaWritten the time each piece of media was written (null if an
+     * electronic transfer)
      */
-    @Override
-    public void characters(char[] ch, int start, int length) throws SAXException {
-        int i;
-
-        if (!recording) {
+    private void writeReport(long[] mediaWritten) {
+        if (report == null) {
             return;
         }
-        for (i = start; i < start + length; i++) {
-            switch (ch[i]) {
-                case '&':
-                    elementValue.append("&amp;");
-                    break;
-                case '<':
-                    elementValue.append("&lt;");
-                    break;
-                case '>':
-                    elementValue.append("&gt;");
-                    break;
-                default:
-                    elementValue.append(ch[i]);
-                    break;
-            }
+        try {
+            report.finish(this, mediaWritten);
+        } catch (IOException ioe) {
+            fail("Failed writing report '" + reportFile.getPath() + "': " + ioe.getMessage());
         }
+        report = null;
     }
 
     /**
-     * End of an element
-     *
-     * Found the end of an element. Pop the element from the top of the stack.
-     * If recording, stop, and store the recorded element. If a
-     * vers:FileMetadata or vers:RecordMetadata element has been finished, throw
-     * a SAX Parse Error to force the parse to terminate.
+     * Finish Exports
      *
-     * @throws org.xml.sax.SAXException
+     * Close the exports (if any), reporting the number of entries written to
+     * each, and write the statistics (if collecting them). This is called at
+     * the end of the manifest.
      */
-    @Override
-    public void endElement(String uri, String localName, String qName) throws SAXException {
-
-        // if recording store element value in appropriate global variable
-        if (recording) {
-            switch (elementFound) {
-                case (0): // vers:fileIdentifier
-                    fileIdentifier = elementValue.toString();
-                    break;
-                case (1): // vers:recordIdentifier
-                    recIdentifier = elementValue.toString();
-                    break;
-                case (2): // naa:titleWords
-                    titleWords = elementValue.toString();
-                    break;
-                case (3): // naa:functionDescriptor
-                    if (function == null) {
-                        function = elementValue.toString();
-                    } else {
-                        function = function + " " + elementValue.toString();
-                    }
-                    break;
-                case (4): // naa:activityDescriptor
-                    function = function + " " + elementValue.toString();
-                    break;
-                case (5): // naa:ThirdLevelDescriptor
-                    function = function + " " + elementValue.toString();
-                    break;
-                case (6): // vers:Keyword
-                    if (subject == null) {
-                        subject = elementValue.toString();
-                    } else {
-                        subject = subject + " " + elementValue.toString();
-                    }
-                    break;
-                case (7): // vers:KeywordLevel
-                    if (subject == null) {
-                        subject = elementValue.toString();
-                    } else {
-                        subject = subject + " " + elementValue.toString();
-                    }
-                    break;
-                case (8): // naa:AccessStatus
-                    accessStatus = elementValue.toString();
-                    break;
-                case (9): // naa:Sentence
-                    sentence = elementValue.toString();
-                    break;
-                case (10): // naa:DateTimeRegistered
-                    dateRegistered = elementValue.toString();
-                    break;
-                case (11): // vers:DateTimeClosed
-                    dateClosed = elementValue.toString();
-                    break;
+    private void finishExports() {
+        for (ManifestExport me : exports) {
+            try {
+                me.finish();
+            } catch (IOException ioe) {
+                fail("Failed writing export '" + me.getFile().getPath() + "': " + ioe.getMessage());
+            }
+            err.println("Exported " + me.getRows() + " entries to '" + me.getFile().getPath() + "'");
+        }
+        exports.clear();
+        if (stats != null) {
+            try {
+                stats.merge().write(statsFile);
+            } catch (IOException ioe) {
+                fail("Failed writing statistics '" + statsFile.getPath() + "': " + ioe.getMessage());
             }
+            stats = null;
         }
+    }
 
-        // stop recording
-        recording = false;
-        elementsFound.pop();
+    /**
+     * Generate
+     *
+     * Generate the manifest for the consignment
+     */
+    public void generate() {
+
+        // write start of XML document
+        writePreamble();
+
+        // if media export, assume top level directories represent media,
+        // unless planning the media
+        if (planFile != null) {
+            processPlannedExport();
+        } else if (!isInternetExport()) {
+            processMediaExport();
+        } else {
+            processInternetExport();
+        }
+
+        // finish XML document
+        writePostamble();
+        out.flush();
+    }
 
-        // if finished a file or record metadata element stop parsing
-        if (qName.equals("vers:RecordMetadata")
-                || qName.equals("vers:FileMetadata")) {
-            throw new SAXException("Finished Parse");
+    /**
+     * Shutdown
+     *
+     * Release the worker threads (if any) and temporary files used in this run
+     */
+    public void shutdown() {
+        if (workers != null && !sharedWorkers) {
+            workers.shutdown();
+        }
+        if (sorter != null) {
+            sorter.close();
+        }
+        if (duplicates != null) {
+            duplicates.close();
         }
     }
 
@@ -1026,23 +1787,8 @@ public class V2ManifestGenerator extends DefaultHandler2 {
      * @param ms	milliseconds since the epoch (if zero, return current
      * date/time)
      */
-    private String versDateTime(long ms) {
-        Date d;
-        SimpleDateFormat sdf;
-        TimeZone tz;
-        Locale l;
-        String s;
-
-        tz = TimeZone.getDefault();
-        sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
-        sdf.setTimeZone(tz);
-        if (ms == 0) {
-            d = new Date();
-        } else {
-            d = new Date(ms);
-        }
-        s = sdf.format(d);
-        return s.substring(0, 22) + ":" + s.substring(22, 24);
+    static String versDateTime(long ms) {
+        return VERS_DATE_TIME.format(Instant.ofEpochMilli(ms == 0 ? System.currentTimeMillis() : ms).atZone(ZONE));
     }
 
     /**
@@ -1056,17 +1802,34 @@ public class V2ManifestGenerator extends DefaultHandler2 {
         // create manifest generator instance
         mg = new V2ManifestGenerator(args);
 
-        // write start of XML document
-        mg.writePreamble();
+        // if comparing against a previous manifest, do that instead
+        if (mg.diffManifest != null) {
+            mg.processDiff();
+            mg.shutdown();
+            return;
+        }
 
-        // if media export, assume top level directories represent media
-        if (!mg.isInternetExport()) {
-            mg.processMediaExport();
-        } else {
-            mg.processInternetExport();
+        // if watching the directory, keep the manifest up to date until told to stop
+        if (mg.watch) {
+            try {
+                new ManifestWatcher(mg, mg.settleTime).run();
+            } catch (IOException ioe) {
+                System.err.println("Failed watching '" + mg.sourceDirectory.getPath() + "': " + ioe.getMessage());
+                System.exit(-1);
+            }
+            mg.shutdown();
+            return;
         }
 
-        // finish XML document
-        mg.writePostamble();
+        // if processing a shard, write a partial manifest instead
+        if (mg.shardCount > 0) {
+            mg.processShard();
+            mg.shutdown();
+            return;
+        }
+
+        // generate the manifest
+        mg.generate();
+        mg.shutdown();
     }
 }
@@ -0,0 +1,566 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package v2manifestgenerator;
+
+/**
+ * *************************************************************
+ *
+ * V E O P A R S E R
+ *
+ * This class parses a VEO using SAX, extracting the values of the elements
+ * that are included in the manifest, and returns them as a ManifestEntry.
+ *
+ * A VEOParser holds the state of the parse in progress, and so an instance
+ * must only be used by one thread at a time. When VEOs are parsed in
+ * parallel, each worker thread has its own VEOParser. The parsers are cached
+ * per thread (see forThread()), so threads shared between jobs reuse them.
+ *
+ * The SAXParserFactory is created once and shared (see newSAXParser()).
+ *
+ * If asked, the parser also takes a SHA-256 digest of the content of the VEO
+ * as it is read (used to find identical VEOs). The rest of the VEO is then
+ * read after the parse ends, so each VEO is still only read once.
+ * ************************************************************
+ */
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Stack;
+import javax.xml.parsers.FactoryConfigurationError;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.ext.DefaultHandler2;
+
+public class VEOParser extends DefaultHandler2 {
+
+    SAXParser sax;		// XML parser to perform parse
+    EnumSet<ManifestField> fields; // fields to be captured
+    boolean parseNeeded;	// true if any field requires a VEO to be parsed
+
+    // information extracted from this VEO
+    ManifestEntry entry;	// entry being built
+    boolean veoIdDone;	// true if the vers:VEOIdentifier has been passed
+    boolean titleDone;	// true if the naa:Title has been passed
+
+    // stack of elements encountered in the parse
+    Stack<String> elementsFound; // stack of the elements recognised in the parse
+    int elementFound;	// which element did we find?
+    boolean recording;	// true if recognised an element name and are
+    // now capturing element value
+    StringBuffer elementValue; // the value of the element found
+    MessageDigest md;	// digest of the content of the VEO (null until needed)
+
+    // the SAX parser factory of the JDK, used unless another is configured
+    static final String JDK_SAX_FACTORY = "com.sun.org.apache.xerces.internal.jaxp.SAXParserFactoryImpl";
+    private static SAXParserFactory factory; // shared by all the parsers
+
+    // parsers kept by each thread, one for each set of fields captured
+    private static final ThreadLocal<HashMap<EnumSet<ManifestField>, VEOParser>> PARSERS
+            = ThreadLocal.withInitial(HashMap::new);
+
+    /**
+     * New SAX Parser
+     *
+     * Return a new non validating SAX parser. The factory is only created the
+     * first time. Unless another factory has been configured (with the
+     * javax.xml.parsers.SAXParserFactory system property) the JDK's own
+     * factory is named, which avoids searching for jaxp.properties and the
+     * service loader scan of the class path. This is a large part of the
+     * start up time of a small run.
+     *
+     * @return the parser
+     * @throws ParserConfigurationException if a parser could not be created
+     * @throws SAXException if a parser could not be created
+     */
+    static synchronized SAXParser newSAXParser() throws ParserConfigurationException, SAXException {
+        if (factory == null) {
+            if (System.getProperty("javax.xml.parsers.SAXParserFactory") == null) {
+                try {
+                    factory = SAXParserFactory.newInstance(JDK_SAX_FACTORY, null);
+                } catch (FactoryConfigurationError fce) {
+                    factory = SAXParserFactory.newInstance();
+                }
+            } else {
+                factory = SAXParserFactory.newInstance();
+            }
+            factory.setValidating(false);
+        }
+        return factory.newSAXParser();
+    }
+
+    /**
+     * forThread
+     *
+     * Return a parser for use by the calling thread only. The parser is kept,
+     * and returned again for the same fields.
+     *
+     * @param fields the fields to be captured from each VEO
+     * @return the parser
+     * @throws SAXException if the SAX parser could not be set up
+     */
+    public static VEOParser forThread(EnumSet<ManifestField> fields) throws SAXException {
+        HashMap<EnumSet<ManifestField>, VEOParser> parsers;
+        VEOParser p;
+
+        parsers = PARSERS.get();
+        p = parsers.get(fields);
+        if (p == null) {
+            p = new VEOParser(fields);
+            parsers.put(EnumSet.copyOf(fields), p);
+        }
+        return p;
+    }
+
+    /**
+     * Default constructor
+     *
+     * @param fields the fields to be captured from each VEO
+     * @throws SAXException if the SAX parser could not be set up
+     */
+    public VEOParser(EnumSet<ManifestField> fields) throws SAXException {
+        super();
+
+        // set up SAX parser
+        try {
+            sax = newSAXParser();
+            XMLReader xmlReader = sax.getXMLReader();
+
+            xmlReader.setProperty("http://xml.org/sax/properties/lexical-handler", this);
+        } catch (ParserConfigurationException e) {
+            throw new SAXException("Failure initiating SAX Parser: " + e.toString());
+        } catch (SAXException e) {
+            throw new SAXException("Failure initiating SAX Parser: " + e.toString());
+        }
+
+        this.fields = EnumSet.copyOf(fields);
+        parseNeeded = ManifestField.needsParse(this.fields);
+        elementValue = new StringBuffer();
+    }
+
+    /**
+     * Parse VEO
+     *
+     * This method opens a VEO and calls SAX to parse it looking for information
+     * to include in the manifest. The parse ends as soon as we have completed
+     * processing the vers:FileMetadata or vers:RecordMetadata element, or as
+     * soon as all the selected fields have been captured. If none of the
+     * selected fields needs the VEO to be parsed, the VEO is not opened.
+     *
+     * @param veo	the VEO to parse
+     * @return the information extracted from the VEO
+     * @throws java.io.IOException if something failed
+     */
+    public ManifestEntry parse(File veo) throws IOException {
+        return parse(veo, false);
+    }
+
+    /**
+     * Parse VEO
+     *
+     * As parse(veo), but if digest is true the SHA-256 digest of the content
+     * of the VEO is also taken as it is read, and the rest of the VEO is read
+     * once the parse has ended.
+     *
+     * @param veo	the VEO to parse
+     * @param digest true if the digest of the VEO is to be taken
+     * @return the information extracted from the VEO
+     * @throws java.io.IOException if something failed
+     */
+    public ManifestEntry parse(File veo, boolean digest) throws IOException {
+        FileInputStream fis;
+        BufferedInputStream bis;
+        InputStreamReader fir;
+        InputSource is;
+        ManifestEntry e;
+        byte[] b;
+
+        // print diagnostic...
+        // System.err.println((new Date()).getTime()/1000+" Processing '"+veo.getName()+"'");
+        // check parameters
+        if (veo == null) {
+            throw new IOException("veo must not be null");
+        }
+
+        entry = new ManifestEntry(veo);
+        veoIdDone = false;
+        titleDone = false;
+        if (!parseNeeded && !digest) {
+            return entry;
+        }
+        elementsFound = new Stack<>();
+        if (digest && md == null) {
+            try {
+                md = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException nsae) {
+                throw new IOException("SHA-256 not available: " + nsae.getMessage());
+            }
+        }
+
+        // Open the VEO for reading
+        try {
+            fis = new FileInputStream(veo);
+        } catch (FileNotFoundException fnfe) {
+            throw new IOException("XML file '" + veo.toString() + "' does not exist");
+        }
+        if (digest) {
+            md.reset();
+            bis = new BufferedInputStream(new DigestInputStream(fis, md));
+        } else {
+            bis = new BufferedInputStream(fis);
+        }
+        // this is necessary because SAX cannot auto-detect the encoding of the XML files
+        // it will break if the encoding is not UTF-8
+        try {
+            if (digest) {
+                // the SAX parser closes the stream when it reaches the end of
+                // the VEO, but the rest may still need to be read for the
+                // digest (it is closed below)
+                fir = new InputStreamReader(new FilterInputStream(bis) {
+                    @Override
+                    public void close() {
+                    }
+                }, "UTF-8");
+            } else {
+                fir = new InputStreamReader(bis, "UTF-8");
+            }
+        } catch (UnsupportedEncodingException uee) {
+            try {
+                fis.close();
+            } catch (IOException ioe) {
+                /* ignore */ }
+            throw new IOException("XMLParser.parse(): Error when setting encoding of input file: " + uee.getMessage());
+        }
+        is = new InputSource(fir);
+
+        // do it...
+        try {
+            try {
+                if (parseNeeded) {
+                    sax.parse(is, this);
+                }
+            } catch (SAXException se) {
+                if (!se.getMessage().equals("Finished Parse")) {
+                    throw se;
+                }
+            }
+
+            // read the rest of the VEO, so that the digest is of all of it
+            if (digest) {
+                b = new byte[65536];
+                while (bis.read(b) != -1) {
+                }
+                entry.digest = md.digest();
+            }
+        } catch (IOException ioe) {
+            throw new IOException("XMLParser.parse(): SAX parse of " + veo.toString() + " due to: " + ioe.getMessage());
+        } catch (SAXException se) {
+            throw new IOException("XMLParser.parse(): SAX parse of " + veo.toString() + " due to: " + se.getMessage());
+        } finally {
+            elementsFound = null;
+            try {
+                fir.close();
+            } catch (IOException ioe) {
+                /* ignore */ }
+            try {
+                bis.close();
+            } catch (IOException ioe) {
+                /* ignore */ }
+            try {
+                fis.close();
+            } catch (IOException ioe) {
+                /* ignore */ }
+        }
+        e = entry;
+        entry = null;
+        return e;
+    }
+
+    /**
+     * This forces the parser to ignore the reference to the external DTD (if
+     * any is present)
+     */
+    @Override
+    public InputSource resolveEntity(String name, String publicId, String baseURI, String systemId) throws SAXException {
+        return new InputSource(new ByteArrayInputStream(new byte[0]));
+    }
+
+    /**
+     * Entity Resolver
+     *
+     * If -n command line is set, try to use a local copy of the vers.dtd in the
+     * directory in which the program is running
+     */
+    /*
+    @Override
+    public InputSource resolveEntity(String publicId, String systemId)
+            throws SAXException {
+        InputSource is;
+        FileReader fr;
+        File f;
+
+        if (systemId.contains("vers.dtd") && !useStdDtd) {
+            f = new File("vers.dtd");
+            try {
+                fr = new FileReader(f);
+            } catch (FileNotFoundException fnfe) {
+                System.err.println("There is no 'vers.dtd' in the local directory when using '-n' command line argument");
+                return null;
+            }
+            return new InputSource(fr);
+        }
+        return null;
+    }
+     */
+    /**
+     * SAX Events captured
+     */
+    /**
+     * Start of element
+     *
+     * This event is called when the parser finds a new element. The element
+     * name is pushed onto the stack. The stack keeps the element path from the
+     * root of the parse tree to the current element. We then check this path to
+     * see if the current element matches one of the elements we are interested
+     * in (the parent and grandparent of this element may be checked on the
+     * stack to check the context). If they match, we start recording the
+     * element value.
+     */
+    static final String[][] CAPTURE_ELEMENTS = {
+        {"vers:Text", "vers:FileIdentifier", "vers:VEOIdentifier"},
+        {"vers:Text", "vers:VERSRecordIdentifier", "vers:VEOIdentifier"},
+        {"naa:TitleWords", "naa:Title", ""},
+        {"naa:FunctionDescriptor", "naa:Function", ""},
+        {"naa:ActivityDescriptor", "naa:Function", ""},
+        {"naa:ThirdLevelDescriptor", "naa:Function", ""},
+        {"vers:Keyword", "vers:Subject", ""},
+        {"vers:KeywordLevel", "vers:Subject", ""},
+        {"naa:AccessStatus", "naa:RightsManagement", ""},
+        {"naa:Sentence", "", ""},
+        {"naa:DateTimeRegistered", "", ""},
+        {"vers:DateTimeClosed", "", ""}};
+    static final ManifestField[] CAPTURE_FIELDS = {
+        ManifestField.FILE_ID,
+        ManifestField.RECORD_ID,
+        ManifestField.TITLE,
+        ManifestField.CLASSIFICATION,
+        ManifestField.CLASSIFICATION,
+        ManifestField.CLASSIFICATION,
+        ManifestField.CLASSIFICATION,
+        ManifestField.CLASSIFICATION,
+        ManifestField.ACCESS,
+        ManifestField.DISPOSAL,
+        ManifestField.DATES,
+        ManifestField.DATES};
+
+    @Override
+    public void startElement(String uri, String localName,
+            String qName, Attributes attributes)
+            throws SAXException {
+        boolean match;
+        int i, j;
+
+        // push element on stack
+        elementsFound.push(qName);
+
+        // check for vers:RecordMetadata (i.e. record VEO)
+        if (qName.equals("vers:RecordMetadata")) {
+            entry.record = true;
+        }
+
+        // match against path for interesting elements
+        match = false;
+        elementFound = 0;
+        for (i = 0; i < CAPTURE_ELEMENTS.length; i++) {
+            if (!fields.contains(CAPTURE_FIELDS[i])) {
+                continue;
+            }
+            for (j = 0; j < CAPTURE_ELEMENTS[i].length; j++) {
+                if (!(CAPTURE_ELEMENTS[i][j].equals(elementsFound.elementAt(elementsFound.size() - j - 1))
+                        || (CAPTURE_ELEMENTS[i][j].equals("")))) {
+                    break;
+                }
+            }
+            if (j == CAPTURE_ELEMENTS[i].length) {
+                elementFound = i;
+                match = true;
+                break;
+            }
+        }
+
+        // if match start recording element contents
+        recording = match;
+        elementValue.setLength(0);
+    }
+
+    /**
+     * Processing the content of an element
+     *
+     * Remember the element content if we are interested in the element. The
+     * content is kept as is; the XML special characters are escaped when the
+     * entry is rendered in the manifest (see ManifestEntry).
+     *
+     * @throws org.xml.sax.SAXException
+     */
+    @Override
+    public void characters(char[] ch, int start, int length) throws SAXException {
+        if (!recording) {
+            return;
+        }
+        elementValue.append(ch, start, length);
+    }
+
+    /**
+     * End of an element
+     *
+     * Found the end of an element. Pop the element from the top of the stack.
+     * If recording, stop, and store the recorded element. If a
+     * vers:FileMetadata or vers:RecordMetadata element has been finished, or
+     * all the selected fields have been captured, throw a SAX Parse Error to
+     * force the parse to terminate.
+     *
+     * @throws org.xml.sax.SAXException
+     */
+    @Override
+    public void endElement(String uri, String localName, String qName) throws SAXException {
+
+        // if recording store element value in appropriate global variable
+        if (recording) {
+            switch (elementFound) {
+                case (0): // vers:fileIdentifier
+                    entry.fileIdentifier = elementValue.toString();
+                    break;
+                case (1): // vers:recordIdentifier
+                    entry.recIdentifier = elementValue.toString();
+                    break;
+                case (2): // naa:titleWords
+                    entry.titleWords = elementValue.toString();
+                    break;
+                case (3): // naa:functionDescriptor
+                    if (entry.function == null) {
+                        entry.function = elementValue.toString();
+                    } else {
+                        entry.function = entry.function + " " + elementValue.toString();
+                    }
+                    break;
+                case (4): // naa:activityDescriptor
+                    entry.function = entry.function + " " + elementValue.toString();
+                    break;
+                case (5): // naa:ThirdLevelDescriptor
+                    entry.function = entry.function + " " + elementValue.toString();
+                    break;
+                case (6): // vers:Keyword
+                    if (entry.subject == null) {
+                        entry.subject = elementValue.toString();
+                    } else {
+                        entry.subject = entry.subject + " " + elementValue.toString();
+                    }
+                    break;
+                case (7): // vers:KeywordLevel
+                    if (entry.subject == null) {
+                        entry.subject = elementValue.toString();
+                    } else {
+                        entry.subject = entry.subject + " " + elementValue.toString();
+                    }
+                    break;
+                case (8): // naa:AccessStatus
+                    entry.accessStatus = elementValue.toString();
+                    break;
+                case (9): // naa:Sentence
+                    entry.sentence = elementValue.toString();
+                    break;
+                case (10): // naa:DateTimeRegistered
+                    entry.dateRegistered = elementValue.toString();
+                    break;
+                case (11): // vers:DateTimeClosed
+                    entry.dateClosed = elementValue.toString();
+                    break;
+            }
+        }
+
+        // stop recording
+        recording = false;
+        elementsFound.pop();
+
+        // note the end of elements that complete a field
+        switch (qName) {
+            case "vers:VEOIdentifier":
+                veoIdDone = true;
+                break;
+            case "naa:Title":
+                titleDone = true;
+                break;
+            default:
+                break;
+        }
+
+        // if finished a file or record metadata element stop parsing
+        if (qName.equals("vers:RecordMetadata")
+                || qName.equals("vers:FileMetadata")) {
+            throw new SAXException("Finished Parse");
+        }
+
+        // if captured everything we need, stop parsing
+        if (allCaptured()) {
+            throw new SAXException("Finished Parse");
+        }
+    }
+
+    /**
+     * All Captured
+     *
+     * Returns true if every selected field has been captured, and so the rest
+     * of the VEO need not be read. The classification, access category, and
+     * disposal authority are built from elements that may be repeated (e.g.
+     * several naa:Function elements), so these are only complete at the end
+     * of the metadata. A record VEO has no end date, so only the
+     * vers:DateTimeRegistered is needed.
+     */
+    private boolean allCaptured() {
+        for (ManifestField f : fields) {
+            switch (f) {
+                case FILE_ID:
+                case RECORD_ID:
+                    if (!veoIdDone) {
+                        return false;
+                    }
+                    break;
+                case TITLE:
+                    if (!titleDone) {
+                        return false;
+                    }
+                    break;
+                case CLASSIFICATION:
+                case ACCESS:
+                case DISPOSAL:
+                    return false;
+                case DATES:
+                    if (entry.dateRegistered == null || (!entry.record && entry.dateClosed == null)) {
+                        return false;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,436 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package v2manifestgenerator;
+
+/**
+ * *************************************************************
+ *
+ * V E R S D A T E
+ *
+ * A date (and time) from a VEO, e.g. vers:DateTimeRegistered or
+ * vers:DateTimeClosed. VERS V2 dates are ISO 8601 dates of any precision
+ * from a year to a fraction of a second:
+ *   YYYY, YYYY-MM, YYYY-MM-DD, YYYY-MM-DDThh, YYYY-MM-DDThh:mm,
+ *   YYYY-MM-DDThh:mm:ss, or YYYY-MM-DDThh:mm:ss.s (any number of digits)
+ * where a time may be followed by a time zone (Z, +hh:mm, -hh:mm, +hhmm, or
+ * +hh).
+ *
+ * A date is normalised for the manifest by writing it in the canonical form:
+ * an upper case 'T' (a space or lower case 't' is accepted) and 'Z', a '.'
+ * before the fraction (a ',' is accepted), and the time zone as +hh:mm. The
+ * precision is not changed. Most dates are already canonical, and are
+ * returned as is. The manifest schema (VeoDate) allows at most MAX_LENGTH
+ * characters, which a date with seconds and a time zone of +hh:mm exceeds.
+ * Such a date is written as the same instant in UTC (with 'Z'), and any
+ * fraction of a second is cut to the digits that fit.
+ *
+ * The parse is done by hand (rather than with a DateTimeFormatter, which
+ * would need a pattern for each precision, and throws an exception for each
+ * invalid date), so it allocates almost nothing beyond the VersDate. A
+ * VersDate is immutable, so can be used by any thread.
+ * ************************************************************
+ */
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+public class VersDate {
+
+    // precisions of a date
+    public static final int YEAR = 1;
+    public static final int MONTH = 2;
+    public static final int DAY = 3;
+    public static final int HOUR = 4;
+    public static final int MINUTE = 5;
+    public static final int SECOND = 6;
+    public static final int FRACTION = 7;
+
+    // the largest difference from UTC of a time zone, used when a date has
+    // no time zone
+    static final long MAX_OFFSET = 14 * 3600;
+
+    // the longest date allowed in the manifest (VeoDate in manifest.xsd)
+    public static final int MAX_LENGTH = 22;
+
+    final String value;	// the date as it was given (trimmed)
+    final int precision;	// the precision of the date (YEAR to FRACTION)
+    final int year, month, day, hour, minute, second;
+    final int fractionStart, fractionEnd; // the digits of the fraction in value
+    final char zone;		// 'Z', '+', or '-' if a time zone was given, else 0
+    final int offset;		// the time zone (seconds east of UTC)
+    final boolean canonical;	// true if value is in canonical form
+
+    private VersDate(String value, int precision, int[] f, int fractionStart, int fractionEnd, char zone, int offset, boolean canonical) {
+        this.value = value;
+        this.precision = precision;
+        year = f[0];
+        month = f[1];
+        day = f[2];
+        hour = f[3];
+        minute = f[4];
+        second = f[5];
+        this.fractionStart = fractionStart;
+        this.fractionEnd = fractionEnd;
+        this.zone = zone;
+        this.offset = offset;
+        this.canonical = canonical;
+    }
+
+    /**
+     * Parse
+     *
+     * Parse a VERS date
+     *
+     * @param s the date (leading and trailing white space is ignored)
+     * @return the date, or null if s is not a valid VERS date
+     */
+    public static VersDate parse(String s) {
+        int[] f;
+        int i, n, precision, fs, fe, oh, om;
+        char sign;
+        boolean canonical;
+        char c;
+
+        if (s == null) {
+            return null;
+        }
+        s = s.trim();
+        n = s.length();
+        f = new int[]{0, 1, 1, 0, 0, 0};
+        canonical = true;
+        fs = 0;
+        fe = 0;
+
+        // date
+        if ((f[0] = digits(s, 0, 4)) < 0) {
+            return null;
+        }
+        precision = YEAR;
+        i = 4;
+        if (i < n && s.charAt(i) == '-') {
+            if ((f[1] = digits(s, i + 1, 2)) < 1 || f[1] > 12) {
+                return null;
+            }
+            precision = MONTH;
+            i += 3;
+            if (i < n && s.charAt(i) == '-') {
+                if ((f[2] = digits(s, i + 1, 2)) < 1 || f[2] > daysInMonth(f[0], f[1])) {
+                    return null;
+                }
+                precision = DAY;
+                i += 3;
+            }
+        }
+
+        // time
+        if (precision == DAY && i < n && ((c = s.charAt(i)) == 'T' || c == 't' || c == ' ')) {
+            canonical = c == 'T';
+            if ((f[3] = digits(s, i + 1, 2)) < 0 || f[3] > 23) {
+                return null;
+            }
+            precision = HOUR;
+            i += 3;
+            if (i < n && s.charAt(i) == ':') {
+                if ((f[4] = digits(s, i + 1, 2)) < 0 || f[4] > 59) {
+                    return null;
+                }
+                precision = MINUTE;
+                i += 3;
+                if (i < n && s.charAt(i) == ':') {
+                    if ((f[5] = digits(s, i + 1, 2)) < 0 || f[5] > 59) {
+                        return null;
+                    }
+                    precision = SECOND;
+                    i += 3;
+                    if (i < n && ((c = s.charAt(i)) == '.' || c == ',')) {
+                        canonical &= c == '.';
+                        fs = i + 1;
+                        for (i = fs; i < n && isDigit(s.charAt(i)); i++) {
+                        }
+                        if (i == fs) {
+                            return null;
+                        }
+                        fe = i;
+                        precision = FRACTION;
+                    }
+                }
+            }
+        }
+        if (i == n) {
+            return new VersDate(s, precision, f, fs, fe, (char) 0, 0, canonical);
+        }
+
+        // time zone (only after a time)
+        if (precision < HOUR) {
+            return null;
+        }
+        c = s.charAt(i);
+        if (c == 'Z' || c == 'z') {
+            if (i + 1 != n) {
+                return null;
+            }
+            return new VersDate(s, precision, f, fs, fe, 'Z', 0, canonical && c == 'Z');
+        }
+        if (c != '+' && c != '-') {
+            return null;
+        }
+        sign = c;
+        if ((oh = digits(s, i + 1, 2)) < 0 || oh > 14) {
+            return null;
+        }
+        i += 3;
+        om = 0;
+        if (i == n) {
+            canonical = false;
+        } else {
+            if (s.charAt(i) == ':') {
+                i++;
+            } else {
+                canonical = false;
+            }
+            if ((om = digits(s, i, 2)) < 0 || om > 59 || i + 2 != n) {
+                return null;
+            }
+        }
+        return new VersDate(s, precision, f, fs, fe, sign, (sign == '+' ? 1 : -1) * (oh * 3600 + om * 60), canonical);
+    }
+
+    /**
+     * Return the value of n digits at s[i], or -1 if they are not all digits
+     */
+    private static int digits(String s, int i, int n) {
+        int v, j;
+        char c;
+
+        if (i + n > s.length()) {
+            return -1;
+        }
+        v = 0;
+        for (j = i; j < i + n; j++) {
+            c = s.charAt(j);
+            if (!isDigit(c)) {
+                return -1;
+            }
+            v = v * 10 + (c - '0');
+        }
+        return v;
+    }
+
+    private static int daysInMonth(int year, int month) {
+        switch (month) {
+            case 2:
+                return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    /**
+     * Normalise
+     *
+     * Return a date in canonical form for the manifest, at most MAX_LENGTH
+     * characters long. An invalid date is returned as is (trimmed).
+     *
+     * @param s the date (may be null)
+     * @return the normalised date (null if s is null)
+     */
+    public static String normalise(String s) {
+        VersDate d;
+        String t;
+
+        if (s == null) {
+            return null;
+        }
+        d = parse(s);
+        if (d == null) {
+            return s.trim();
+        }
+        t = d.toString();
+        return t.length() <= MAX_LENGTH ? t : d.shorten();
+    }
+
+    public int getPrecision() {
+        return precision;
+    }
+
+    public boolean hasOffset() {
+        return zone != 0;
+    }
+
+    /**
+     * To String
+     *
+     * @return the date in canonical form
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb;
+        int o;
+
+        if (canonical) {
+            return value;
+        }
+        sb = new StringBuilder(value.length() + 1);
+        sb.append(value, 0, 10);
+        sb.append('T');
+        sb.append(value, 11, 13);
+        if (precision >= MINUTE) {
+            sb.append(value, 13, 16);
+        }
+        if (precision >= SECOND) {
+            sb.append(value, 16, 19);
+        }
+        if (precision == FRACTION) {
+            sb.append('.');
+            sb.append(value, fractionStart, fractionEnd);
+        }
+        if (zone == 'Z') {
+            sb.append('Z');
+        } else if (zone != 0) {
+            o = Math.abs(offset);
+            sb.append(zone);
+            two(sb, o / 3600);
+            sb.append(':');
+            two(sb, (o / 60) % 60);
+        }
+        return sb.toString();
+    }
+
+    private static void two(StringBuilder sb, int v) {
+        sb.append((char) ('0' + v / 10));
+        sb.append((char) ('0' + v % 10));
+    }
+
+    /**
+     * Shorten
+     *
+     * Return the date in at most MAX_LENGTH characters. Only a date with
+     * seconds can be longer. If it has a time zone, it is written in UTC, which
+     * is the same instant. Digits of the fraction that do not fit are dropped.
+     */
+    private String shorten() {
+        StringBuilder sb;
+        LocalDateTime t;
+        int n;
+
+        if (zone != 0) {
+            t = LocalDateTime.ofEpochSecond(start() - offset, 0, ZoneOffset.UTC);
+        } else {
+            t = LocalDateTime.of(year, month, day, hour, minute, second);
+        }
+        sb = new StringBuilder(MAX_LENGTH);
+        sb.append(String.format("%04d-%02d-%02dT%02d:%02d:%02d", t.getYear(), t.getMonthValue(), t.getDayOfMonth(), t.getHour(), t.getMinute(), t.getSecond()));
+        if (precision == FRACTION) {
+            n = Math.min(fractionEnd - fractionStart, MAX_LENGTH - sb.length() - (zone != 0 ? 2 : 1));
+            if (n > 0) {
+                sb.append('.');
+                sb.append(value, fractionStart, fractionStart + n);
+            }
+        }
+        if (zone != 0) {
+            sb.append('Z');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Earliest
+     *
+     * Return the start of the period denoted by the date (e.g. the start of
+     * the year for a year). If the date has no time zone, the earliest time
+     * it could be in any time zone is returned.
+     *
+     * @return seconds since the epoch
+     */
+    public long earliest() {
+        return zone != 0 ? start() - offset : start() - MAX_OFFSET;
+    }
+
+    /**
+     * Latest
+     *
+     * Return the end of the period denoted by the date (i.e. the start of the
+     * next period). If the date has no time zone, the latest time it could be
+     * in any time zone is returned.
+     *
+     * @return seconds since the epoch
+     */
+    public long latest() {
+        return zone != 0 ? end() - offset : end() + MAX_OFFSET;
+    }
+
+    /**
+     * The start and end of the period denoted by the date, ignoring the time
+     * zone (in seconds since the epoch, as if the date were in UTC)
+     */
+    private long start() {
+        return LocalDate.of(year, month, day).toEpochDay() * 86400 + hour * 3600 + minute * 60 + second;
+    }
+
+    private long end() {
+        LocalDate d;
+        long t;
+
+        d = LocalDate.of(year, month, day);
+        switch (precision) {
+            case YEAR:
+                d = d.plusYears(1);
+                break;
+            case MONTH:
+                d = d.plusMonths(1);
+                break;
+            case DAY:
+                d = d.plusDays(1);
+                break;
+            default:
+                break;
+        }
+        t = d.toEpochDay() * 86400 + hour * 3600 + minute * 60 + second;
+        switch (precision) {
+            case HOUR:
+                t += 3600;
+                break;
+            case MINUTE:
+                t += 60;
+                break;
+            case SECOND:
+            case FRACTION:
+                t += 1;
+                break;
+            default:
+                break;
+        }
+        return t;
+    }
+
+    /**
+     * Before
+     *
+     * Test if this date is certainly before another (i.e. the whole period
+     * denoted by this date ends before the period denoted by the other
+     * starts). Used to check that a file was not closed before it was
+     * registered. If neither date has a time zone, they are taken to be in
+     * the same time zone.
+     *
+     * @param d the other date
+     * @return true if this date is before d
+     */
+    public boolean isBefore(VersDate d) {
+        if (zone == 0 && d.zone == 0) {
+            return end() <= d.start();
+        }
+        return latest() <= d.earliest();
+    }
+}
@@ -0,0 +1,571 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package v2manifestgenerator;
+
+/**
+ * *************************************************************
+ *
+ * R E G R E S S I O N C H E C K
+ *
+ * This program checks that the output of the manifest generator has not
+ * changed, and that it has not become slower. It is run over the regression
+ * corpus in the 'regression' directory (run 'ant regression'):
+ *   veos/     edge cases for an electronic transfer (record and file VEOs,
+ *             missing optional elements, VEOs without a vers:FileIdentifier
+ *             or a naa:TitleWords (which are left out of the manifest),
+ *             several levels of naa:Function, vers:KeywordLevel subjects,
+ *             entities and character references, values that must be
+ *             truncated, white space, dates that are not canonical, too
+ *             long for the schema, or not valid, and a VEO without a
+ *             naa:DateTimeRegistered)
+ *   media/    a media export (a directory for each piece of media)
+ *   plan/     VEOs of different sizes for a planned media export
+ *   cases.txt the runs of the generator to check
+ *   golden/   the expected output of each run
+ *
+ * Each line of cases.txt gives the name of a case and the arguments to the
+ * generator. The generator is run in the regression directory, and '${out}'
+ * in the arguments is replaced by a directory for any files the case writes
+ * (e.g. -export, -stats, or -plan). The manifest written to standard out must
+ * be the same as golden/<name>.xml, and each file written to ${out} the same
+ * as golden/<name>.<file>. The values of dam:created_timestamp and
+ * dam:media_written depend on when the case is run and are masked. The
+ * exports are written in the order the file system lists the VEOs, so their
+ * lines are compared sorted. What the generator reports on standard error
+ * (e.g. invalid dates, VEOs left out, and duplicates) must be the same as
+ * golden/<name>.err. The progress (the start and end times, and the dots and
+ * names printed as the VEOs are parsed) is left out, the regression
+ * directory and ${out} are replaced by '${regression}' and '${out}', and the
+ * lines are compared sorted, as the VEOs are parsed in the order the file
+ * system lists them. Otherwise the output must be the same line for
+ * line (the line separator is ignored, as it depends on the platform). The
+ * generator is run in the POSIX locale, whose charset is ASCII, so the output
+ * must not depend on the platform's default charset.
+ *
+ * The throughput is only checked if asked, as it depends on the machine ('ant
+ * regression-perf'). With
+ * -baseline, the generator and an earlier build of it (e.g. the jar of the
+ * last release) are run in turn over copies of the VEOs in veos/ (-veos,
+ * default 10000) a number of times (-runs, default 5), and the median rates
+ * (in VEOs per second) are compared. This does not depend on the machine.
+ * With -throughput, the rate is instead compared with the rate recorded in
+ * throughput.txt (over the number of VEOs recorded there) by an earlier
+ * '-update -throughput' on the same machine. throughput.txt is not committed.
+ * The check fails if the rate has dropped by more than the margin (-margin,
+ * default 20%), or if there is no rate to compare with.
+ *
+ * -update writes the output of each case as the new golden output (and, with
+ * -throughput, records the rate) instead of checking them. The changes should
+ * be reviewed before they are committed.
+ *
+ * The program exits with -1 if any check fails.
+ *
+ * RegressionCheck [-update] [-throughput] [-veos n] [-runs n] [-margin percent] [-baseline jar] [directory]
+ * ************************************************************
+ */
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.Writer;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class RegressionCheck {
+
+    // the values that depend on when the generator is run
+    static final Pattern MASK = Pattern.compile("(<dam:(created_timestamp|media_written)>)[^<]*(</dam:\\2>)");
+
+    // the progress reported on standard error (after the leading dots)
+    static final Pattern PROGRESS = Pattern.compile("(Start|End) [0-9]+|[^\\s']+\\.(?i:veo)");
+
+    String java;		// the java executable
+    String classpath;	// class path of the generator being checked
+    File directory;		// the regression directory
+    File golden;		// the golden output
+    boolean update;		// true if writing the golden output
+    int failures;		// number of checks that failed
+
+    /**
+     * Constructor
+     *
+     * @param directory the regression directory
+     * @param update true if the golden output is to be written
+     * @throws URISyntaxException if the location of the generator is unknown
+     */
+    public RegressionCheck(File directory, boolean update) throws URISyntaxException {
+        this.directory = directory;
+        this.update = update;
+        golden = new File(directory, "golden");
+        java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+        classpath = new File(V2ManifestGenerator.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+        failures = 0;
+    }
+
+    /**
+     * Check Cases
+     *
+     * Run each case in cases.txt, and compare the output with the golden
+     * output
+     *
+     * @return the number of cases run
+     * @throws IOException if a case could not be run
+     * @throws InterruptedException if interrupted
+     */
+    public int checkCases() throws IOException, InterruptedException {
+        BufferedReader br;
+        String line, name;
+        String[] tokens;
+        int cases;
+
+        if (update && !golden.exists() && !golden.mkdir()) {
+            throw new IOException("Could not create '" + golden.getPath() + "'");
+        }
+        cases = 0;
+        br = new BufferedReader(new InputStreamReader(new FileInputStream(new File(directory, "cases.txt")), StandardCharsets.UTF_8));
+        try {
+            while ((line = br.readLine()) != null) {
+                line = line.trim();
+                if (line.equals("") || line.startsWith("#")) {
+                    continue;
+                }
+                tokens = line.split("\\s+");
+                name = tokens[0];
+                checkCase(name, Arrays.copyOfRange(tokens, 1, tokens.length));
+                cases++;
+            }
+        } finally {
+            br.close();
+        }
+        return cases;
+    }
+
+    /**
+     * Check Case
+     *
+     * Run the generator for one case, and compare its output with the golden
+     * output
+     *
+     * @param name the name of the case
+     * @param args the arguments to the generator
+     */
+    private void checkCase(String name, String[] args) throws IOException, InterruptedException {
+        List<String> command;
+        ByteArrayOutputStream manifest;
+        File out, errors;
+        File[] files;
+        String[] expected;
+        int i, failed;
+
+        failed = failures;
+        out = Files.createTempDirectory("regression").toFile();
+        errors = File.createTempFile("regression", ".err");
+        try {
+            command = new ArrayList<>();
+            for (i = 0; i < args.length; i++) {
+                command.add(args[i].replace("${out}", out.getPath()));
+            }
+            manifest = new ByteArrayOutputStream();
+            if (generate(classpath, command, manifest, errors) != 0) {
+                fail(name, "generator failed (see '" + errors.getPath() + "')");
+                return;
+            }
+            compare(name, name + ".xml", new String(manifest.toByteArray(), StandardCharsets.UTF_8), false);
+            compare(name, name + ".err", reports(errors, out), true);
+
+            // files written by the case, and the golden files it should have written
+            files = out.listFiles();
+            Arrays.sort(files);
+            for (File f : files) {
+                compare(name, name + "." + f.getName(), new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8), isExport(f.getName()));
+            }
+            expected = golden.list((dir, fn) -> fn.startsWith(name + ".") && !fn.equals(name + ".xml") && !fn.equals(name + ".err"));
+            for (i = 0; !update && expected != null && i < expected.length; i++) {
+                if (!new File(out, expected[i].substring(name.length() + 1)).exists()) {
+                    fail(name, "did not write '" + expected[i].substring(name.length() + 1) + "'");
+                }
+            }
+            if (failures == failed) {
+                errors.delete();
+            }
+        } finally {
+            files = out.listFiles();
+            for (i = 0; files != null && i < files.length; i++) {
+                files[i].delete();
+            }
+            out.delete();
+        }
+        System.out.println((failures == failed ? "ok      " : "FAILED  ") + name);
+    }
+
+    /**
+     * Reports
+     *
+     * Return what the generator reported on standard error, without the
+     * progress, and with the regression directory and the directory for the
+     * files written replaced by '${regression}' and '${out}'
+     */
+    private String reports(File errors, File out) throws IOException {
+        BufferedReader br;
+        StringBuilder sb;
+        String line;
+
+        sb = new StringBuilder();
+        br = new BufferedReader(new StringReader(new String(Files.readAllBytes(errors.toPath()), StandardCharsets.UTF_8)));
+        while ((line = br.readLine()) != null) {
+            line = line.replaceFirst("^\\.+", "");
+            if (line.equals("") || PROGRESS.matcher(line).matches()) {
+                continue;
+            }
+            sb.append(line.replace(out.getPath(), "${out}").replace(directory.getPath(), "${regression}"));
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static boolean isExport(String name) {
+        return name.endsWith(".jsonl") || name.endsWith(".csv");
+    }
+
+    /**
+     * Compare output with the golden output (or write the golden output if
+     * updating)
+     *
+     * @param name the name of the case
+     * @param file the name of the golden file
+     * @param output the output
+     * @param sorted true if the lines are to be compared sorted
+     */
+    private void compare(String name, String file, String output, boolean sorted) throws IOException {
+        List<String> actual, expected;
+        File g;
+        Writer w;
+        int i;
+
+        actual = lines(output, sorted);
+        g = new File(golden, file);
+        if (update) {
+            w = new OutputStreamWriter(new FileOutputStream(g), StandardCharsets.UTF_8);
+            try {
+                for (String line : actual) {
+                    w.write(line);
+                    w.write('\n');
+                }
+            } finally {
+                w.close();
+            }
+            return;
+        }
+        if (!g.exists()) {
+            fail(name, "no golden output '" + g.getPath() + "' (run with -update)");
+            return;
+        }
+        expected = lines(new String(Files.readAllBytes(g.toPath()), StandardCharsets.UTF_8), sorted);
+        for (i = 0; i < actual.size() && i < expected.size(); i++) {
+            if (!actual.get(i).equals(expected.get(i))) {
+                fail(name, file + " line " + (i + 1) + ":\n  expected: " + expected.get(i) + "\n  actual:   " + actual.get(i));
+                return;
+            }
+        }
+        if (actual.size() != expected.size()) {
+            fail(name, file + ": expected " + expected.size() + " lines, got " + actual.size());
+        }
+    }
+
+    /**
+     * Split output into lines, masking the values that depend on when the
+     * generator was run
+     */
+    private static List<String> lines(String output, boolean sorted) throws IOException {
+        BufferedReader br;
+        List<String> l;
+        Matcher m;
+        String line;
+
+        l = new ArrayList<>();
+        br = new BufferedReader(new StringReader(output));
+        while ((line = br.readLine()) != null) {
+            m = MASK.matcher(line);
+            l.add(m.replaceAll("$1MASKED$3"));
+        }
+        if (sorted) {
+            Collections.sort(l);
+        }
+        return l;
+    }
+
+    private void fail(String name, String msg) {
+        failures++;
+        System.out.println("FAILED  " + name + ": " + msg);
+    }
+
+    /**
+     * Check Throughput
+     *
+     * Run the generator over copies of the VEOs in veos/, and compare the
+     * rate with the recorded rate, or with that of an earlier build
+     *
+     * @param veos the number of VEOs to generate the manifest for
+     * @param runs the number of runs (the median is taken)
+     * @param margin the proportion the rate may drop by
+     * @param baseline class path of an earlier build (null to use the rate
+     * recorded)
+     * @throws IOException if the generator could not be run
+     * @throws InterruptedException if interrupted
+     */
+    public void checkThroughput(int veos, int runs, double margin, String baseline) throws IOException, InterruptedException {
+        File corpus, recorded;
+        File[] files;
+        Properties p;
+        InputStream is;
+        OutputStreamWriter w;
+        double[] r;
+        double rate, expected;
+        int i;
+
+        // the rate recorded, which is compared over the same number of VEOs
+        recorded = new File(directory, "throughput.txt");
+        p = new Properties();
+        expected = 0;
+        if (baseline == null && !update) {
+            if (!recorded.exists()) {
+                fail("throughput", "no throughput recorded on this machine (run with -update -throughput, or give -baseline)");
+                return;
+            }
+            is = new FileInputStream(recorded);
+            try {
+                p.load(is);
+            } finally {
+                is.close();
+            }
+            try {
+                expected = Double.parseDouble(p.getProperty("veosPerSecond"));
+                veos = Integer.parseInt(p.getProperty("veos"));
+            } catch (NullPointerException | NumberFormatException e) {
+                throw new IOException("Invalid throughput recorded in '" + recorded.getPath() + "' (run with -update -throughput)");
+            }
+        }
+
+        // copy the VEOs to make a consignment of the size wanted
+        files = new File(directory, "veos").listFiles();
+        Arrays.sort(files);
+        corpus = Files.createTempDirectory("regression").toFile();
+        try {
+            for (i = 0; i < veos; i++) {
+                Files.copy(files[i % files.length].toPath(), new File(corpus, String.format("%06d-", i) + files[i % files.length].getName()).toPath());
+            }
+            if (baseline != null) {
+                r = rates(new String[]{classpath, baseline}, corpus, runs);
+                rate = r[0];
+                expected = r[1];
+            } else {
+                rate = rates(new String[]{classpath}, corpus, runs)[0];
+            }
+            System.out.println(String.format("Throughput: %.0f VEOs/s (median of %d runs over %d VEOs)", rate, runs, veos));
+
+            // the rate to compare with
+            if (baseline != null) {
+                System.out.println(String.format("Baseline:   %.0f VEOs/s (%s)", expected, baseline));
+            } else if (update) {
+                p.setProperty("veosPerSecond", String.format("%.0f", rate));
+                p.setProperty("veos", Integer.toString(veos));
+                w = new OutputStreamWriter(new FileOutputStream(recorded), StandardCharsets.UTF_8);
+                try {
+                    p.store(w, "Recorded by RegressionCheck -update -throughput");
+                } finally {
+                    w.close();
+                }
+                return;
+            } else {
+                System.out.println(String.format("Recorded:   %.0f VEOs/s", expected));
+            }
+            if (rate < expected * (1 - margin)) {
+                fail("throughput", String.format("%.0f VEOs/s is more than %.0f%% below %.0f VEOs/s", rate, margin * 100, expected));
+            }
+        } finally {
+            files = corpus.listFiles();
+            for (i = 0; files != null && i < files.length; i++) {
+                files[i].delete();
+            }
+            corpus.delete();
+        }
+    }
+
+    /**
+     * Return the median rate (in VEOs per second) of a number of runs of each
+     * generator over a directory. The runs of the generators are interleaved,
+     * so that each is slowed the same by anything else running.
+     */
+    private double[] rates(String[] cps, File corpus, int runs) throws IOException, InterruptedException {
+        List<String> command;
+        File errors;
+        long[][] times;
+        double[] rates;
+        long start;
+        int i, j, n;
+
+        n = corpus.list().length;
+        command = Arrays.asList("-va", "1", "-vprs", "1", "-p", "1", "-tr", "1", "-d", corpus.getPath());
+        errors = File.createTempFile("regression", ".err");
+        times = new long[cps.length][runs];
+        for (i = 0; i < runs; i++) {
+            for (j = 0; j < cps.length; j++) {
+                start = System.nanoTime();
+                if (generate(cps[j], command, null, errors) != 0) {
+                    throw new IOException("Generator failed (see '" + errors.getPath() + "')");
+                }
+                times[j][i] = System.nanoTime() - start;
+            }
+        }
+        errors.delete();
+        rates = new double[cps.length];
+        for (j = 0; j < cps.length; j++) {
+            Arrays.sort(times[j]);
+            rates[j] = n / (times[j][runs / 2] / 1e9);
+        }
+        return rates;
+    }
+
+    /**
+     * Run the generator in the regression directory (in the POSIX locale),
+     * returning its exit code
+     *
+     * @param cp class path of the generator
+     * @param args the arguments to the generator
+     * @param manifest where to put standard out (null to discard it)
+     * @param errors where to put standard error
+     */
+    private int generate(String cp, List<String> args, ByteArrayOutputStream manifest, File errors) throws IOException, InterruptedException {
+        List<String> command;
+        ProcessBuilder pb;
+        Process p;
+        InputStream is;
+        byte[] b;
+        int n;
+
+        command = new ArrayList<>();
+        command.add(java);
+        command.addAll(Arrays.asList("-cp", cp, "v2manifestgenerator.V2ManifestGenerator"));
+        command.addAll(args);
+        pb = new ProcessBuilder(command);
+        pb.environment().remove("LC_CTYPE");
+        pb.environment().put("LC_ALL", "C");
+        pb.environment().put("LANG", "C");
+        pb.directory(directory);
+        pb.redirectError(errors);
+        p = pb.start();
+        b = new byte[65536];
+        is = p.getInputStream();
+        try {
+            while ((n = is.read(b)) != -1) {
+                if (manifest != null) {
+                    manifest.write(b, 0, n);
+                }
+            }
+        } finally {
+            is.close();
+        }
+        return p.waitFor();
+    }
+
+    /**
+     * Main program
+     *
+     * @param args command line args
+     */
+    public static void main(String args[]) {
+        RegressionCheck rc;
+        String usage = "RegressionCheck [-update] [-throughput] [-veos n] [-runs n] [-margin percent] [-baseline jar] [directory]";
+        File directory;
+        String baseline;
+        boolean update, throughput;
+        double margin;
+        int i, veos, runs, cases;
+
+        update = false;
+        throughput = false;
+        veos = 10000;
+        runs = 5;
+        margin = 0.2;
+        baseline = null;
+        directory = null;
+        try {
+            for (i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-update":
+                        update = true;
+                        break;
+                    case "-throughput":
+                        throughput = true;
+                        break;
+                    case "-veos":
+                        veos = Integer.parseInt(args[++i]);
+                        break;
+                    case "-runs":
+                        runs = Integer.parseInt(args[++i]);
+                        break;
+                    case "-margin":
+                        margin = Double.parseDouble(args[++i]) / 100;
+                        break;
+                    case "-baseline":
+                        baseline = args[++i];
+                        break;
+                    default:
+                        if (args[i].startsWith("-") || directory != null) {
+                            System.err.println("Unrecognised argument '" + args[i] + "'\n" + usage);
+                            System.exit(-1);
+                        }
+                        directory = new File(args[i]);
+                        break;
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            System.err.println("Missing or invalid argument\n" + usage);
+            System.exit(-1);
+        }
+        if (directory == null) {
+            directory = new File("regression");
+        }
+        if (veos < 1 || runs < 1 || margin < 0) {
+            System.err.println(usage);
+            System.exit(-1);
+        }
+
+        try {
+            rc = new RegressionCheck(directory.getAbsoluteFile(), update);
+            cases = rc.checkCases();
+            throughput |= baseline != null;
+            if (throughput) {
+                rc.checkThroughput(veos, runs, margin, baseline);
+            }
+            if (rc.failures != 0) {
+                System.out.println(rc.failures + " checks FAILED");
+                System.exit(-1);
+            }
+            System.out.println(cases + " cases" + (throughput ? " and the throughput" : "") + (update ? " recorded" : " checked"));
+        } catch (IOException | URISyntaxException e) {
+            System.err.println(e.getMessage());
+            System.exit(-1);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            System.exit(-1);
+        }
+    }
+}
@@ -0,0 +1,356 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package v2manifestgenerator;
+
+/**
+ * *************************************************************
+ *
+ * R E N D E R B E N C H M A R K
+ *
+ * This program checks and measures the escaping and truncation of the values
+ * written in the manifest (ManifestEntry.escape() and trunc()).
+ *
+ * First, random values (-values, default 1000000) are escaped and truncated,
+ * and the results compared with those of the previous implementations (kept
+ * here as oldEscape() and oldTrunc()). The escaped value must always be the
+ * same. The truncated value must be the same unless the previous
+ * implementation cut a surrogate pair in half, in which case the whole pair
+ * must have been dropped. No truncated value may contain half a pair. The
+ * values mix ASCII, the XML special characters, white space, other BMP
+ * characters, and surrogate pairs, and are truncated at random lengths.
+ * Each value, and a value just longer than the longest title, is also
+ * rendered as a dam:veo_title (ManifestEntry.value()), which must parse as
+ * XML to the value written to the exports (i.e. the cut must not be inside an
+ * entity).
+ *
+ * Then both implementations are timed over values like those found in VEOs
+ * (mostly plain text, with an occasional '&', '<', or '>'), and the median
+ * time per value of a number of rounds (-rounds, default 15) is reported.
+ *
+ * The program exits with -1 if a check fails.
+ *
+ * RenderBenchmark [-values n] [-rounds n] [-seed n]
+ * ************************************************************
+ */
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Random;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+public class RenderBenchmark {
+
+    // characters the random values are made of
+    static final String ASCII = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789 .,;:'\"/-()";
+    static final String SPECIAL = "&<>";
+    static final String SPACE = " \t\n\r";
+    static final String BMP = "\u00e9\u00fc\u00df\u0101\u03a9\u0416\u4e2d\u6587\u2013\u20ac\ufffd";
+
+    Random random;		// source of the random values
+    int failures;		// number of checks that failed
+    SAXParser sax;		// parses the rendered values
+    StringBuilder parsed;	// text of the value parsed
+
+    /**
+     * Constructor
+     *
+     * @param seed seed of the random values
+     * @throws ParserConfigurationException if the XML parser could not be created
+     * @throws SAXException if the XML parser could not be created
+     */
+    public RenderBenchmark(long seed) throws ParserConfigurationException, SAXException {
+        random = new Random(seed);
+        failures = 0;
+        sax = SAXParserFactory.newInstance().newSAXParser();
+        parsed = new StringBuilder();
+    }
+
+    /**
+     * Check
+     *
+     * Compare the escaping and truncation of random values with that of the
+     * previous implementations
+     *
+     * @param values the number of values to check
+     * @return the number of values whose truncation was corrected
+     */
+    public int check(int values) {
+        ManifestEntry e;
+        String v, s, old;
+        int i, maxLen, corrected;
+
+        e = new ManifestEntry(new File("fuzz.veo"));
+        corrected = 0;
+        for (i = 0; i < values; i++) {
+            v = randomValue(random.nextInt(64) == 0 ? 2048 : 64, 0.05, 0.1);
+            checkRendered(e, v);
+            checkRendered(e, randomValue(ManifestColumn.VEO_TITLE.getMaxLength() - 16, 0, 0).replace(' ', 'x')
+                    + "xxxxxxxxxxxxxxxx" + randomValue(32, 0.3, 0.1));
+            s = ManifestEntry.escape(v);
+            if (!s.equals(oldEscape(v))) {
+                fail("escape", v, s, oldEscape(v));
+            }
+            maxLen = 1 + random.nextInt(Math.max(v.length(), 1) + 1);
+            s = ManifestEntry.trunc(v, maxLen);
+            old = oldTrunc(v, maxLen);
+            if (s.length() > maxLen || halfPair(s)) {
+                fail("trunc " + maxLen, v, s, old);
+            } else if (!s.equals(old)) {
+                if (!halfPair(old) || !s.equals(old.substring(0, old.length() - 2) + "*")) {
+                    fail("trunc " + maxLen, v, s, old);
+                }
+                corrected++;
+            }
+        }
+        return corrected;
+    }
+
+    /**
+     * Check that a value rendered as a title parses as XML to the value
+     * written to the exports
+     */
+    private void checkRendered(ManifestEntry e, String v) {
+        String s, expected;
+
+        e.titleWords = v;
+        s = e.value(ManifestColumn.VEO_TITLE, true);
+        expected = e.value(ManifestColumn.VEO_TITLE, false).replace("\r\n", "\n").replace('\r', '\n');
+        parsed.setLength(0);
+        try {
+            sax.parse(new InputSource(new StringReader("<v>" + s + "</v>")), new DefaultHandler() {
+                @Override
+                public void characters(char[] ch, int start, int length) {
+                    parsed.append(ch, start, length);
+                }
+            });
+        } catch (SAXException | IOException ex) {
+            fail("render (" + ex.getMessage() + ")", v, s, expected);
+            return;
+        }
+        if (!parsed.toString().equals(expected)) {
+            fail("render", v, parsed.toString(), expected);
+        }
+    }
+
+    /**
+     * Record a failed check
+     */
+    private void fail(String what, String value, String got, String expected) {
+        failures++;
+        if (failures <= 10) {
+            System.err.println("FAILED " + what + ": value '" + value + "' gave '" + got + "', expected '" + expected + "'");
+        }
+    }
+
+    /**
+     * Test if a string contains half a surrogate pair
+     */
+    static boolean halfPair(String s) {
+        int i;
+        char c;
+
+        for (i = 0; i < s.length(); i++) {
+            c = s.charAt(i);
+            if (Character.isHighSurrogate(c)) {
+                if (i + 1 == s.length() || !Character.isLowSurrogate(s.charAt(i + 1))) {
+                    return true;
+                }
+                i++;
+            } else if (Character.isLowSurrogate(c)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Generate a random value of up to maxLen characters
+     *
+     * @param maxLen the maximum length
+     * @param special the proportion of characters that are '&', '<', or '>'
+     * @param other the proportion of characters that are white space, other
+     * BMP characters, or surrogate pairs
+     */
+    private String randomValue(int maxLen, double special, double other) {
+        StringBuilder sb;
+        int i, n;
+        double r;
+
+        n = random.nextInt(maxLen + 1);
+        sb = new StringBuilder(n + 1);
+        for (i = 0; i < n; i++) {
+            r = random.nextDouble();
+            if (r < special) {
+                sb.append(pick(SPECIAL));
+            } else if (r < special + other / 3) {
+                sb.append(pick(SPACE));
+            } else if (r < special + 2 * other / 3) {
+                sb.append(pick(BMP));
+            } else if (r < special + other) {
+                sb.appendCodePoint(0x10000 + random.nextInt(0xf0000));
+            } else {
+                sb.append(pick(ASCII));
+            }
+        }
+        return sb.toString();
+    }
+
+    private char pick(String chars) {
+        return chars.charAt(random.nextInt(chars.length()));
+    }
+
+    /**
+     * Time
+     *
+     * Time the escaping and truncation of values like those in VEOs with the
+     * current and previous implementations, and print the median time per
+     * value
+     *
+     * @param rounds the number of rounds of each implementation
+     */
+    public void time(int rounds) {
+        String[] values;
+        long[] current, previous;
+        long start, sink;
+        int i, j;
+
+        // titles and descriptions: mostly plain text, with an occasional
+        // special character
+        values = new String[100000];
+        for (i = 0; i < values.length; i++) {
+            values[i] = randomValue(200, random.nextInt(20) == 0 ? 0.01 : 0, 0.01);
+        }
+
+        current = new long[rounds];
+        previous = new long[rounds];
+        sink = 0;
+        for (i = 0; i < rounds; i++) {
+            start = System.nanoTime();
+            for (j = 0; j < values.length; j++) {
+                sink += ManifestEntry.trunc(ManifestEntry.escape(values[j]), 1024).length();
+            }
+            current[i] = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (j = 0; j < values.length; j++) {
+                sink += oldTrunc(oldEscape(values[j]), 1024).length();
+            }
+            previous[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(current);
+        Arrays.sort(previous);
+        System.out.println("Median of " + rounds + " rounds of " + values.length + " values (ns per value, checksum " + sink + ")");
+        System.out.println(String.format("%-12s %8.1f", "Current", (double) current[rounds / 2] / values.length));
+        System.out.println(String.format("%-12s %8.1f", "Previous", (double) previous[rounds / 2] / values.length));
+    }
+
+    /**
+     * The previous escaping: the value was escaped a character at a time as
+     * it was read from the VEO
+     */
+    static String oldEscape(String value) {
+        StringBuilder sb;
+        int i;
+        char c;
+
+        sb = new StringBuilder(value.length() + 16);
+        for (i = 0; i < value.length(); i++) {
+            c = value.charAt(i);
+            switch (c) {
+                case '&':
+                    sb.append("&amp;");
+                    break;
+                case '<':
+                    sb.append("&lt;");
+                    break;
+                case '>':
+                    sb.append("&gt;");
+                    break;
+                default:
+                    sb.append(c);
+                    break;
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The previous truncation, which could cut a surrogate pair in half
+     */
+    static String oldTrunc(String value, int maxLen) {
+        String s;
+
+        s = value.trim();
+        if (maxLen < 1) {
+            maxLen = 1;
+        }
+        if (s.length() > maxLen) {
+            s = s.substring(0, maxLen - 1) + "*";
+        }
+        return s;
+    }
+
+    /**
+     * Main program
+     *
+     * @param args command line args
+     */
+    public static void main(String args[]) {
+        RenderBenchmark rb;
+        String usage = "RenderBenchmark [-values n] [-rounds n] [-seed n]";
+        long seed;
+        int i, values, rounds, corrected;
+
+        values = 1000000;
+        rounds = 15;
+        seed = 1;
+        try {
+            for (i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-values":
+                        values = Integer.parseInt(args[++i]);
+                        break;
+                    case "-rounds":
+                        rounds = Integer.parseInt(args[++i]);
+                        break;
+                    case "-seed":
+                        seed = Long.parseLong(args[++i]);
+                        break;
+                    default:
+                        System.err.println("Unrecognised argument '" + args[i] + "'\n" + usage);
+                        System.exit(-1);
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            System.err.println("Missing or invalid argument\n" + usage);
+            System.exit(-1);
+        }
+        if (values < 0 || rounds < 1) {
+            System.err.println(usage);
+            System.exit(-1);
+        }
+
+        try {
+            rb = new RenderBenchmark(seed);
+        } catch (ParserConfigurationException | SAXException e) {
+            System.err.println("Failed creating XML parser: " + e.getMessage());
+            System.exit(-1);
+            return;
+        }
+        corrected = rb.check(values);
+        if (rb.failures != 0) {
+            System.err.println(rb.failures + " of " + values + " values FAILED");
+            System.exit(-1);
+        }
+        System.out.println(values + " values checked (" + corrected + " truncations no longer cut a surrogate pair)");
+        rb.time(rounds);
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package v2manifestgenerator;
+
+/**
+ * *************************************************************
+ *
+ * S T A R T U P B E N C H M A R K
+ *
+ * This program measures how long the manifest generator takes to start up,
+ * as the time from starting the JVM to the first dam:manifest_object_item
+ * being written (and the time until the JVM exits). For small consignments
+ * this is a large part of the time of a run.
+ *
+ * The generator is run a number of times (-runs, default 5) over the VEOs in
+ * a directory in each of the following configurations, and the median times
+ * reported:
+ *   no class data sharing (-Xshare:off),
+ *   the class data sharing archive of the JDK (the default),
+ *   the application class data sharing archive built by 'ant cds' (-archive),
+ *   an earlier build of the generator, for comparison (-baseline).
+ *
+ * StartupBenchmark [-runs n] [-archive jsa] [-baseline jar] directory
+ * ************************************************************
+ */
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class StartupBenchmark {
+
+    String java;		// the java executable
+    String classpath;	// class path of the generator being measured
+    File directory;		// the VEOs to generate the manifest for
+    int runs;		// number of runs of each configuration
+
+    /**
+     * Constructor
+     *
+     * @param directory the VEOs to generate the manifest for
+     * @param runs number of runs of each configuration
+     * @throws URISyntaxException if the location of the generator is unknown
+     */
+    public StartupBenchmark(File directory, int runs) throws URISyntaxException {
+        this.directory = directory;
+        this.runs = runs;
+        java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+        classpath = new File(V2ManifestGenerator.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+    }
+
+    /**
+     * Measure
+     *
+     * Run the generator a number of times, and report the median time to the
+     * first entry, and to the end of the run
+     *
+     * @param name the name of the configuration
+     * @param cp the class path of the generator
+     * @param jvmArgs arguments to the JVM
+     * @throws IOException if the generator could not be run
+     * @throws InterruptedException if interrupted
+     */
+    public void measure(String name, String cp, String... jvmArgs) throws IOException, InterruptedException {
+        long[] first, total, t;
+        int i;
+
+        first = new long[runs];
+        total = new long[runs];
+        for (i = 0; i < runs; i++) {
+            t = run(cp, jvmArgs);
+            first[i] = t[0];
+            total[i] = t[1];
+        }
+        Arrays.sort(first);
+        Arrays.sort(total);
+        System.out.println(String.format("%-36s %8.1f %8.1f", name, first[runs / 2] / 1e6, total[runs / 2] / 1e6));
+    }
+
+    /**
+     * Run the generator once, returning the nanoseconds until the first
+     * entry was read from it, and until it exited
+     */
+    private long[] run(String cp, String[] jvmArgs) throws IOException, InterruptedException {
+        List<String> command;
+        ProcessBuilder pb;
+        Process p;
+        BufferedReader br;
+        File errors;
+        String line;
+        long start, first, total;
+        int exit;
+
+        command = new ArrayList<>();
+        command.add(java);
+        command.addAll(Arrays.asList(jvmArgs));
+        command.addAll(Arrays.asList("-cp", cp, "v2manifestgenerator.V2ManifestGenerator",
+                "-va", "1", "-vprs", "1", "-p", "1", "-tr", "1", "-d", directory.getPath()));
+        errors = File.createTempFile("startup", ".err");
+        pb = new ProcessBuilder(command);
+        pb.redirectError(errors);
+        first = -1;
+        start = System.nanoTime();
+        p = pb.start();
+        br = new BufferedReader(new InputStreamReader(p.getInputStream(), StandardCharsets.UTF_8));
+        while ((line = br.readLine()) != null) {
+            if (first == -1 && line.contains("<dam:manifest_object_item>")) {
+                first = System.nanoTime() - start;
+            }
+        }
+        br.close();
+        exit = p.waitFor();
+        total = System.nanoTime() - start;
+
+        // keep the errors of a failed run
+        if (exit != 0 || first == -1) {
+            throw new IOException("Generator failed (exit " + exit + ", see '" + errors.getPath() + "'): " + String.join(" ", command));
+        }
+        errors.delete();
+        return new long[]{first, total};
+    }
+
+    /**
+     * Main program
+     *
+     * @param args command line args
+     */
+    public static void main(String args[]) {
+        StartupBenchmark sb;
+        String usage = "StartupBenchmark [-runs n] [-archive jsa] [-baseline jar] directory";
+        File archive, directory;
+        String baseline;
+        int i, runs;
+
+        runs = 5;
+        archive = null;
+        baseline = null;
+        directory = null;
+        try {
+            for (i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-runs":
+                        runs = Integer.parseInt(args[++i]);
+                        break;
+                    case "-archive":
+                        archive = new File(args[++i]);
+                        break;
+                    case "-baseline":
+                        baseline = args[++i];
+                        break;
+                    default:
+                        if (args[i].startsWith("-") || directory != null) {
+                            System.err.println("Unrecognised argument '" + args[i] + "'\n" + usage);
+                            System.exit(-1);
+                        }
+                        directory = new File(args[i]);
+                        break;
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            System.err.println("Missing or invalid argument\n" + usage);
+            System.exit(-1);
+        }
+        if (directory == null || runs < 1) {
+            System.err.println(usage);
+            System.exit(-1);
+        }
+
+        try {
+            sb = new StartupBenchmark(directory, runs);
+            System.out.println("Median of " + runs + " runs over '" + directory.getPath() + "' (ms)");
+            System.out.println(String.format("%-36s %8s %8s", "Configuration", "First", "Total"));
+            sb.measure("No class data sharing", sb.classpath, "-Xshare:off");
+            sb.measure("JDK class data sharing", sb.classpath);
+            if (archive != null) {
+                if (!archive.exists()) {
+                    System.err.println("Archive '" + archive.getPath() + "' does not exist (run 'ant cds')");
+                } else {
+                    sb.measure("Application class data sharing", sb.classpath, "-XX:SharedArchiveFile=" + archive.getPath());
+                }
+            }
+            if (baseline != null) {
+                sb.measure("Baseline (" + new File(baseline).getName() + ")", baseline);
+            }
+        } catch (IOException | URISyntaxException e) {
+            System.err.println(e.getMessage());
+            System.exit(-1);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            System.exit(-1);
+        }
+    }
+}